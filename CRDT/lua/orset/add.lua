@@ -4,19 +4,28 @@
 -- ARGV[2] = value
 -- ARGV[3] = added.rc
 -- ARGV[4] = added.rs
+-- ARGV[5] = added, ordinal of (added.rc, added.rs) in the 'replicas' hash
 
 -- Return: nothing.
 
-local ttl, value, added_rc, added_rs = unpack(ARGV)
+-- Element blob: varint added.t, varint added, varint removed.t (0 if not removed), [varint removed], value bytes.
+local function encode(n)
+  local bytes = {}
+  while (n >= 128) do
+    table.insert(bytes, string.char(n % 128 + 128))
+    n = math.floor(n / 128)
+  end
+  table.insert(bytes, string.char(n))
+  return table.concat(bytes)
+end
+
+local ttl, value, added_rc, added_rs, added = unpack(ARGV)
 ttl = tonumber(ttl)
 local added_t = tonumber(redis.call('incr', string.format('timestamp:%s:%s', added_rc, added_rs)))
-local id = string.format('%s.%s.%s', added_rc, added_rs, redis.call('incr', 'element:next.id'))
-redis.call('hmset', 'element:'..id, 'value', value,
-                                    'added.t', added_t,
-                                    'added.rc', added_rc,
-                                    'added.rs', added_rs)
+local id = string.format('%s.%d', added, added_t)      -- the dot of the tag
+redis.call('set', 'e:'..id, encode(added_t)..encode(tonumber(added))..encode(0)..value)
 if (ttl >= 0) then
-  redis.call('expire', 'element:'..id, ttl)
+  redis.call('expire', 'e:'..id, ttl)
 end
-redis.call('sadd', 'ids:'..value, id)
-redis.call('lpush', string.format('index:%s:%s', added_rc, added_rs), string.format('%d:%s', added_t, id))
+redis.call('sadd', 'live:'..value, id)
+redis.call('zadd', 'index:'..added, added_t, id)
@@ -0,0 +1,96 @@
+-- Add deltas pulled from another replica to the store.
+
+-- ARGV[1] = n, number of timestamps to set after adding the deltas (0 for none)
+-- ARGV[2 .. 3n+1] = rc, rs, other_t for each timestamp, set to maximum between current and other_t
+-- ARGV[3n+2] = ttl (seconds) of the added tuples, negative if they do not expire
+-- ARGV[3n+3 ..] = delta blobs
+
+-- Return: nothing.
+
+-- Element blob: varint added.t, varint added, varint removed.t (0 if not removed), [varint removed], value bytes.
+-- Delta blob: varint removed.t (0 for an add), [varint removed], varint k, k * (varint added, varint added.t), value bytes.
+local function encode(n)
+  local bytes = {}
+  while (n >= 128) do
+    table.insert(bytes, string.char(n % 128 + 128))
+    n = math.floor(n / 128)
+  end
+  table.insert(bytes, string.char(n))
+  return table.concat(bytes)
+end
+
+local function decode(s, pos)
+  local n, scale = 0, 1
+  while (true) do
+    local b = string.byte(s, pos)
+    pos = pos + 1
+    n = n + (b % 128) * scale
+    if (b < 128) then return n, pos end
+    scale = scale * 128
+  end
+end
+
+local seen = {}
+local function timestamp(replica)    -- local timestamp of a replica ordinal
+  if (not seen[replica]) then
+    local rc_rs = redis.call('hget', 'replicas', replica)
+    seen[replica] = tonumber(rc_rs and redis.call('get', 'timestamp:'..rc_rs) or 0)
+  end
+  return seen[replica]
+end
+
+local n = tonumber(ARGV[1])
+local ttl = tonumber(ARGV[3 * n + 2])
+for i = 3 * n + 3, #ARGV do
+  local delta = ARGV[i]
+  local removed_t, pos = decode(delta, 1)
+  local removed = nil
+  if (removed_t ~= 0) then removed, pos = decode(delta, pos) end
+  local k, pos = decode(delta, pos)
+  local dots = {}
+  for j = 1, k do
+    local added, added_t
+    added, pos = decode(delta, pos)
+    added_t, pos = decode(delta, pos)
+    table.insert(dots, {added, added_t})
+  end
+  local value = string.sub(delta, pos)
+
+  for j,dot in ipairs(dots) do
+    local added, added_t = dot[1], dot[2]
+    local id = string.format('%d.%d', added, added_t)      -- the dot of the tag
+    local key = 'e:'..id
+    local current = redis.call('get', key)
+    local current_removed_t = 0
+    if (current) then
+      local _, pos = decode(current, 1)
+      _, pos = decode(current, pos)
+      current_removed_t = decode(current, pos)
+    elseif ((removed and removed_t <= timestamp(removed)) or (not removed and added_t <= timestamp(added))) then
+      current_removed_t = nil   -- already seen here, then purged or expired: not re-added
+    end
+    if (current_removed_t == 0) then    -- a tag removed here stays removed as it is
+      if (removed) then
+        redis.call('set', key, encode(added_t)..encode(added)..encode(removed_t)..encode(removed)..value)
+        redis.call('srem', 'live:'..value, id)
+        redis.call('zrem', 'index:'..added, id)
+        redis.call('zadd', 'index:'..removed, removed_t, id)
+      else
+        redis.call('set', key, encode(added_t)..encode(added)..encode(0)..value)
+        redis.call('sadd', 'live:'..value, id)
+        redis.call('zadd', 'index:'..added, added_t, id)
+      end
+    end
+    if (ttl >= 0) then
+      redis.call('expire', key, ttl)
+    end
+  end
+end
+
+-- Deltas are added, commit the timestamps.
+for i = 2, 3 * n + 1, 3 do
+  local rc, rs, other_t = ARGV[i], ARGV[i + 1], ARGV[i + 2]
+  local timestamp_key = string.format('timestamp:%s:%s', rc, rs)
+  local current_t = redis.call('get', timestamp_key) or 0
+  redis.call('set', timestamp_key, math.max(tonumber(current_t), tonumber(other_t)))
+end
@@ -0,0 +1,78 @@
+-- Add updates pulled from another replica to the store.
+
+-- ARGV[1] = n, number of timestamps to set after adding the updates (0 for none)
+-- ARGV[2] = 1 if the updates are tuples migrated from another store of the cluster, 0 otherwise:
+--   migrated tuples are added even if the local timestamps cover them.
+-- ARGV[3 .. 3n+2] = rc, rs, other_t for each timestamp, set to maximum between current and other_t
+-- ARGV[3n+3 ..] = 2 arguments per update:
+--   element blob, ttl (seconds)
+--   where ttl is negative if the tuple does not expire.
+--   The id of the tuple is its dot <added>.<added.t>, decoded from the blob.
+
+-- Return: nothing.
+
+-- Element blob: varint added.t, varint added, varint removed.t (0 if not removed), [varint removed], value bytes.
+local function decode(s, pos)
+  local n, scale = 0, 1
+  while (true) do
+    local b = string.byte(s, pos)
+    pos = pos + 1
+    n = n + (b % 128) * scale
+    if (b < 128) then return n, pos end
+    scale = scale * 128
+  end
+end
+
+local seen = {}
+local function timestamp(replica)    -- local timestamp of a replica ordinal
+  if (not seen[replica]) then
+    local rc_rs = redis.call('hget', 'replicas', replica)
+    seen[replica] = tonumber(rc_rs and redis.call('get', 'timestamp:'..rc_rs) or 0)
+  end
+  return seen[replica]
+end
+
+local n = tonumber(ARGV[1])
+local migrated = ARGV[2] == '1'
+for i = 3 * n + 3, #ARGV, 2 do
+  local blob, ttl = ARGV[i], ARGV[i + 1]
+  local added_t, pos = decode(blob, 1)
+  local added, pos = decode(blob, pos)
+  local id = string.format('%d.%d', added, added_t)      -- the dot of the tag
+  local key = 'e:'..id
+  local removed_t, pos = decode(blob, pos)
+  local removed = nil
+  if (removed_t ~= 0) then removed, pos = decode(blob, pos) end
+  local value = string.sub(blob, pos)
+  local current = redis.call('get', key)
+  local current_removed_t = 0
+  if (current) then
+    local _, pos = decode(current, 1)
+    _, pos = decode(current, pos)
+    current_removed_t = decode(current, pos)
+  elseif (not migrated and ((removed and removed_t <= timestamp(removed)) or (not removed and added_t <= timestamp(added)))) then
+    current_removed_t = nil   -- already seen here, then purged or expired: not re-added
+  end
+  if (current_removed_t == 0) then    -- a tag removed here stays removed as it is
+    redis.call('set', key, blob)
+    if (removed) then
+      redis.call('srem', 'live:'..value, id)
+      redis.call('zrem', 'index:'..added, id)
+      redis.call('zadd', 'index:'..removed, removed_t, id)
+    else
+      redis.call('sadd', 'live:'..value, id)
+      redis.call('zadd', 'index:'..added, added_t, id)
+    end
+  end
+  if (tonumber(ttl) >= 0) then
+    redis.call('expire', key, ttl)
+  end
+end
+
+-- Updates are added, commit the timestamps.
+for i = 3, 3 * n + 2, 3 do
+  local rc, rs, other_t = ARGV[i], ARGV[i + 1], ARGV[i + 2]
+  local timestamp_key = string.format('timestamp:%s:%s', rc, rs)
+  local current_t = redis.call('get', timestamp_key) or 0
+  redis.call('set', timestamp_key, math.max(tonumber(current_t), tonumber(other_t)))
+end
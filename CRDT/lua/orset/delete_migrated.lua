@@ -0,0 +1,44 @@
+-- Delete tuples migrated to another store of the cluster, once it added them.
+
+-- ARGV = element blobs of the tuples as they were read from this store.
+-- A tuple is deleted only if it was not removed since it was read.
+
+-- Return: number of deleted tuples.
+
+-- Element blob: varint added.t, varint added, varint removed.t (0 if not removed), [varint removed], value bytes.
+local function decode(s, pos)
+  local n, scale = 0, 1
+  while (true) do
+    local b = string.byte(s, pos)
+    pos = pos + 1
+    n = n + (b % 128) * scale
+    if (b < 128) then return n, pos end
+    scale = scale * 128
+  end
+end
+
+local n = 0
+for i = 1, #ARGV do
+  local blob = ARGV[i]
+  local added_t, pos = decode(blob, 1)
+  local added, pos = decode(blob, pos)
+  local removed_t, pos = decode(blob, pos)
+  local removed = nil
+  if (removed_t ~= 0) then removed, pos = decode(blob, pos) end
+  local value = string.sub(blob, pos)
+  local id = string.format('%d.%d', added, added_t)      -- the dot of the tag
+  local key = 'e:'..id
+  local current = redis.call('get', key)
+  if (current) then
+    local _, pos = decode(current, 1)
+    _, pos = decode(current, pos)
+    if (decode(current, pos) == removed_t) then
+      redis.call('del', key)
+      redis.call('srem', 'live:'..value, id)
+      redis.call('zrem', 'index:'..added, id)
+      if (removed) then redis.call('zrem', 'index:'..removed, id) end
+      n = n + 1
+    end
+  end
+end
+return n
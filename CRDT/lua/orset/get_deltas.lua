@@ -0,0 +1,83 @@
+-- Get a page of the updates done by a store after a timestamp, as deltas.
+
+-- ARGV[1] = replica, ordinal of the store in the 'replicas' hash
+-- ARGV[2] = t, get updates with timestamps > t
+-- ARGV[3] = limit, maximum number of updates, exceeded only to return all updates with the last timestamp
+
+-- Return: flat array [number of updates read, timestamp of the last one, delta blobs...] in increasing timestamp order,
+--   with one delta per add and one per remove operation. Expired tuples are skipped.
+
+-- Element blob: varint added.t, varint added, varint removed.t (0 if not removed), [varint removed], value bytes.
+-- Delta blob: varint removed.t (0 for an add), [varint removed], varint k, k * (varint added, varint added.t), value bytes.
+local function encode(n)
+  local bytes = {}
+  while (n >= 128) do
+    table.insert(bytes, string.char(n % 128 + 128))
+    n = math.floor(n / 128)
+  end
+  table.insert(bytes, string.char(n))
+  return table.concat(bytes)
+end
+
+local function decode(s, pos)
+  local n, scale = 0, 1
+  while (true) do
+    local b = string.byte(s, pos)
+    pos = pos + 1
+    n = n + (b % 128) * scale
+    if (b < 128) then return n, pos end
+    scale = scale * 128
+  end
+end
+
+local replica, t, limit = unpack(ARGV)
+local key = 'index:'..replica
+local page = redis.call('zrangebyscore', key, '('..t, '+inf', 'WITHSCORES', 'LIMIT', 0, limit)
+local n = #page / 2
+if (n > 0 and n == tonumber(limit)) then
+  -- complete the updates with the last timestamp
+  local last = page[#page]
+  while (n > 0 and page[2 * n] == last) do n = n - 1 end
+  local tail = redis.call('zrangebyscore', key, last, last)
+  for i,id in ipairs(tail) do
+    page[2 * (n + i) - 1] = id
+    page[2 * (n + i)] = last
+  end
+  for i = 2 * (n + #tail) + 1, #page do page[i] = nil end
+  n = n + #tail
+end
+
+local deltas = {n, n > 0 and page[2 * n] or t}
+local removes = {}    -- dots of the tags removed by the remove operation being read, which all have the same timestamp
+local remove = nil    -- removed.t and removed of that operation
+local value = nil
+local function flush()
+  if (#removes > 0) then
+    table.insert(deltas, remove..encode(#removes)..table.concat(removes)..value)
+    removes = {}
+  end
+end
+for i = 1, n do
+  local blob = redis.call('get', 'e:'..page[2 * i - 1])
+  if (blob) then      -- key is not expired
+    local added_t, pos = decode(blob, 1)
+    local added, pos = decode(blob, pos)
+    local start = pos
+    local removed_t, pos = decode(blob, pos)
+    if (removed_t == 0) then
+      flush()
+      table.insert(deltas, encode(0)..encode(1)..encode(added)..encode(added_t)..string.sub(blob, pos))
+    else
+      local removed, pos = decode(blob, pos)
+      local dot = string.sub(blob, start, pos - 1)    -- removed.t and removed
+      if (dot ~= remove) then
+        flush()
+        remove = dot
+        value = string.sub(blob, pos)
+      end
+      table.insert(removes, encode(added)..encode(added_t))
+    end
+  end
+end
+flush()
+return deltas
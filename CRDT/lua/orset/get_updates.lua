@@ -0,0 +1,36 @@
+-- Get a page of the updates done by a store after a timestamp.
+
+-- ARGV[1] = replica, ordinal of the store in the 'replicas' hash
+-- ARGV[2] = t, get updates with timestamps > t
+-- ARGV[3] = limit, maximum number of updates, exceeded only to return all updates with the last timestamp
+
+-- Return: flat array with 4 entries per update, in increasing timestamp order:
+--   id, t, element blob, ttl
+--   where t is the timestamp of the update in the index and the blob is nil if the tuple expired.
+
+local replica, t, limit = unpack(ARGV)
+local key = 'index:'..replica
+local page = redis.call('zrangebyscore', key, '('..t, '+inf', 'WITHSCORES', 'LIMIT', 0, limit)
+local n = #page / 2
+if (n > 0 and n == tonumber(limit)) then
+  -- complete the updates with the last timestamp
+  local last = page[#page]
+  while (n > 0 and page[2 * n] == last) do n = n - 1 end
+  local tail = redis.call('zrangebyscore', key, last, last)
+  for i,id in ipairs(tail) do
+    page[2 * (n + i) - 1] = id
+    page[2 * (n + i)] = last
+  end
+  for i = 2 * (n + #tail) + 1, #page do page[i] = nil end
+  n = n + #tail
+end
+
+local updates = {}
+for i = 1, n do
+  local id = page[2 * i - 1]
+  table.insert(updates, id)
+  table.insert(updates, page[2 * i])
+  table.insert(updates, redis.call('get', 'e:'..id))
+  table.insert(updates, redis.call('ttl', 'e:'..id))
+end
+return updates
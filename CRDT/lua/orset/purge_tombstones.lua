@@ -0,0 +1,60 @@
+-- Purge removed tags whose removal was seen by every replica.
+
+-- ARGV[1] = limit, maximum number of tags to purge, exceeded only to purge all tags with the last timestamp
+-- ARGV[2 ..] = replica, t for each replica, where replica is its ordinal in the 'replicas' hash and
+--   tags removed by it with removed.t <= t are purged
+
+-- Return: number of purged tags.
+
+-- Element blob: varint added.t, varint added, varint removed.t (0 if not removed), [varint removed], value bytes.
+local function decode(s, pos)
+  local n, scale = 0, 1
+  while (true) do
+    local b = string.byte(s, pos)
+    pos = pos + 1
+    n = n + (b % 128) * scale
+    if (b < 128) then return n, pos end
+    scale = scale * 128
+  end
+end
+
+local function purge(key, id)
+  local blob = redis.call('get', 'e:'..id)
+  if (not blob) then      -- key is expired, drop its index entry
+    redis.call('zrem', key, id)
+    return 0
+  end
+  local _, pos = decode(blob, 1)
+  _, pos = decode(blob, pos)
+  if (decode(blob, pos) == 0) then return 0 end
+  redis.call('del', 'e:'..id)
+  redis.call('zrem', key, id)
+  return 1
+end
+
+local limit = tonumber(ARGV[1])
+local n = 0
+for i = 2, #ARGV, 2 do
+  if (n >= limit) then break end
+  local replica, t = ARGV[i], ARGV[i + 1]
+  -- the index of a replica holds the tags last updated by it, i.e. its live adds and its removes
+  local key = 'index:'..replica
+  local from = redis.call('get', 'purged:'..replica) or '0'
+  while (n < limit and tonumber(from) < tonumber(t)) do
+    local page = redis.call('zrangebyscore', key, '('..from, t, 'WITHSCORES', 'LIMIT', 0, limit)
+    for j = 1, #page, 2 do
+      n = n + purge(key, page[j])
+    end
+    if (#page / 2 < limit) then
+      from = t
+    else
+      -- complete the tags with the last timestamp
+      from = page[#page]
+      for j,id in ipairs(redis.call('zrangebyscore', key, from, from)) do
+        n = n + purge(key, id)
+      end
+    end
+  end
+  redis.call('set', 'purged:'..replica, from)
+end
+return n
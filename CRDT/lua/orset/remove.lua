@@ -4,22 +4,48 @@
 -- ARGV[2] = value
 -- ARGV[3] = removed.rc
 -- ARGV[4] = removed.rs
+-- ARGV[5] = removed, ordinal of (removed.rc, removed.rs) in the 'replicas' hash
 
 -- Return: nothing.
 
-local ttl, value, removed_rc, removed_rs = unpack(ARGV)
+-- Element blob: varint added.t, varint added, varint removed.t (0 if not removed), [varint removed], value bytes.
+local function encode(n)
+  local bytes = {}
+  while (n >= 128) do
+    table.insert(bytes, string.char(n % 128 + 128))
+    n = math.floor(n / 128)
+  end
+  table.insert(bytes, string.char(n))
+  return table.concat(bytes)
+end
+
+local function decode(s, pos)
+  local n, scale = 0, 1
+  while (true) do
+    local b = string.byte(s, pos)
+    pos = pos + 1
+    n = n + (b % 128) * scale
+    if (b < 128) then return n, pos end
+    scale = scale * 128
+  end
+end
+
+local ttl, value, removed_rc, removed_rs, removed = unpack(ARGV)
 ttl = tonumber(ttl)
 local removed_t = tonumber(redis.call('incr', string.format('timestamp:%s:%s', removed_rc, removed_rs)))
-local ids = redis.call('smembers', 'ids:'..value)
+local ids = redis.call('smembers', 'live:'..value)   -- only tags which are not removed yet
 for i,id in ipairs(ids) do
-  local added_rc, added_rs = unpack(redis.call('hmget', 'element:'..id, 'added.rc', 'added.rs'))
-  if (added_rc) then      -- key is not expired
-    redis.call('hmset', 'element:'..id, 'removed.t', removed_t,
-                                        'removed.rc', removed_rc,
-                                        'removed.rs', removed_rs)
+  local blob = redis.call('get', 'e:'..id)
+  if (blob) then      -- key is not expired
+    local added_t, pos = decode(blob, 1)
+    local added, pos = decode(blob, pos)
+    redis.call('set', 'e:'..id, string.sub(blob, 1, pos - 1)..encode(removed_t)..encode(tonumber(removed))..value)
     if (ttl >= 0) then
-      redis.call('expire', 'element:'..id, ttl)
+      redis.call('expire', 'e:'..id, ttl)
     end
-    redis.call('lpush', string.format('index:%s:%s', removed_rc, removed_rs), string.format('%d:%s', removed_t, id))
+    -- a removed tuple is indexed by its removal only
+    redis.call('zrem', 'index:'..added, id)
+    redis.call('zadd', 'index:'..removed, removed_t, id)
   end
 end
+redis.call('del', 'live:'..value)
@@ -0,0 +1,12 @@
+-- Set timestamps for several (rc,rs) to maximum between current and other_t.
+
+-- ARGV = rc, rs, other_t for each (rc,rs)
+
+-- Return: nothing.
+
+for i = 1, #ARGV, 3 do
+  local rc, rs, other_t = ARGV[i], ARGV[i + 1], ARGV[i + 2]
+  local timestamp_key = string.format('timestamp:%s:%s', rc, rs)
+  local current_t = redis.call('get', timestamp_key) or 0
+  redis.call('set', timestamp_key, math.max(tonumber(current_t), tonumber(other_t)))
+end
@@ -1,42 +1,134 @@
 package de.oneandone.eventtracker.CRDT.Hashing;
 
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
+/**
+ * Consistent hash ring with virtual nodes, hashed by Murmur3.
+ * A node of weight w gets w * vnodes points on the ring, named after node.toString(), so all clients
+ * with the same nodes and weights build the same ring. The ring is an immutable sorted array, replaced
+ * on every change, so that get() takes no lock.
+ */
 public class ConsistentHashFunction<T> implements HashFunction<T> {
-	private final SortedMap<Long, T> circle = new TreeMap<Long, T>();
-	private static final int NUM_OF_REPLICAS = 3;
-	private final MD5 md5 = new MD5();
+	public static final int DEFAULT_VNODES = 256;
+	
+	private final int vnodes;
+	private final LinkedHashMap<T, Integer> weights = new LinkedHashMap<T, Integer>();	// Guarded by this.
+	private volatile Ring<T> ring = new Ring<T>(new long[0], new Object[0]);
+	
+	private static class Ring<T> {
+		final long[] points;		// Sorted.
+		final Object[] nodes;		// nodes[i] owns the keys hashed in (points[i - 1], points[i]].
+		
+		Ring(long[] points, Object[] nodes) {
+			this.points = points;
+			this.nodes = nodes;
+		}
+	}
+	
+	public ConsistentHashFunction() {
+		this(DEFAULT_VNODES);
+	}
+	
+	/**
+	 * @param vnodes	Number of points on the ring of a node of weight 1.
+	 */
+	public ConsistentHashFunction(int vnodes) {
+		this.vnodes = vnodes;
+	}
 	
 	@Override
 	public synchronized void add(T node) {
-		for (int i = 0; i < NUM_OF_REPLICAS; i++)
-			circle.put(md5.hash(node.toString() + i), node);
+		add(node, 1);
+	}
+	
+	@Override
+	public synchronized void add(T node, int weight) {
+		weights.put(node, weight);
+		rebuild();
 	}
 
 	@Override
 	public synchronized void add(Collection<T> nodes) {
 		for (T node : nodes)
-			add(node);
+			weights.put(node, 1);
+		rebuild();
 	}
 
 	@Override
 	public synchronized void remove(T node) {
-		for (int i = 0; i < NUM_OF_REPLICAS; i++)
-			circle.remove(md5.hash(node.toString() + i));
+		if (weights.remove(node) != null)
+			rebuild();
+	}
+
+	@Override
+	public synchronized void set(Map<T, Integer> nodes) {
+		weights.clear();
+		weights.putAll(nodes);
+		rebuild();
+	}
+
+	@Override
+	public synchronized HashFunction<T> copy() {
+		ConsistentHashFunction<T> copy = new ConsistentHashFunction<T>(vnodes);
+		copy.weights.putAll(weights);
+		copy.ring = ring;
+		return copy;
 	}
 
 	@Override
-	public synchronized T get(String key) {
-		if (circle.isEmpty()) {
+	public T get(String key) {
+		final Ring<T> ring = this.ring;
+		if (ring.points.length == 0)
 			return null;
+		int i = Arrays.binarySearch(ring.points, Murmur3.hash(key));
+		if (i < 0)
+			i = -i - 1;
+		if (i == ring.points.length)
+			i = 0;
+		@SuppressWarnings("unchecked")
+		final T node = (T) ring.nodes[i];
+		return node;
+	}
+	
+	
+	private void rebuild() {
+		int n = 0;
+		for (int weight : weights.values())
+			n += weight * vnodes;
+		final long[][] entries = new long[n][];		// (point, index of the node)
+		final Object[] nodes = weights.keySet().toArray();
+		final String[] names = new String[nodes.length];
+		int k = 0, j = 0;
+		for (Map.Entry<T, Integer> entry : weights.entrySet()) {
+			names[j] = entry.getKey().toString();
+			for (int i = 0; i < entry.getValue() * vnodes; ++i)
+				entries[k++] = new long[] { Murmur3.hash(names[j] + "#" + i), j };
+			++j;
 		}
-		long hash = md5.hash(key);
-		if (!circle.containsKey(hash)) {
-			SortedMap<Long, T> tailMap = circle.tailMap(hash);
-			hash = tailMap.isEmpty() ? circle.firstKey() : tailMap.firstKey();
+		// A point hashed from two nodes goes to the smallest name, for all clients to agree.
+		Arrays.sort(entries, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				if (a[0] != b[0])
+					return Long.compare(a[0], b[0]);
+				return names[(int) a[1]].compareTo(names[(int) b[1]]);
+			}
+		});
+		long[] points = new long[n];
+		Object[] owners = new Object[n];
+		int m = 0;
+		for (int i = 0; i < n; ++i) {
+			if (m > 0 && points[m - 1] == entries[i][0])
+				continue;
+			points[m] = entries[i][0];
+			owners[m++] = nodes[(int) entries[i][1]];
 		}
-		return circle.get(hash);
+		points = Arrays.copyOf(points, m);
+		owners = Arrays.copyOf(owners, m);
+		ring = new Ring<T>(points, owners);
 	}
 }
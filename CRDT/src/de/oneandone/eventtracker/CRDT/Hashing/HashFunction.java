@@ -1,10 +1,14 @@
 package de.oneandone.eventtracker.CRDT.Hashing;
 
 import java.util.Collection;
+import java.util.Map;
 
 public interface HashFunction<T> {
 	public void add(T node);
+	public void add(T node, int weight);	// Weight relative to the other nodes, 1 by default.
 	public void add(Collection<T> nodes);
 	public void remove(T node);
+	public void set(Map<T, Integer> nodes);		// Replace all nodes by the given ones, with their weights, at once for get().
 	public T get(String key);
+	public HashFunction<T> copy();		// A function with the same nodes and weights, independent from this one.
 }
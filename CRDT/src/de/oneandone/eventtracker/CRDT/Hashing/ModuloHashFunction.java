@@ -1,29 +1,69 @@
 package de.oneandone.eventtracker.CRDT.Hashing;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Map;
 
+/**
+ * Hash function by modulo over the nodes.
+ * The nodes are an immutable array, replaced on every change, so that get() takes no lock.
+ */
 public class ModuloHashFunction<T> implements HashFunction<T> {
-	private final ArrayList<T> nodes = new ArrayList<T>();
+	private volatile Object[] nodes = new Object[0];
 
 	@Override
 	public synchronized void add(T node) {
-		this.nodes.add(node);
+		Object[] nodes = Arrays.copyOf(this.nodes, this.nodes.length + 1);
+		nodes[nodes.length - 1] = node;
+		this.nodes = nodes;
+	}
+
+	/**
+	 * Weights are not supported, all nodes get the same share of keys.
+	 */
+	@Override
+	public synchronized void add(T node, int weight) {
+		add(node);
 	}
 
 	@Override
 	public synchronized void add(Collection<T> nodes) {
-		this.nodes.addAll(nodes);
+		ArrayList<Object> list = new ArrayList<Object>(Arrays.asList(this.nodes));
+		list.addAll(nodes);
+		this.nodes = list.toArray();
 	}
 
 	@Override
 	public synchronized void remove(T node) {
-		this.nodes.remove(node);
+		ArrayList<Object> list = new ArrayList<Object>(Arrays.asList(this.nodes));
+		if (list.remove(node))
+			this.nodes = list.toArray();
+	}
+
+	/**
+	 * Weights are not supported, all nodes get the same share of keys.
+	 */
+	@Override
+	public synchronized void set(Map<T, Integer> nodes) {
+		this.nodes = nodes.keySet().toArray();
+	}
+
+	@Override
+	public HashFunction<T> copy() {
+		ModuloHashFunction<T> copy = new ModuloHashFunction<T>();
+		copy.nodes = this.nodes;
+		return copy;
 	}
 
 	@Override
-	public synchronized T get(String key) {
-		return this.nodes.get(Math.abs(key.hashCode() % nodes.size()));
+	public T get(String key) {
+		final Object[] nodes = this.nodes;
+		if (nodes.length == 0)
+			return null;
+		@SuppressWarnings("unchecked")
+		final T node = (T) nodes[Math.abs(key.hashCode() % nodes.length)];
+		return node;
 	}
 
 }
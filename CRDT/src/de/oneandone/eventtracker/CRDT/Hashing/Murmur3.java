@@ -0,0 +1,90 @@
+package de.oneandone.eventtracker.CRDT.Hashing;
+
+import java.nio.charset.Charset;
+
+/**
+ * MurmurHash3 (x64, 128 bit variant), keeping the first 64 bits of the hash.
+ * Fast and well distributed, but not cryptographic.
+ */
+public class Murmur3 {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	public static long hash(String value) {
+		return hash(value.getBytes(UTF8), 0);
+	}
+
+	@SuppressWarnings("fallthrough")	// The tail bytes are mixed in by falling through the cases.
+	public static long hash(byte[] data, int seed) {
+		final int length = data.length;
+		final int blocks = length / 16;
+		long h1 = seed & 0xFFFFFFFFL;
+		long h2 = h1;
+
+		for (int i = 0; i < blocks; ++i) {
+			long k1 = getLong(data, i * 16);
+			long k2 = getLong(data, i * 16 + 8);
+
+			k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+
+			k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		// Tail.
+		final int tail = blocks * 16;
+		long k1 = 0;
+		long k2 = 0;
+		switch (length & 15) {
+		case 15: k2 ^= (data[tail + 14] & 0xFFL) << 48;
+		case 14: k2 ^= (data[tail + 13] & 0xFFL) << 40;
+		case 13: k2 ^= (data[tail + 12] & 0xFFL) << 32;
+		case 12: k2 ^= (data[tail + 11] & 0xFFL) << 24;
+		case 11: k2 ^= (data[tail + 10] & 0xFFL) << 16;
+		case 10: k2 ^= (data[tail + 9] & 0xFFL) << 8;
+		case 9:  k2 ^= (data[tail + 8] & 0xFFL);
+			k2 *= C2; k2 = Long.rotateLeft(k2, 33); k2 *= C1; h2 ^= k2;
+		case 8:  k1 ^= (data[tail + 7] & 0xFFL) << 56;
+		case 7:  k1 ^= (data[tail + 6] & 0xFFL) << 48;
+		case 6:  k1 ^= (data[tail + 5] & 0xFFL) << 40;
+		case 5:  k1 ^= (data[tail + 4] & 0xFFL) << 32;
+		case 4:  k1 ^= (data[tail + 3] & 0xFFL) << 24;
+		case 3:  k1 ^= (data[tail + 2] & 0xFFL) << 16;
+		case 2:  k1 ^= (data[tail + 1] & 0xFFL) << 8;
+		case 1:  k1 ^= (data[tail] & 0xFFL);
+			k1 *= C1; k1 = Long.rotateLeft(k1, 31); k1 *= C2; h1 ^= k1;
+		}
+
+		// Finalization.
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		return h1;
+	}
+
+	private static long getLong(byte[] data, int i) {
+		return (data[i] & 0xFFL)
+				| ((data[i + 1] & 0xFFL) << 8)
+				| ((data[i + 2] & 0xFFL) << 16)
+				| ((data[i + 3] & 0xFFL) << 24)
+				| ((data[i + 4] & 0xFFL) << 32)
+				| ((data[i + 5] & 0xFFL) << 40)
+				| ((data[i + 6] & 0xFFL) << 48)
+				| ((data[i + 7] & 0xFFL) << 56);
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
@@ -0,0 +1,275 @@
+package de.oneandone.eventtracker.CRDT.ORset;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking access to a replica cluster through a booted client.
+ * Operations are queued per store and return a future, completed by a pool thread; the caller never blocks.
+ * Each store has a window of operations queued or in flight: when it is full, the future of a new operation
+ * fails at once with a RejectedExecutionException, and the caller should wait for earlier futures before retrying.
+ * Queued operations of the same kind for the same store are sent together as one batch
+ * (see Client.addAll(), Client.removeAll() and Client.lookupAll()), in submission order.
+ * Queues are dropped when the topology of the client changes, as their stores may be closed: queued operations
+ * still run through the client, but may complete out of order with the operations submitted after the change.
+ * @author adeftu
+ *
+ * @param <T>	Type of DB store to use.
+ */
+public class AsyncClient<T extends Store> {
+	private static final int DEFAULT_WINDOW = 1024;
+
+	private final Client<T> client;
+	private final int window;
+	private final HashMap<T, Lane> lanes = new HashMap<T, Lane>();
+	private long topologyVersion = 0;		// Version of the topology of the stores of the lanes. Guarded by lanes.
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "orset-async");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	private static enum Op {
+		ADD,
+		REMOVE,
+		LOOKUP
+	}
+
+	private static class Request {
+		final Op op;
+		final String value;
+		final CompletableFuture<?> result;
+
+		Request(Op op, String value, CompletableFuture<?> result) {
+			this.op = op;
+			this.value = value;
+			this.result = result;
+		}
+	}
+
+	/**
+	 * Queue of the operations of one store. At most one task drains a lane at a time.
+	 */
+	private class Lane implements Runnable {
+		private final LinkedList<Request> pending = new LinkedList<Request>();
+		private int outstanding = 0;		// Operations queued or in flight.
+		private boolean scheduled = false;
+
+		/**
+		 * Queue an operation.
+		 * @return	False if the window is full.
+		 */
+		boolean submit(Request request) {
+			synchronized (this) {
+				if (outstanding >= window)
+					return false;
+				++outstanding;
+				pending.add(request);
+				if (scheduled)
+					return true;
+				scheduled = true;
+			}
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				synchronized (this) {
+					scheduled = false;
+					pending.remove(request);
+					--outstanding;
+				}
+				throw e;
+			}
+			return true;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				ArrayList<Request> batch = new ArrayList<Request>();
+				synchronized (this) {
+					if (pending.isEmpty()) {
+						scheduled = false;
+						return;
+					}
+					// Take the longest run of operations of the same kind.
+					final Op op = pending.getFirst().op;
+					while (!pending.isEmpty() && pending.getFirst().op == op)
+						batch.add(pending.removeFirst());
+				}
+				batches.incrementAndGet();
+				execute(batch);
+			}
+		}
+
+		/**
+		 * Run a batch through the client, which also reaches the previous stores of the values while migrating.
+		 */
+		@SuppressWarnings("unchecked")
+		private void execute(ArrayList<Request> batch) {
+			ArrayList<String> values = new ArrayList<String>(batch.size());
+			for (Request request : batch)
+				values.add(request.value);
+			Map<String, Boolean> found = null;
+			Exception failure = null;
+			try {
+				switch (batch.get(0).op) {
+				case ADD:
+					client.addAll(values);
+					break;
+				case REMOVE:
+					client.removeAll(values);
+					break;
+				case LOOKUP:
+					found = client.lookupAll(values);
+					break;
+				}
+			} catch (Exception e) {
+				failure = e;
+			}
+			// Free the window first, so that the callers may submit again as soon as their futures complete.
+			synchronized (this) {
+				outstanding -= batch.size();
+			}
+			for (Request request : batch) {
+				if (failure != null)
+					request.result.completeExceptionally(failure);
+				else if (found != null)
+					((CompletableFuture<Boolean>) request.result).complete(found.get(request.value));
+				else
+					((CompletableFuture<Void>) request.result).complete(null);
+			}
+		}
+	}
+
+
+	/**
+	 * Create an asynchronous client.
+	 * @param client	A booted client.
+	 * @param window	Maximum number of operations queued or in flight per store.
+	 */
+	public AsyncClient(Client<T> client, int window) {
+		this.client = client;
+		this.window = window;
+	}
+
+	public AsyncClient(Client<T> client) {
+		this(client, DEFAULT_WINDOW);
+	}
+
+	public Client<T> getClient() {
+		return client;
+	}
+
+
+	private <V> CompletableFuture<V> submit(Op op, String value) {
+		final long version = client.getTopologyVersion();
+		T store = client.getStore(value);
+		CompletableFuture<V> result = new CompletableFuture<V>();
+		if (store == null) {
+			result.completeExceptionally(new RuntimeException(String.format("Tried to %s a value through a non-booted client", op.name().toLowerCase())));
+			return result;
+		}
+		Lane lane;
+		synchronized (lanes) {
+			if (version > topologyVersion) {
+				lanes.clear();
+				topologyVersion = version;
+			}
+			lane = lanes.get(store);
+			if (lane == null) {
+				lane = new Lane();
+				lanes.put(store, lane);
+			}
+		}
+		try {
+			if (lane.submit(new Request(op, value, result)))
+				operations.incrementAndGet();
+			else {
+				rejected.incrementAndGet();
+				result.completeExceptionally(new RejectedExecutionException(String.format("Queue of %s is full", store)));
+			}
+		} catch (RejectedExecutionException e) {
+			result.completeExceptionally(new RuntimeException("Tried to use a closed client"));
+		}
+		return result;
+	}
+
+
+	/**
+	 * Add a value to the OR-set.
+	 */
+	public CompletableFuture<Void> add(String value) {
+		return submit(Op.ADD, value);
+	}
+
+
+	/**
+	 * Remove a value from the OR-set.
+	 */
+	public CompletableFuture<Void> remove(String value) {
+		return submit(Op.REMOVE, value);
+	}
+
+
+	/**
+	 * Search for a value in the OR-set.
+	 */
+	public CompletableFuture<Boolean> lookup(String value) {
+		return submit(Op.LOOKUP, value);
+	}
+
+
+	/**
+	 * Pull all updates from a remote cluster in the background.
+	 * @see Client#pullUpdates(String, int)
+	 */
+	public CompletableFuture<UpdateStats> pullUpdates(final String clusterID, final int numThreads) {
+		return CompletableFuture.supplyAsync(new Supplier<UpdateStats>() {
+			@Override
+			public UpdateStats get() {
+				return client.pullUpdates(clusterID, numThreads);
+			}
+		}, executor);
+	}
+
+	public CompletableFuture<UpdateStats> pullUpdates(String clusterID) {
+		return pullUpdates(clusterID, 1);
+	}
+
+
+	/**
+	 * Get the counters of the client.
+	 */
+	public AsyncStats getStats() {
+		AsyncStats stats = new AsyncStats();
+		stats.operations = operations.get();
+		stats.rejected = rejected.get();
+		stats.batches = batches.get();
+		return stats;
+	}
+
+
+	/**
+	 * Wait for the operations in flight to complete and stop. The underlying client is not closed.
+	 */
+	public void close() throws InterruptedException {
+		executor.shutdown();
+		while (!executor.awaitTermination(60, TimeUnit.SECONDS));
+	}
+}
@@ -0,0 +1,19 @@
+package de.oneandone.eventtracker.CRDT.ORset;
+
+/**
+ * Snapshot of the counters of an asynchronous client.
+ */
+public class AsyncStats {
+	public long operations = 0;			// Operations queued.
+	public long rejected = 0;			// Operations failed because the queue of their store was full.
+	public long batches = 0;			// Batches sent to the stores.
+	
+	public double getAverageBatchSize() {
+		return batches > 0 ? (double) operations / batches : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("operations=%d rejected=%d batches=%d avg batch size=%.2f", operations, rejected, batches, getAverageBatchSize());
+	}
+}
@@ -0,0 +1,23 @@
+package de.oneandone.eventtracker.CRDT.ORset;
+
+/**
+ * Snapshot of the counters of a lookup cache.
+ */
+public class CacheStats {
+	public int size = 0;				// Cached results.
+	public long hits = 0;				// Lookups answered by the cache.
+	public long misses = 0;				// Lookups which read the stores.
+	public long evictions = 0;			// Results evicted to make room for newer ones.
+	public long expirations = 0;		// Results evicted because they were older than the TTL.
+	public long invalidations = 0;		// Results dropped because their value was updated.
+	
+	public double getHitRatio() {
+		return hits + misses > 0 ? (double) hits / (hits + misses) : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("size=%d hits=%d misses=%d hit ratio=%.2f evictions=%d expirations=%d invalidations=%d", 
+				size, hits, misses, getHitRatio(), evictions, expirations, invalidations);
+	}
+}
@@ -1,13 +1,32 @@
 package de.oneandone.eventtracker.CRDT.ORset;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import de.oneandone.eventtracker.CRDT.Hashing.HashFunction;
 import de.oneandone.eventtracker.CRDT.Hashing.ModuloHashFunction;
@@ -21,8 +40,38 @@ import de.oneandone.eventtracker.CRDT.Hashing.ModuloHashFunction;
 public class Client<T extends Store> {
 	private Class<T> clazz;
 	private String rc = null;
-	private HashMap<String, HashMap<String, T>> stores = new HashMap<String, HashMap<String, T>>();
-	private HashFunction<T> hash = new ModuloHashFunction<T>();
+	private volatile HashMap<String, HashMap<String, T>> stores = new HashMap<String, HashMap<String, T>>();	// Replaced as a whole by updateTopology().
+	private volatile Topology topology = null;
+	private volatile HashFunction<T> hash = new ModuloHashFunction<T>();
+	private volatile HashFunction<T> previousHash = null;		// Distribution before the last change of topology, while migrating.
+	private Migration migration = null;
+	private int pullPageSize = 1000;
+	private int pullQueuedPages = 16;
+	private int pullMaxAttempts = 5;
+	private long pullRetryDelay = 100;
+	private long pullRetryMaxDelay = 5000;
+	private boolean deltaSync = false;
+	private volatile LookupCache lookupCache = null;
+	private volatile int lookupFilterCapacity = 0;
+	private volatile long lookupFilterMaxAge = 0;
+	private ScheduledExecutorService lookupFilterRefresh = null;
+	private SyncExecutor syncExecutorType = SyncExecutor.FIXED;
+	private int syncThreads = 16;
+	private ExecutorService syncExecutor = null;
+	private ScheduledExecutorService antiEntropy = null;
+	private HashMap<String, AntiEntropy> antiEntropyTasks = new HashMap<String, AntiEntropy>();
+	private ScheduledExecutorService tombstoneGC = null;
+	private ScheduledExecutorService topologyWatch = null;
+	private final AtomicLong purgedTombstones = new AtomicLong();
+	
+	/**
+	 * Kinds of executors running the fetching of updates during pulls.
+	 */
+	public static enum SyncExecutor {
+		FIXED,				// Fixed number of threads.
+		FORK_JOIN,			// Work-stealing pool with the given parallelism.
+		THREAD_PER_TASK		// A thread per task, idle threads being reused for 60s.
+	}
 	
 	public Client(Class<T> clazz) {
 		this.clazz = clazz;
@@ -49,6 +98,8 @@ public class Client<T extends Store> {
 			T bootStore = clazz.getConstructor(InetSocketAddress.class).newInstance(bootstrap);
 			Topology topology = bootStore.getTopology();
 			bootStore.close();
+			Replicas.register(topology);
+			this.topology = topology;
 			// Create store clients for each store in topology.
 			for (String rc : topology.getClusterIDs()) {
 				HashMap<String, T> cluster = new HashMap<String, T>();
@@ -60,8 +111,10 @@ public class Client<T extends Store> {
 						this.rc = rc;
 				}
 				this.stores.put(rc, cluster);
-				if (rc.equals(this.rc))
-					hash.add(cluster.values());
+			}
+			if (this.rc != null) {
+				for (T store : stores.get(this.rc).values())
+					hash.add(store, topology.getWeight(this.rc, store.getStoreID()));
 			}
 		} catch (Exception e) {
 			throw new RuntimeException(e.getMessage());
@@ -71,12 +124,136 @@ public class Client<T extends Store> {
 	}
 	
 	
+	/**
+	 * Set the function distributing the values to the stores of the cluster, a ModuloHashFunction by default.
+	 * A ConsistentHashFunction moves only the values of the stores which join or leave on a change of topology,
+	 * instead of most values, and should be set by all clients of the cluster before changing it.
+	 * If the client is booted, the stores of its cluster are added to the function, with their weights.
+	 */
+	public void setHashFunction(HashFunction<T> hash) {
+		if (rc != null) {
+			for (T store : stores.get(rc).values())
+				hash.add(store, topology.getWeight(rc, store.getStoreID()));
+		}
+		this.hash = hash;
+	}
+	
+	
+	/**
+	 * Set a near cache of lookup results, disabled by default. Results are dropped when their value is added or removed
+	 * through this client or updated by a pull, and expire after the TTL otherwise, which bounds how long an update
+	 * made through another client of the cluster may go unseen.
+	 * @param capacity	Maximum number of cached results, 0 to disable the cache.
+	 * @param ttl		Time after which a result expires, in milliseconds.
+	 */
+	public void setLookupCache(int capacity, long ttl) {
+		lookupCache = capacity > 0 ? new LookupCache(capacity, ttl) : null;
+	}
+	
+	
+	/**
+	 * Get the counters of the near cache of lookup results.
+	 * @return	The counters or null if the cache is disabled.
+	 */
+	public CacheStats getLookupCacheStats() {
+		final LookupCache cache = lookupCache;
+		return cache != null ? cache.getStats() : null;
+	}
+	
+	
+	/**
+	 * Keep a filter of the values of each store of the cluster, so that lookups of values which were never added
+	 * are answered without reaching the stores which support it (see Store.setLookupFilter()). The filters are
+	 * rebuilt from the stores periodically, to pick up the values added through other clients: a value added 
+	 * through another client may be missed by the lookups of this client for up to two refresh intervals. 
+	 * A filter which was not rebuilt for longer, e.g. because its store is unreachable, no longer answers lookups.
+	 * @param capacity			Expected number of values per store, 0 to drop the filters.
+	 * @param refreshInterval	Interval between two rebuilds, in milliseconds.
+	 */
+	public synchronized void setLookupFilter(int capacity, long refreshInterval) throws RuntimeException {
+		if (capacity > 0 && refreshInterval <= 0)
+			throw new RuntimeException("A lookup filter needs a refresh interval");
+		stopLookupFilterRefresh();
+		lookupFilterCapacity = capacity;
+		lookupFilterMaxAge = 2 * refreshInterval;
+		if (rc != null) {
+			for (T store : stores.get(rc).values()) {
+				try {
+					store.setLookupFilter(capacity, lookupFilterMaxAge);
+				} catch (Exception e) {
+					throw new RuntimeException(String.format("%s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
+				}
+			}
+		}
+		if (capacity <= 0)
+			return;
+		lookupFilterRefresh = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "orset-lookup-filter");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		lookupFilterRefresh.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for (T store : stores.get(rc).values()) {
+					try {
+						store.refreshLookupFilter();
+					} catch (Exception e) {
+						System.err.println(String.format("Error while refreshing the lookup filter: %s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
+					}
+				}
+			}
+		}, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	private synchronized void stopLookupFilterRefresh() {
+		if (lookupFilterRefresh != null) {
+			lookupFilterRefresh.shutdown();
+			lookupFilterRefresh = null;
+		}
+	}
+	
+	
+	/**
+	 * Drop the cached lookup results of values updated in the stores.
+	 */
+	void invalidateLookups(Collection<String> values) {
+		final LookupCache cache = lookupCache;
+		if (cache == null)
+			return;
+		for (String value : values)
+			cache.invalidate(value);
+	}
+	
+	
+	private <U> void invalidateLookups(Sync<T, U> sync, List<U> updates) {
+		final LookupCache cache = lookupCache;
+		if (cache == null)
+			return;
+		for (U u : updates)
+			cache.invalidate(sync.getValue(u));
+	}
+	
+	
 	/**
 	 * Get the corresponding store which hashes the value.
 	 */
 	public T getStore(String value) {
 		return hash.get(value);
 	}
+	
+	
+	/**
+	 * Get the version of the current topology, 0 before boot.
+	 */
+	long getTopologyVersion() {
+		final Topology current = topology;
+		return current == null ? 0 : current.getVersion();
+	}
 
 	/**
 	 * Set whether to check if the stores are online or not before any operation (for testing).
@@ -102,6 +279,8 @@ public class Client<T extends Store> {
 			store.add(value);
 		} catch (Exception e) {
 			throw new RuntimeException(String.format("%s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
+		} finally {
+			invalidateLookup(value);
 		}
 	}
 	
@@ -114,33 +293,250 @@ public class Client<T extends Store> {
 		if (store == null) {
 			throw new RuntimeException("Tried to remove a value through a non-booted client");
 		}
+		// While migrating, tags of the value may still be in its old store only.
+		T old = getPreviousStore(value, store);
+		if (old != null) {
+			try {
+				old.remove(value);
+			} catch (Exception e) {
+				invalidateLookup(value);
+				throw new RuntimeException(String.format("%s:%s: %s", old.getClusterID(), old.getStoreID(), e.getMessage()));
+			}
+		}
 		try {
 			store.remove(value);
 		} catch (Exception e) {
 			throw new RuntimeException(String.format("%s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
+		} finally {
+			invalidateLookup(value);
 		}
 	}
 	
 
+	private void invalidateLookup(String value) {
+		final LookupCache cache = lookupCache;
+		if (cache != null)
+			cache.invalidate(value);
+	}
+	
+
 	/**
-	 * Search for a value in the OR-set.
+	 * Search for a value in the OR-set, in the near cache first if enabled (see setLookupCache()).
 	 */
 	public boolean lookup(String value) throws RuntimeException {
+		final LookupCache cache = lookupCache;
+		if (cache == null)
+			return lookupStores(value);
+		final Boolean cached = cache.get(value);
+		if (cached != null)
+			return cached;
+		final long stamp = cache.stamp(value);
+		final boolean found = lookupStores(value);
+		cache.put(value, found, stamp);
+		return found;
+	}
+	
+	
+	private boolean lookupStores(String value) throws RuntimeException {
 		T store = hash.get(value);
 		if (store == null) {
 			throw new RuntimeException("Tried to lookup a value through a non-booted client");
 		}
 		try {
-			return store.lookup(value);
+			if (store.lookup(value))
+				return true;
 		} catch (Exception e) {
 			throw new RuntimeException(String.format("%s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
 		}
+		// While migrating, the value may not be copied to its new store yet.
+		T old = getPreviousStore(value, store);
+		if (old == null)
+			return false;
+		try {
+			return old.lookup(value);
+		} catch (Exception e) {
+			throw new RuntimeException(String.format("%s:%s: %s", old.getClusterID(), old.getStoreID(), e.getMessage()));
+		}
+	}
+	
+	
+	/**
+	 * Get the store which hashed a value before the last change of topology, while its tuples are migrated.
+	 * @return	The old store or null if not migrating or if the value did not move.
+	 */
+	private T getPreviousStore(String value, T store) {
+		final HashFunction<T> previous = previousHash;
+		if (previous == null)
+			return null;
+		final T old = previous.get(value);
+		return old == store ? null : old;
+	}
+	
+	
+	/**
+	 * Group the values which moved to another store by the store which hashed them before the last change of topology.
+	 */
+	private LinkedHashMap<T, ArrayList<String>> groupByPreviousStore(Collection<String> values) {
+		LinkedHashMap<T, ArrayList<String>> groups = new LinkedHashMap<T, ArrayList<String>>();
+		final HashFunction<T> previous = previousHash;
+		if (previous == null)
+			return groups;
+		for (String value : values) {
+			T old = previous.get(value);
+			if (old == null || old == hash.get(value))
+				continue;
+			ArrayList<String> group = groups.get(old);
+			if (group == null) {
+				group = new ArrayList<String>();
+				groups.put(old, group);
+			}
+			group.add(value);
+		}
+		return groups;
+	}
+
+	/**
+	 * Group values by the store which hashes them.
+	 */
+	private LinkedHashMap<T, ArrayList<String>> groupByStore(Collection<String> values, String operation) throws RuntimeException {
+		LinkedHashMap<T, ArrayList<String>> groups = new LinkedHashMap<T, ArrayList<String>>();
+		for (String value : values) {
+			T store = hash.get(value);
+			if (store == null) {
+				throw new RuntimeException(String.format("Tried to %s values through a non-booted client", operation));
+			}
+			ArrayList<String> group = groups.get(store);
+			if (group == null) {
+				group = new ArrayList<String>();
+				groups.put(store, group);
+			}
+			group.add(value);
+		}
+		return groups;
+	}
+	
+	
+	/**
+	 * Add a batch of values to the OR-set. Values are grouped by store and each group is sent as one batch.
+	 * All groups are tried even if some of them fail.
+	 */
+	public void addAll(Collection<String> values) throws RuntimeException {
+		StringBuilder errors = new StringBuilder();
+		for (Map.Entry<T, ArrayList<String>> group : groupByStore(values, "add").entrySet()) {
+			T store = group.getKey();
+			try {
+				store.addAll(group.getValue());
+			} catch (Exception e) {
+				errors.append(String.format("%s:%s: %s\n", store.getClusterID(), store.getStoreID(), e.getMessage()));
+			}
+		}
+		invalidateLookups(values);
+		if (errors.length() > 0)
+			throw new RuntimeException(errors.toString());
+	}
+	
+	
+	/**
+	 * Remove a batch of values from the OR-set. Values are grouped by store and each group is sent as one batch.
+	 * All groups are tried even if some of them fail.
+	 */
+	public void removeAll(Collection<String> values) throws RuntimeException {
+		StringBuilder errors = new StringBuilder();
+		LinkedHashMap<T, ArrayList<String>> groups = groupByStore(values, "remove");
+		// While migrating, tags of the values may still be in their old stores only.
+		for (Map.Entry<T, ArrayList<String>> group : groupByPreviousStore(values).entrySet()) {
+			T store = group.getKey();
+			try {
+				store.removeAll(group.getValue());
+			} catch (Exception e) {
+				errors.append(String.format("%s:%s: %s\n", store.getClusterID(), store.getStoreID(), e.getMessage()));
+			}
+		}
+		for (Map.Entry<T, ArrayList<String>> group : groups.entrySet()) {
+			T store = group.getKey();
+			try {
+				store.removeAll(group.getValue());
+			} catch (Exception e) {
+				errors.append(String.format("%s:%s: %s\n", store.getClusterID(), store.getStoreID(), e.getMessage()));
+			}
+		}
+		invalidateLookups(values);
+		if (errors.length() > 0)
+			throw new RuntimeException(errors.toString());
+	}
+	
+	
+	/**
+	 * Search for a batch of values in the OR-set. Values are grouped by store and each group is sent as one batch.
+	 * Values found in the near cache, if enabled, are not sent.
+	 * @return	Whether each value was found.
+	 */
+	public Map<String, Boolean> lookupAll(Collection<String> values) throws RuntimeException {
+		final LookupCache cache = lookupCache;
+		if (cache == null)
+			return lookupAllStores(values);
+		HashMap<String, Boolean> result = new HashMap<String, Boolean>();
+		ArrayList<String> missing = new ArrayList<String>();
+		HashMap<String, Long> stamps = new HashMap<String, Long>();
+		for (String value : values) {
+			final Boolean cached = cache.get(value);
+			if (cached != null) {
+				result.put(value, cached);
+			} else if (!stamps.containsKey(value)) {
+				stamps.put(value, cache.stamp(value));
+				missing.add(value);
+			}
+		}
+		if (missing.isEmpty())
+			return result;
+		for (Map.Entry<String, Boolean> entry : lookupAllStores(missing).entrySet()) {
+			cache.put(entry.getKey(), entry.getValue(), stamps.get(entry.getKey()));
+			result.put(entry.getKey(), entry.getValue());
+		}
+		return result;
+	}
+	
+	
+	private Map<String, Boolean> lookupAllStores(Collection<String> values) throws RuntimeException {
+		HashMap<String, Boolean> result = new HashMap<String, Boolean>();
+		for (Map.Entry<T, ArrayList<String>> group : groupByStore(values, "lookup").entrySet()) {
+			T store = group.getKey();
+			try {
+				boolean[] found = store.lookupAll(group.getValue());
+				for (int i = 0; i < found.length; ++i)
+					result.put(group.getValue().get(i), found[i]);
+			} catch (Exception e) {
+				throw new RuntimeException(String.format("%s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
+			}
+		}
+		// While migrating, the values not found may not be copied to their new stores yet.
+		if (previousHash != null) {
+			ArrayList<String> missing = new ArrayList<String>();
+			for (Map.Entry<String, Boolean> entry : result.entrySet()) {
+				if (!entry.getValue())
+					missing.add(entry.getKey());
+			}
+			for (Map.Entry<T, ArrayList<String>> group : groupByPreviousStore(missing).entrySet()) {
+				T store = group.getKey();
+				try {
+					boolean[] found = store.lookupAll(group.getValue());
+					for (int i = 0; i < found.length; ++i)
+						result.put(group.getValue().get(i), found[i]);
+				} catch (Exception e) {
+					throw new RuntimeException(String.format("%s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
+				}
+			}
+		}
+		return result;
 	}
 
 	/**
 	 * Empty the DB of all stores in the current cluster.
 	 */
 	public void clear() throws RuntimeException {
+		final LookupCache cache = lookupCache;
+		if (cache != null)
+			cache.clear();
 		if (stores.get(rc) != null) {
 			for (T store : stores.get(rc).values()) {
 				try {
@@ -156,6 +552,11 @@ public class Client<T extends Store> {
 	 * Disconnect the client from all stores.
 	 */
 	public void close() throws RuntimeException {
+		stopAntiEntropy();
+		stopTombstoneGC();
+		stopTopologyWatch();
+		stopLookupFilterRefresh();
+		stopMigration();
 		for (String rc : stores.keySet()) {
 			for (T store : stores.get(rc).values()) {
 				try {
@@ -167,6 +568,87 @@ public class Client<T extends Store> {
 		}
 		stores.clear();
 		rc = null;
+		synchronized (this) {
+			if (syncExecutor != null) {
+				syncExecutor.shutdownNow();
+				syncExecutor = null;
+			}
+		}
+	}
+	
+	
+	/**
+	 * Set the executor shared by all pulls of this client. The current executor, if any, is shut down
+	 * after its running pulls complete.
+	 * @param type			Kind of executor.
+	 * @param numThreads	Number of threads (FIXED) or parallelism (FORK_JOIN). Ignored for THREAD_PER_TASK.
+	 */
+	public synchronized void setSyncExecutor(SyncExecutor type, int numThreads) {
+		if (syncExecutor != null) {
+			syncExecutor.shutdown();
+			syncExecutor = null;
+		}
+		syncExecutorType = type;
+		syncThreads = numThreads;
+	}
+	
+	
+	private synchronized ExecutorService getSyncExecutor() {
+		if (syncExecutor == null) {
+			final ThreadFactory threadFactory = new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, String.format("orset-sync-%d", count.incrementAndGet()));
+					t.setDaemon(true);
+					return t;
+				}
+			};
+			switch (syncExecutorType) {
+			case FIXED:
+				syncExecutor = Executors.newFixedThreadPool(syncThreads, threadFactory);
+				break;
+			case FORK_JOIN:
+				syncExecutor = new ForkJoinPool(syncThreads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+					@Override
+					public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+						ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+						t.setDaemon(true);
+						return t;
+					}
+				}, null, false);
+				break;
+			case THREAD_PER_TASK:
+				syncExecutor = Executors.newCachedThreadPool(threadFactory);
+				break;
+			}
+		}
+		return syncExecutor;
+	}
+	
+	
+	/**
+	 * Get the current state of the sync executor.
+	 */
+	public synchronized ExecutorStats getSyncExecutorStats() {
+		ExecutorStats stats = new ExecutorStats();
+		stats.type = syncExecutorType;
+		if (syncExecutor instanceof ThreadPoolExecutor) {
+			ThreadPoolExecutor executor = (ThreadPoolExecutor) syncExecutor;
+			stats.poolSize = executor.getPoolSize();
+			stats.activeThreads = executor.getActiveCount();
+			stats.queuedTasks = executor.getQueue().size();
+			stats.completedTasks = executor.getCompletedTaskCount();
+		}
+		else if (syncExecutor instanceof ForkJoinPool) {
+			ForkJoinPool executor = (ForkJoinPool) syncExecutor;
+			stats.poolSize = executor.getPoolSize();
+			stats.activeThreads = executor.getActiveThreadCount();
+			stats.queuedTasks = executor.getQueuedSubmissionCount() + executor.getQueuedTaskCount();
+			stats.completedTasks = -1;
+		}
+		return stats;
 	}
 	
 	class UpdateState {
@@ -190,18 +672,17 @@ public class Client<T extends Store> {
 		// Compute the common timestamps.
 		result.timestamps = timestamps.removeFirst();
 		for (String rc : stores.keySet()) {
+			final boolean local = rc.equals(clusterID);
 			for (String rs : stores.get(rc).keySet()) {
-				if (!timestamps.isEmpty()) {
-					for (Timestamps t : timestamps) {
-						if (rc.equals(clusterID))
-							result.timestamps.set(rc, rs, Math.max(result.timestamps.get(rc, rs), t.get(rc, rs)));
-						else
-							result.timestamps.set(rc, rs, Math.min(result.timestamps.get(rc, rs), t.get(rc, rs)));
-					}
-				}
-				else {
-					result.timestamps.set(rc, rs, Math.max(result.timestamps.get(rc, rs), 0));
+				final int replica = Replicas.ordinal(rc, rs);
+				long t = result.timestamps.get(replica);
+				for (Timestamps other : timestamps) {
+					if (local)
+						t = Math.max(t, other.get(replica));
+					else
+						t = Math.min(t, other.get(replica));
 				}
+				result.timestamps.set(replica, t);
 			}
 		}
 		
@@ -209,103 +690,1050 @@ public class Client<T extends Store> {
 	}
 
 	
+	/**
+	 * A page of updates fetched from a remote store, or the end of the stream of a remote store.
+	 */
+	private class Page<U> {
+		final T source;
+		final List<U> updates;
+		final boolean last;
+		final Exception error;
+		
+		Page(T source, List<U> updates, boolean last, Exception error) {
+			this.source = source;
+			this.updates = updates;
+			this.last = last;
+			this.error = error;
+		}
+	}
+	
+	
+	/**
+	 * Form in which updates are fetched from the remote stores and added to the local ones.
+	 * @param <T>	Type of DB store.
+	 * @param <U>	Type of an update.
+	 */
+	private interface Sync<T, U> {
+		void fetch(T source, Timestamps timestamps, int pageSize, PageHandler<U> handler) throws Exception;
+		void add(T store, List<U> updates, Timestamps timestamps) throws Exception;
+		String getValue(U update);
+		int getReplica(U update);		// Ordinal of the store which last updated the tag.
+		long getTimestamp(U update);	// Timestamp of the last update of the tag in that store.
+	}
+	
+	private interface PageHandler<U> {
+		void handle(List<U> updates) throws Exception;
+	}
+	
+	/**
+	 * Updates sent as whole tuples, one per tag.
+	 */
+	private class ElementSync implements Sync<T, Element> {
+		@Override
+		public void fetch(T source, Timestamps timestamps, int pageSize, final PageHandler<Element> handler) throws Exception {
+			source.getUpdates(timestamps, pageSize, new Store.UpdateHandler() {
+				@Override
+				public void handle(List<Element> updates) throws Exception {
+					handler.handle(updates);
+				}
+			});
+		}
+		
+		@Override
+		public void add(T store, List<Element> updates, Timestamps timestamps) throws Exception {
+			if (timestamps == null)
+				store.addUpdates(updates);
+			else
+				store.addUpdates(updates, timestamps);
+		}
+		
+		@Override
+		public String getValue(Element update) {
+			return update.value;
+		}
+		
+		@Override
+		public int getReplica(Element update) {
+			return update.isRemoved() ? update.removed : update.added;
+		}
+		
+		@Override
+		public long getTimestamp(Element update) {
+			return update.isRemoved() ? update.removed_t : update.added_t;
+		}
+	}
+	
+	/**
+	 * Updates sent as deltas, see Delta.
+	 */
+	private class DeltaSync implements Sync<T, Delta> {
+		@Override
+		public void fetch(T source, Timestamps timestamps, int pageSize, final PageHandler<Delta> handler) throws Exception {
+			source.getDeltas(timestamps, pageSize, new Store.DeltaHandler() {
+				@Override
+				public void handle(List<Delta> deltas) throws Exception {
+					handler.handle(deltas);
+				}
+			});
+		}
+		
+		@Override
+		public void add(T store, List<Delta> updates, Timestamps timestamps) throws Exception {
+			store.addDeltas(updates, timestamps);
+		}
+		
+		@Override
+		public String getValue(Delta update) {
+			return update.value;
+		}
+		
+		@Override
+		public int getReplica(Delta update) {
+			return update.getReplica();
+		}
+		
+		@Override
+		public long getTimestamp(Delta update) {
+			return update.getTimestamp();
+		}
+	}
+	
+	
+	/**
+	 * Set whether pulls send updates as deltas (see Delta) instead of whole tuples.
+	 */
+	public void setDeltaSync(boolean deltaSync) {
+		this.deltaSync = deltaSync;
+	}
+	
+	
+	/**
+	 * Set how updates are streamed while pulling.
+	 * @param pageSize		Number of updates fetched from a remote store at a time.
+	 * @param queuedPages	Maximum number of fetched pages waiting to be added to the local stores.
+	 */
+	public void setPullPaging(int pageSize, int queuedPages) {
+		this.pullPageSize = pageSize;
+		this.pullQueuedPages = queuedPages;
+	}
+	
+	
+	/**
+	 * Set how fetching the updates of a remote store is retried while pulling.
+	 * The n-th retry waits a random time between d/2 and d, with d = min(maxDelay, delay * 2^(n-1)), and 
+	 * resumes after the updates already received from the store.
+	 * @param maxAttempts	Maximum number of attempts per remote store and pull.
+	 * @param delay			Delay before the first retry, in milliseconds.
+	 * @param maxDelay		Maximum delay between two attempts, in milliseconds.
+	 */
+	public void setPullRetry(int maxAttempts, long delay, long maxDelay) {
+		this.pullMaxAttempts = maxAttempts;
+		this.pullRetryDelay = delay;
+		this.pullRetryMaxDelay = maxDelay;
+	}
+	
+	
+	private long getRetryDelay(int attempts) {
+		final long delay = Math.min(pullRetryMaxDelay, pullRetryDelay << Math.min(attempts - 1, 20));
+		return delay / 2 + (long) (Math.random() * (delay - delay / 2));
+	}
+	
+	
+	/**
+	 * Fetching of the updates of a remote store, with the timestamps up to which its updates were received.
+	 * Updates of the same store come in increasing timestamp order (see Store.getUpdates()), so an attempt
+	 * can resume after the last page received by the previous one.
+	 */
+	private class Fetch implements Delayed {
+		final T source;
+		final Timestamps progress;
+		int attempts = 0;
+		long readyTime = System.nanoTime();		// The fetch is not tried again before this time.
+		
+		Fetch(T source, Timestamps timestamps) {
+			this.source = source;
+			this.progress = new Timestamps(timestamps);
+		}
+		
+		<U> void advance(Sync<T, U> sync, List<U> updates) {
+			for (U u : updates) {
+				final int replica = sync.getReplica(u);
+				progress.set(replica, Math.max(progress.get(replica), sync.getTimestamp(u)));
+			}
+		}
+		
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(readyTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		
+		@Override
+		public int compareTo(Delayed other) {
+			return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+		}
+	}
+	
+	
+	/**
+	 * Stream the updates of the given remote stores into the local stores.
+	 * Remote stores are read on the sync executor and their pages are routed and added on the calling thread, 
+	 * with a bounded queue in between so that fetching cannot run ahead of adding. A remote store which fails 
+	 * is retried with backoff, from its last received page, up to pullMaxAttempts times.
+	 * @param pending	Updates routed to each online local store and not added yet. They are added a page at a time.
+	 * @param failed	Local stores which failed to add updates. Updates are not added to them any more.
+	 * @return			Remote stores whose updates could not all be fetched.
+	 */
+	private <U> LinkedList<T> streamUpdates(final Sync<T, U> sync, List<T> sources, int numThreads, final Timestamps timestamps, 
+			Map<T, ArrayList<U>> pending, Set<T> failed, UpdateStats stats) {
+		final BlockingQueue<Page<U>> queue = new ArrayBlockingQueue<Page<U>>(pullQueuedPages);
+		final DelayQueue<Fetch> todo = new DelayQueue<Fetch>();
+		for (T source : sources)
+			todo.add(new Fetch(source, timestamps));
+		final AtomicInteger unfinished = new AtomicInteger(sources.size());
+		final AtomicBoolean cancelled = new AtomicBoolean(false);
+		final int maxAttempts = pullMaxAttempts;
+		// At most numThreads workers, each one fetching remote stores until none is left.
+		LinkedList<Future<?>> workers = new LinkedList<Future<?>>();
+		ExecutorService executor = getSyncExecutor();
+		for (int i = 0; i < Math.max(1, Math.min(numThreads, sources.size())); ++i) {
+			workers.add(executor.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (!cancelled.get() && unfinished.get() > 0) {
+							final Fetch fetch = todo.poll(100, TimeUnit.MILLISECONDS);
+							if (fetch == null)
+								continue;
+							++fetch.attempts;
+							Exception error = null;
+							try {
+								sync.fetch(fetch.source, new Timestamps(fetch.progress), pullPageSize, new PageHandler<U>() {
+									@Override
+									public void handle(List<U> updates) throws Exception {
+										queue.put(new Page<U>(fetch.source, updates, false, null));
+										fetch.advance(sync, updates);
+									}
+								});
+							} catch (InterruptedException e) {
+								throw e;
+							} catch (Exception e) {
+								error = e;
+							}
+							if (error == null || fetch.attempts >= maxAttempts) {
+								queue.put(new Page<U>(fetch.source, null, true, error));
+								unfinished.decrementAndGet();
+							}
+							else {
+								queue.put(new Page<U>(fetch.source, null, false, error));
+								fetch.readyTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getRetryDelay(fetch.attempts));
+								todo.add(fetch);
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}));
+		}
+		
+		LinkedList<T> unfetched = new LinkedList<T>();
+		for (int remaining = sources.size(); remaining > 0; ) {
+			Page<U> page;
+			try {
+				page = queue.take();
+			} catch (InterruptedException e) {
+				cancelled.set(true);
+				for (Future<?> worker : workers)
+					worker.cancel(true);
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while pulling updates");
+			}
+			if (page.last) {
+				--remaining;
+				if (page.error != null) {
+					System.err.println(String.format("Error while fetching updates, giving up: %s:%s: %s", 
+							page.source.getClusterID(), page.source.getStoreID(), page.error.getMessage()));
+					if (!unfetched.contains(page.source))
+						unfetched.add(page.source);
+				}
+				else {
+					stats.getUpdateIDs += page.source.updateStats.getUpdateIDs;
+					stats.getUpdateElements += page.source.updateStats.getUpdateElements;
+				}
+				continue;
+			}
+			if (page.error != null) {
+				System.err.println(String.format("Error while fetching updates, retrying: %s:%s: %s", 
+						page.source.getClusterID(), page.source.getStoreID(), page.error.getMessage()));
+				++stats.retries;
+				continue;
+			}
+			
+			stats.numUpdates += page.updates.size();
+			
+			// Distribute the page to the corresponding local stores and add a full page to each of them.
+			for (U u : page.updates) {
+				T store = hash.get(sync.getValue(u));
+				ArrayList<U> updatesForStore = pending.get(store);
+				if (updatesForStore == null || failed.contains(store))
+					continue;
+				updatesForStore.add(u);
+				if (updatesForStore.size() < pullPageSize)
+					continue;
+				try {
+					sync.add(store, updatesForStore, null);
+					stats.addUpdateElements += store.updateStats.addUpdateElements;
+				} catch (Exception e) {
+					System.err.println(String.format("Error while adding updates: %s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
+					failed.add(store);
+				}
+				invalidateLookups(sync, updatesForStore);
+				updatesForStore.clear();
+			}
+		}
+		return unfetched;
+	}
+	
+	
 	/**
 	 * Pull all updates from a remote cluster and distribute them to the local cluster.
+	 * Updates are streamed page by page from the remote stores to the local ones. The timestamps of a
+	 * local store are only advanced once all pages of all remote stores were added to it.
 	 * @param clusterID	ID of the remote cluster.
-	 * @param numThreads Number of threads in the thread pool for fetching and inserting updates. Each thread will process one store.
+	 * @param numThreads Maximum number of remote stores fetched at the same time, on the sync executor of the client.
 	 */
 	public UpdateStats pullUpdates(String clusterID, int numThreads) {
 		if (rc.equals(clusterID))
 			return null;
 
-		UpdateStats stats = new UpdateStats();
-		
 		// Get update states for local and remote clusters.
 		final UpdateState local = getUpdateState(rc);
-		UpdateState remote;
-		boolean error;
-		LinkedList<Element> updates;
-		
-		do {
-			error = false;
-			remote = getUpdateState(clusterID);
-			updates = new LinkedList<Element>();
-			stats.getUpdateIDs = stats.getUpdateElements = 0;
-			ExecutorService pool = Executors.newFixedThreadPool(numThreads);
-			class FutureResult {
-				public List<Element> updates;
-				public UpdateStats stats;
-			}
-			LinkedList<Future<FutureResult>> futures = new LinkedList<Future<FutureResult>>();
-			for (final T store : remote.stores) {
-				futures.add(pool.submit(new Callable<FutureResult>() {
-					@Override
-					public FutureResult call() throws Exception {
-						FutureResult result = new FutureResult();
-						result.updates = store.getUpdates(local.timestamps);
-						result.stats = store.updateStats;
-						return result;
+		final UpdateState remote = getUpdateState(clusterID);
+		return pullUpdates(local, remote, numThreads);
+	}
+	
+	
+	private UpdateStats pullUpdates(UpdateState local, UpdateState remote, int numThreads) {
+		if (deltaSync)
+			return pullUpdates(new DeltaSync(), local, remote, numThreads);
+		return pullUpdates(new ElementSync(), local, remote, numThreads);
+	}
+	
+	
+	private <U> UpdateStats pullUpdates(Sync<T, U> sync, UpdateState local, UpdateState remote, int numThreads) {
+		UpdateStats stats = new UpdateStats();
+		final HashSet<T> failed = new HashSet<T>();
+		// Updates routed to each online local store and not added yet.
+		final HashMap<T, ArrayList<U>> pending = new HashMap<T, ArrayList<U>>();
+		for (T store : local.stores)
+			pending.put(store, new ArrayList<U>());
+		
+		// Stream updates. Remote stores which fail are retried, adding the same update twice is harmless.
+		final boolean fetched = streamUpdates(sync, remote.stores, numThreads, local.timestamps, pending, failed, stats).isEmpty();
+		stats.getUpdateIDs /= remote.stores.size();
+		stats.getUpdateElements /= remote.stores.size();
+		
+		// Add the remaining updates and update the timestamps together, in the local stores which added all updates.
+		// If some remote store could not be fetched, the updates received are kept but the timestamps are not advanced.
+		stats.complete = fetched && failed.isEmpty() && local.stores.size() == stores.get(rc).size();
+		for (T store : local.stores) {
+			if (failed.contains(store))
+				continue;
+			try {
+				sync.add(store, pending.get(store), fetched ? remote.timestamps : null);
+				stats.addUpdateElements += store.updateStats.addUpdateElements;
+			} catch (Exception e) {
+				System.err.println(String.format("Error while adding updates: %s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
+				stats.complete = false;
+			}
+			invalidateLookups(sync, pending.get(store));
+		}
+		stats.addUpdateElements /= local.stores.size();
+		
+		return stats;
+	}
+	
+	public UpdateStats pullUpdates(String clusterID) {
+		return pullUpdates(clusterID, 1);
+	}
+	
+	
+	/**
+	 * Periodic pull from one remote cluster.
+	 * The interval is halved after a pull which returned at least a page of updates and doubled
+	 * after a pull which returned nothing, a failure, or when the pull was skipped because the local
+	 * cluster already had all updates of the remote one.
+	 */
+	private class AntiEntropy implements Runnable {
+		final String clusterID;
+		final long minInterval;
+		final long maxInterval;
+		final int numThreads;
+		volatile long interval;
+		volatile long inSyncTime = -1;	// Time when the local cluster last had all updates of the remote one.
+		
+		AntiEntropy(String clusterID, long minInterval, long maxInterval, int numThreads) {
+			this.clusterID = clusterID;
+			this.minInterval = minInterval;
+			this.maxInterval = maxInterval;
+			this.numThreads = numThreads;
+			this.interval = minInterval;
+		}
+		
+		@Override
+		public void run() {
+			synchronized (Client.this) {
+				if (antiEntropyTasks.get(clusterID) != this)		// Stopped, the pull was still scheduled.
+					return;
+			}
+			try {
+				final long now = System.currentTimeMillis();
+				final UpdateState remote = getUpdateState(clusterID);
+				final UpdateState local = getUpdateState(rc);
+				if (local.timestamps.dominates(remote.timestamps)) {
+					inSyncTime = now;
+					interval = Math.min(maxInterval, interval * 2);
+				}
+				else {
+					UpdateStats stats = pullUpdates(local, remote, numThreads);
+					if (stats.complete)
+						inSyncTime = now;
+					if (stats.numUpdates >= pullPageSize)
+						interval = Math.max(minInterval, interval / 2);
+					else if (stats.numUpdates == 0)
+						interval = Math.min(maxInterval, interval * 2);
+				}
+			} catch (Exception e) {
+				System.err.println(String.format("Error while pulling updates from %s: %s", clusterID, e.getMessage()));
+				interval = Math.min(maxInterval, interval * 2);
+			}
+			synchronized (Client.this) {
+				if (antiEntropy != null)
+					antiEntropy.schedule(this, interval, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Start pulling periodically from every other cluster of the topology.
+	 * @param minInterval	Minimum interval between two pulls from the same cluster, in milliseconds.
+	 * @param maxInterval	Maximum interval between two pulls from the same cluster, in milliseconds.
+	 * @param numThreads	Maximum number of remote stores fetched at the same time by a pull.
+	 */
+	public synchronized void startAntiEntropy(long minInterval, long maxInterval, int numThreads) {
+		stopAntiEntropy();
+		antiEntropy = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "orset-anti-entropy");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		for (String clusterID : stores.keySet()) {
+			if (clusterID.equals(rc))
+				continue;
+			AntiEntropy task = new AntiEntropy(clusterID, minInterval, maxInterval, numThreads);
+			antiEntropyTasks.put(clusterID, task);
+			antiEntropy.schedule(task, minInterval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	
+	/**
+	 * Stop the periodic pulls. A pull in progress is completed.
+	 */
+	public synchronized void stopAntiEntropy() {
+		if (antiEntropy != null) {
+			antiEntropy.shutdown();
+			antiEntropy = null;
+		}
+		antiEntropyTasks.clear();
+	}
+	
+	
+	/**
+	 * Get the replication lag from a remote cluster, i.e. the time since the local cluster last had all
+	 * updates of the remote one, as seen by the periodic pulls.
+	 * @return	The lag in milliseconds or -1 if the clusters were never seen in sync.
+	 */
+	public synchronized long getReplicationLag(String clusterID) {
+		AntiEntropy task = antiEntropyTasks.get(clusterID);
+		if (task == null || task.inSyncTime < 0)
+			return -1;
+		return System.currentTimeMillis() - task.inSyncTime;
+	}
+	
+	
+	/**
+	 * Get the current interval between the periodic pulls from a remote cluster.
+	 * @return	The interval in milliseconds or -1 if the cluster is not pulled periodically.
+	 */
+	public synchronized long getAntiEntropyInterval(String clusterID) {
+		AntiEntropy task = antiEntropyTasks.get(clusterID);
+		return task == null ? -1 : task.interval;
+	}
+	
+	
+	/**
+	 * Get the timestamps seen by all stores of all clusters, i.e. the minimum of the update states of all clusters.
+	 * @return	The stable timestamps or null if some store is not reachable.
+	 */
+	private Timestamps getStableTimestamps() {
+		Timestamps stable = new Timestamps();
+		boolean first = true;
+		for (String clusterID : stores.keySet()) {
+			UpdateState state;
+			try {
+				state = getUpdateState(clusterID);
+			} catch (NoSuchElementException e) {	// No store of the cluster is reachable.
+				return null;
+			}
+			if (state.stores.size() < stores.get(clusterID).size())
+				return null;
+			// Cells missing from the update state of a cluster read as 0, i.e. nothing seen yet.
+			for (String rc : stores.keySet()) {
+				for (String rs : stores.get(rc).keySet()) {
+					final int replica = Replicas.ordinal(rc, rs);
+					final long t = state.timestamps.get(replica);
+					stable.set(replica, first ? t : Math.min(stable.get(replica), t));
+				}
+			}
+			first = false;
+		}
+		return stable;
+	}
+	
+	
+	/**
+	 * Purge the removed tags of the local stores whose removal was seen by all stores of all clusters.
+	 * Each store is purged batch by batch until nothing is left. Nothing is purged if some store is not reachable.
+	 * @param batchSize	Maximum number of tags purged by one call to a store.
+	 * @return			Number of purged tags.
+	 */
+	public long purgeTombstones(int batchSize) throws RuntimeException {
+		final Timestamps stable = getStableTimestamps();
+		if (stable == null)
+			return 0;
+		long purged = 0;
+		for (T store : stores.get(rc).values()) {
+			try {
+				int n;
+				do {
+					n = store.purgeTombstones(stable, batchSize);
+					purged += n;
+				} while (n >= batchSize);
+			} catch (Exception e) {
+				throw new RuntimeException(String.format("%s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
+			}
+		}
+		purgedTombstones.addAndGet(purged);
+		return purged;
+	}
+	
+	
+	/**
+	 * Start purging tombstones periodically in the background.
+	 * @param interval	Interval between two purges, in milliseconds.
+	 * @param batchSize	Maximum number of tags purged by one call to a store.
+	 */
+	public synchronized void startTombstoneGC(long interval, final int batchSize) {
+		stopTombstoneGC();
+		tombstoneGC = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "orset-tombstone-gc");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		tombstoneGC.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					purgeTombstones(batchSize);
+				} catch (Exception e) {
+					System.err.println(String.format("Error while purging tombstones: %s", e.getMessage()));
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	/**
+	 * Stop the periodic purges. A purge in progress is completed.
+	 */
+	public synchronized void stopTombstoneGC() {
+		if (tombstoneGC != null) {
+			tombstoneGC.shutdown();
+			tombstoneGC = null;
+		}
+	}
+	
+	
+	/**
+	 * Get the number of tags purged by this client so far.
+	 */
+	public long getPurgedTombstones() {
+		return purgedTombstones.get();
+	}
+	
+	
+	/**
+	 * Copy of the tuples of the old stores of the cluster to their new stores, after a change of topology.
+	 * The old stores are read in passes, each one resuming after the updates read by the previous one, 
+	 * until a pass has nothing more to copy, i.e. no tuple which moved was removed meanwhile (see remove()).
+	 * A copied tuple is deleted from its old store unless it was removed meanwhile, in which case the next pass copies it again.
+	 * Stores which joined get the timestamps of the cluster from before the copy, which they now cover, 
+	 * stores which left are closed and the topology is published again as not migrating.
+	 */
+	private class Migration implements Runnable {
+		final List<T> sources;
+		final List<T> joining;
+		final List<T> leaving;
+		final Timestamps seed;
+		final Topology target;
+		final MigrationStats stats = new MigrationStats();		// Guarded by itself.
+		volatile boolean cancelled = false;
+		Thread thread = null;
+		
+		Migration(List<T> sources, List<T> joining, List<T> leaving, Timestamps seed, Topology target) {
+			this.sources = sources;
+			this.joining = joining;
+			this.leaving = leaving;
+			this.seed = seed;
+			this.target = target;
+			stats.running = true;
+			stats.startTime = System.currentTimeMillis();
+		}
+		
+		@Override
+		public void run() {
+			// Stores only stream the updates of the cells which are set, so all stores are read from 0.
+			final HashMap<T, Timestamps> progress = new HashMap<T, Timestamps>();
+			for (T source : sources) {
+				Timestamps read = new Timestamps();
+				for (int replica = 0; replica < Replicas.size(); ++replica)
+					read.set(replica, 0);
+				progress.put(source, read);
+			}
+			int attempts = 0;
+			final long[] moved = new long[1];
+			do {
+				moved[0] = 0;
+				try {
+					for (final T source : sources) {
+						final Timestamps read = progress.get(source);
+						source.getUpdates(new Timestamps(read), pullPageSize, new Store.UpdateHandler() {
+							@Override
+							public void handle(List<Element> updates) throws Exception {
+								moved[0] += copy(source, updates);
+								for (Element e : updates) {
+									final int replica = e.isRemoved() ? e.removed : e.added;
+									read.set(replica, Math.max(read.get(replica), e.isRemoved() ? e.removed_t : e.added_t));
+								}
+							}
+						});
 					}
-				}));
-			}
-			for (Future<FutureResult> future : futures) {
-			    try {
-			    	FutureResult result = future.get();
-					updates.addAll(result.updates);
-					stats.getUpdateIDs += result.stats.getUpdateIDs;
-					stats.getUpdateElements += result.stats.getUpdateElements;
+					synchronized (stats) {
+						++stats.passes;
+					}
+					attempts = 0;
 				} catch (Exception e) {
-					System.err.println("Error while fetching updates: " + e.getMessage());
-					System.err.println("Retrying...");
-					error = true;
+					System.err.println(String.format("Error while migrating tuples, retrying: %s", e.getMessage()));
+					synchronized (stats) {
+						++stats.failures;
+					}
+					moved[0] = 1;	// Pass again.
+					try {
+						Thread.sleep(getRetryDelay(++attempts));
+					} catch (InterruptedException ie) {
+						cancelled = true;
+					}
 				}
+			} while (moved[0] > 0 && !cancelled);
+			
+			if (!cancelled)
+				finish();
+			synchronized (stats) {
+				stats.running = false;
+				stats.elapsedTime = System.currentTimeMillis() - stats.startTime;
 			}
-			stats.getUpdateIDs /= futures.size();
-			stats.getUpdateElements /= futures.size();
-		} while (error);
+		}
 		
-
-		// Distribute updates to the corresponding local stores.
-		final HashMap<T, LinkedList<Element>> updatesMap = new HashMap<T, LinkedList<Element>>();
-		for (Element u : updates) {
-			T store = hash.get(u.value);
-			LinkedList<Element> updatesForStore = updatesMap.get(store);
-			if (updatesForStore == null) {
-				updatesForStore = new LinkedList<Element>();
-				updatesMap.put(store, updatesForStore);
-			}
-			updatesForStore.add(u);
-		}
-		
-		// Save updates in the local stores and update the timestamps.
-		stats.addUpdateElements = 0;
-		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
-		LinkedList<Future<UpdateStats>> futures = new LinkedList<Future<UpdateStats>>();
-		final UpdateState remoteFinal = remote;
-		for (final T store : local.stores) {
-			futures.add(pool.submit(new Callable<UpdateStats>() {
-				@Override
-				public UpdateStats call() throws Exception {
-					store.addUpdates(updatesMap.get(store));
-					store.updateMaxTimestamps(remoteFinal.timestamps);
-					return store.updateStats;
+		/**
+		 * Copy the tuples which moved to their new stores.
+		 * @return	Number of copied tuples.
+		 */
+		private long copy(T source, List<Element> updates) throws Exception {
+			LinkedHashMap<T, ArrayList<Element>> targets = new LinkedHashMap<T, ArrayList<Element>>();
+			for (Element e : updates) {
+				T target = hash.get(e.value);
+				if (target == null || target == source)
+					continue;
+				ArrayList<Element> group = targets.get(target);
+				if (group == null) {
+					group = new ArrayList<Element>();
+					targets.put(target, group);
 				}
-			}));
+				group.add(e);
+			}
+			long n = 0;
+			long deleted = 0;
+			for (Map.Entry<T, ArrayList<Element>> target : targets.entrySet()) {
+				try {
+					target.getKey().addMigratedUpdates(target.getValue());
+				} catch (Exception e) {
+					throw new Exception(String.format("%s:%s: %s", target.getKey().getClusterID(), target.getKey().getStoreID(), e.getMessage()));
+				}
+				n += target.getValue().size();
+				// A copy left behind would still be served to the other clusters after the tuple is purged in its new store.
+				try {
+					deleted += source.deleteMigratedUpdates(target.getValue());
+				} catch (Exception e) {
+					throw new Exception(String.format("%s:%s: %s", source.getClusterID(), source.getStoreID(), e.getMessage()));
+				}
+			}
+			synchronized (stats) {
+				stats.scanned += updates.size();
+				stats.moved += n;
+				stats.deleted += deleted;
+				stats.elapsedTime = System.currentTimeMillis() - stats.startTime;
+			}
+			return n;
+		}
+		
+		private void finish() {
+			for (T store : joining) {
+				try {
+					store.updateMaxTimestamps(seed);
+				} catch (Exception e) {
+					System.err.println(String.format("Error while seeding timestamps: %s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
+				}
+			}
+			synchronized (Client.this) {
+				if (stores.get(rc) == null)		// Closed meanwhile.
+					return;
+				// Publish that the tuples are migrated, for the clients watching the topology to stop using the old stores.
+				Topology migrated = new Topology(target);
+				migrated.setVersion(target.getVersion() + 1);
+				migrated.setMigrating(false);
+				TopologyChange change = prepareTopology(migrated);
+				try {
+					publishTopology(change.stores, migrated);
+				} catch (RuntimeException e) {
+					System.err.println(String.format("Error while publishing the topology: %s", e.getMessage()));
+				}
+				commitTopology(change);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Stores of a new topology, compared to the current one.
+	 */
+	private class TopologyChange {
+		final Topology topology;
+		final HashMap<String, HashMap<String, T>> stores = new HashMap<String, HashMap<String, T>>();
+		final LinkedList<T> created = new LinkedList<T>();		// New stores of all clusters.
+		final LinkedList<T> joining = new LinkedList<T>();		// New stores of the local cluster.
+		final LinkedList<T> leaving = new LinkedList<T>();		// Old stores of the local cluster.
+		final LinkedList<T> dropped = new LinkedList<T>();		// Old stores of the other clusters.
+		final LinkedHashMap<T, Integer> weights = new LinkedHashMap<T, Integer>();	// Distribution of the local cluster.
+		boolean moved = false;									// Whether values of the local cluster change store.
+		
+		TopologyChange(Topology topology) {
+			this.topology = topology;
+		}
+	}
+	
+	
+	/**
+	 * Compare a new topology with the current one. Clients of the stores which stay are reused, with their 
+	 * connections, and clients of the new stores are created.
+	 */
+	private TopologyChange prepareTopology(Topology topology) throws RuntimeException {
+		if (!topology.getClusterIDs().contains(rc) || topology.getStoreIDs(rc).isEmpty())
+			throw new RuntimeException(String.format("Cluster %s is not in the topology", rc));
+		Replicas.register(topology);
+		
+		TopologyChange change = new TopologyChange(topology);
+		final T reference = stores.get(rc).values().iterator().next();
+		for (String rc : topology.getClusterIDs()) {
+			HashMap<String, T> cluster = new HashMap<String, T>();
+			for (String rs : topology.getStoreIDs(rc)) {
+				final InetSocketAddress address = topology.get(rc, rs);
+				T store = stores.get(rc) == null ? null : stores.get(rc).get(rs);
+				if (store == null || !store.getAddress().equals(address)) {
+					try {
+						store = clazz.getConstructor(String.class, String.class, InetSocketAddress.class).newInstance(rc, rs, address);
+					} catch (Exception e) {
+						throw new RuntimeException(String.format("%s:%s: %s", rc, rs, e.getMessage()));
+					}
+					store.setCheckIfOnline(reference.checkIfOnline);
+					change.created.add(store);
+					if (rc.equals(this.rc)) {
+						change.joining.add(store);
+						if (lookupFilterCapacity > 0) {
+							try {
+								store.setLookupFilter(lookupFilterCapacity, lookupFilterMaxAge);
+							} catch (Exception e) {
+								throw new RuntimeException(String.format("%s:%s: %s", rc, rs, e.getMessage()));
+							}
+						}
+					}
+				}
+				cluster.put(rs, store);
+			}
+			change.stores.put(rc, cluster);
+		}
+		for (HashMap<String, T> cluster : stores.values()) {
+			for (T store : cluster.values()) {
+				if (change.stores.get(store.getClusterID()) != null && change.stores.get(store.getClusterID()).get(store.getStoreID()) == store)
+					continue;
+				if (store.getClusterID().equals(rc))
+					change.leaving.add(store);
+				else
+					change.dropped.add(store);
+			}
+		}
+		
+		change.moved = !change.joining.isEmpty() || !change.leaving.isEmpty();
+		for (T store : change.stores.get(rc).values()) {
+			final int weight = topology.getWeight(rc, store.getStoreID());
+			change.moved |= weight != this.topology.getWeight(rc, store.getStoreID());
+			change.weights.put(store, weight);
+		}
+		return change;
+	}
+	
+	
+	/**
+	 * Set a topology in all its stores.
+	 */
+	private void publishTopology(HashMap<String, HashMap<String, T>> stores, Topology topology) throws RuntimeException {
+		for (HashMap<String, T> cluster : stores.values()) {
+			for (T store : cluster.values()) {
+				try {
+					store.setTopology(topology);
+				} catch (Exception e) {
+					throw new RuntimeException(String.format("%s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * Switch to a new topology. The new distribution of values is published atomically to the client threads.
+	 * While the topology is migrating, the old distribution is kept for removes and lookups (see remove()) and 
+	 * the stores which left the local cluster stay in it. Other stores which left are closed.
+	 */
+	private synchronized void commitTopology(TopologyChange change) {
+		final boolean migrating = change.topology.isMigrating();
+		if (migrating) {
+			for (T store : change.leaving) {
+				if (!change.stores.get(rc).containsKey(store.getStoreID()))
+					change.stores.get(rc).put(store.getStoreID(), store);
+			}
+		}
+		if (change.moved) {
+			previousHash = migrating ? hash.copy() : null;
+			hash.set(change.weights);
 		}
-		for (Future<UpdateStats> future : futures) {
-		    try {
-				stats.addUpdateElements += future.get().addUpdateElements;
+		else if (!migrating)
+			previousHash = null;
+		this.topology = change.topology;
+		stores = change.stores;
+		// Results read from stores which moved or left are not trusted.
+		final LookupCache cache = lookupCache;
+		if (cache != null)
+			cache.clear();
+		for (T store : change.dropped)
+			store.close();
+		if (!migrating) {
+			for (T store : change.leaving)
+				store.close();
+		}
+	}
+	
+	
+	/**
+	 * Change the topology of the clusters while the client is in use.
+	 * The values of the local cluster are distributed to its new stores right away, and their tuples are copied 
+	 * from the old stores in the background. Until the copy is done, removes go to both the old and the new store 
+	 * of a value, and a value is found if either of them has it. Stores which leave the local cluster are closed 
+	 * once the copy is done, the others right away. The new topology is set in all its stores, with the next version,
+	 * for the other clients to pick it up (see refreshTopology()).
+	 * @param topology	The new topology, which must keep at least one store of the local cluster.
+	 */
+	public synchronized void updateTopology(Topology topology) throws RuntimeException {
+		if (rc == null)
+			throw new RuntimeException("Tried to update the topology through a non-booted client");
+		if (migration != null && migration.thread.isAlive())
+			throw new RuntimeException("The tuples of the previous change of topology are still being migrated");
+		
+		// All old stores of the cluster must be read, and their timestamps cover the tuples which are copied.
+		final UpdateState state = getUpdateState(rc);
+		if (state.stores.size() < stores.get(rc).size())
+			throw new RuntimeException("Some stores of the cluster are not reachable");
+		final ArrayList<T> sources = new ArrayList<T>(stores.get(rc).values());
+		
+		Topology next = new Topology(topology);
+		next.setVersion(this.topology.getVersion() + 1);
+		TopologyChange change = prepareTopology(next);
+		next.setMigrating(change.moved);
+		try {
+			// New stores take the ordinals of the others before anything refers to them by ordinal.
+			for (T store : change.created) {
+				try {
+					store.copyReplicas(sources.get(0));
+				} catch (Exception e) {
+					throw new RuntimeException(String.format("%s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
+				}
+			}
+			publishTopology(change.stores, next);
+		} catch (RuntimeException e) {
+			for (T store : change.created)
+				store.close();
+			throw e;
+		}
+		commitTopology(change);
+		if (!change.moved)
+			return;
+		
+		migration = new Migration(sources, change.joining, change.leaving, state.timestamps, next);
+		migration.thread = new Thread(migration, "orset-migration");
+		migration.thread.setDaemon(true);
+		migration.thread.start();
+	}
+	
+	
+	/**
+	 * Switch to the topology set in the stores of the cluster if its version is newer than the current one.
+	 * Only the version is read from the stores if it did not change.
+	 * @return	Whether the topology changed.
+	 */
+	public boolean refreshTopology() throws RuntimeException {
+		T source = null;
+		long version = -1;
+		for (T store : stores.get(rc).values()) {
+			try {
+				version = store.getTopologyVersion();
+				source = store;
+				break;
 			} catch (Exception e) {
-				System.err.println("Error while adding updates: " + e.getMessage());
+				System.err.println(String.format("%s:%s: %s", store.getClusterID(), store.getStoreID(), e.getMessage()));
 			}
 		}
-		stats.addUpdateElements /= futures.size();
+		if (source == null)
+			throw new RuntimeException("No store of the cluster is reachable");
+		if (version <= topology.getVersion())
+			return false;
 		
+		Topology topology;
+		try {
+			topology = source.getTopology();
+		} catch (Exception e) {
+			throw new RuntimeException(String.format("%s:%s: %s", source.getClusterID(), source.getStoreID(), e.getMessage()));
+		}
+		synchronized (this) {
+			if (topology.getVersion() <= this.topology.getVersion())
+				return false;
+			commitTopology(prepareTopology(topology));
+		}
+		return true;
+	}
+	
+	
+	/**
+	 * Start checking periodically the version of the topology in the background, see refreshTopology().
+	 * @param interval	Interval between two checks, in milliseconds.
+	 */
+	public synchronized void startTopologyWatch(long interval) {
+		stopTopologyWatch();
+		topologyWatch = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "orset-topology-watch");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		topologyWatch.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					refreshTopology();
+				} catch (Exception e) {
+					System.err.println(String.format("Error while refreshing the topology: %s", e.getMessage()));
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	/**
+	 * Stop the periodic checks of the topology. A check in progress is completed.
+	 */
+	public synchronized void stopTopologyWatch() {
+		if (topologyWatch != null) {
+			topologyWatch.shutdown();
+			topologyWatch = null;
+		}
+	}
+
+	
+	
+	/**
+	 * Get the progress of the migration of tuples after the last change of topology.
+	 * @return	A snapshot of the progress or null if the topology never changed.
+	 */
+	public synchronized MigrationStats getMigrationStats() {
+		if (migration == null)
+			return null;
+		MigrationStats stats = new MigrationStats();
+		synchronized (migration.stats) {
+			stats.running = migration.stats.running;
+			stats.passes = migration.stats.passes;
+			stats.scanned = migration.stats.scanned;
+			stats.moved = migration.stats.moved;
+			stats.deleted = migration.stats.deleted;
+			stats.failures = migration.stats.failures;
+			stats.startTime = migration.stats.startTime;
+			stats.elapsedTime = migration.stats.elapsedTime;
+		}
 		return stats;
 	}
 	
-	public UpdateStats pullUpdates(String clusterID) {
-		return pullUpdates(clusterID, 1);
+	
+	/**
+	 * Wait for the migration of tuples after the last change of topology to be done.
+	 * @param timeout	Maximum time to wait, in milliseconds.
+	 * @return			Whether no migration is running.
+	 */
+	public boolean awaitMigration(long timeout) throws InterruptedException {
+		final Migration migration;
+		synchronized (this) {
+			migration = this.migration;
+		}
+		if (migration == null)
+			return true;
+		migration.thread.join(timeout);
+		return !migration.thread.isAlive();
+	}
+	
+	
+	/**
+	 * Stop the migration of tuples. Values keep being routed as during the migration.
+	 */
+	private synchronized void stopMigration() {
+		if (migration != null) {
+			migration.cancelled = true;
+			migration.thread.interrupt();
+		}
 	}
 	
 //	@Override
@@ -231,6 +231,133 @@ public class Console {
 		}
 	}
 	
+	private class CommandSync extends Command {
+		public static final String NAME = "sync";
+		public static final String DESCRIPTION = "Pull periodically from all other clusters (0 0 to stop)";
+		
+		@Override
+		public String run(String... args) throws RuntimeException {
+			checkArguments(args.length, 3);
+			final long minInterval = Long.parseLong(args[1]);
+			final long maxInterval = Long.parseLong(args[2]);
+			if (minInterval <= 0) {
+				client.stopAntiEntropy();
+				return "Periodic pulls stopped";
+			}
+			client.startAntiEntropy(minInterval, maxInterval, 1);
+			return "Periodic pulls started";
+		}
+
+		@Override
+		public String help() {
+			return String.format("%s <min ms> <max ms>\t\t\t: %s.", NAME, DESCRIPTION);
+		}
+	}
+	
+	private class CommandLag extends Command {
+		public static final String NAME = "lag";
+		public static final String DESCRIPTION = "Print the replication lag from another cluster";
+		
+		@Override
+		public String run(String... args) throws RuntimeException {
+			checkArguments(args.length, 2);
+			final String rc = args[1];
+			final long lag = client.getReplicationLag(rc);
+			if (lag < 0)
+				return "Not in sync yet";
+			return String.format("Lag: %d ms, pull interval: %d ms", lag, client.getAntiEntropyInterval(rc));
+		}
+
+		@Override
+		public String help() {
+			return String.format("%s <cluster ID>\t\t\t: %s.", NAME, DESCRIPTION);
+		}
+	}
+	
+	private class CommandGC extends Command {
+		public static final String NAME = "gc";
+		public static final String DESCRIPTION = "Purge periodically the tombstones seen by all clusters (0 to stop)";
+		
+		@Override
+		public String run(String... args) throws RuntimeException {
+			checkArguments(args.length, 2);
+			final long interval = Long.parseLong(args[1]);
+			if (interval <= 0) {
+				client.stopTombstoneGC();
+				return String.format("Tombstone GC stopped, %d tombstones purged", client.getPurgedTombstones());
+			}
+			client.startTombstoneGC(interval, 1000);
+			return "Tombstone GC started";
+		}
+
+		@Override
+		public String help() {
+			return String.format("%s <interval ms>			: %s.", NAME, DESCRIPTION);
+		}
+	}
+	
+	private class CommandReshard extends Command {
+		public static final String NAME = "reshard";
+		public static final String DESCRIPTION = "Change the topology and migrate the tuples to their new stores in the background";
+		
+		@Override
+		public String run(String... args) throws RuntimeException {
+			checkArguments(args.length, 2);
+			Topology topology = new Topology();
+			try {
+				topology.loadFromFile(args[1]);
+			} catch (Exception e) {
+				throw new RuntimeException(e.getMessage());
+			}
+			client.updateTopology(topology);
+			return "Topology updated";
+		}
+
+		@Override
+		public String help() {
+			return String.format("%s <topology XML file>\t\t: %s.", NAME, DESCRIPTION);
+		}
+	}
+	
+	private class CommandMigration extends Command {
+		public static final String NAME = "migration";
+		public static final String DESCRIPTION = "Print the progress of the migration after the last change of topology";
+		
+		@Override
+		public String run(String... args) throws RuntimeException {
+			checkArguments(args.length, 1);
+			MigrationStats stats = client.getMigrationStats();
+			return stats == null ? "No migration" : stats.toString();
+		}
+
+		@Override
+		public String help() {
+			return String.format("%s\t\t\t\t\t: %s.", NAME, DESCRIPTION);
+		}
+	}
+	
+	private class CommandWatch extends Command {
+		public static final String NAME = "watch";
+		public static final String DESCRIPTION = "Check periodically for a new version of the topology (0 to stop)";
+		
+		@Override
+		public String run(String... args) throws RuntimeException {
+			checkArguments(args.length, 2);
+			final long interval = Long.parseLong(args[1]);
+			if (interval <= 0) {
+				client.stopTopologyWatch();
+				return "Topology watch stopped";
+			}
+			client.startTopologyWatch(interval);
+			return "Topology watch started";
+		}
+
+		@Override
+		public String help() {
+			return String.format("%s <interval ms>\t\t\t: %s.", NAME, DESCRIPTION);
+		}
+	}
+	
 	public Console() {
 		commands.put(CommandHelp.NAME, new CommandHelp());
 		commands.put(CommandInit.NAME, new CommandInit());
@@ -240,6 +367,12 @@ public class Console {
 		commands.put(CommandRemove.NAME, new CommandRemove());
 		commands.put(CommandLookup.NAME, new CommandLookup());
 		commands.put(CommandPull.NAME, new CommandPull());
+		commands.put(CommandSync.NAME, new CommandSync());
+		commands.put(CommandLag.NAME, new CommandLag());
+		commands.put(CommandGC.NAME, new CommandGC());
+		commands.put(CommandReshard.NAME, new CommandReshard());
+		commands.put(CommandMigration.NAME, new CommandMigration());
+		commands.put(CommandWatch.NAME, new CommandWatch());
 		commands.put(CommandExit.NAME, new CommandExit());
 	}
 	
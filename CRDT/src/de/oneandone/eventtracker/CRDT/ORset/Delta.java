@@ -0,0 +1,95 @@
+package de.oneandone.eventtracker.CRDT.ORset;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Join-decomposition of the state of an OR-set into deltas:
+ * - an add is the dot (added_rc, added_rs, added_t) of a tag with its value;
+ * - a remove is the dot (removed_rc, removed_rs, removed_t) of the remove operation with the dots of
+ *   all the tags of the value it removed, the value being sent once.
+ * Stores are referred to by their ordinal in Replicas, as in Element.
+ * @author adeftu
+ *
+ */
+public class Delta {
+	public String value;
+	public long removed_t = Element.NOT_REMOVED;
+	public int removed = -1;		// Ordinal of (removed_rc, removed_rs).
+	public int[] added;				// Ordinals of (added_rc, added_rs) of the tags.
+	public long[] added_t;			// added_t of the tags.
+
+	public Delta(String value, int[] added, long[] added_t, long removed_t, int removed) {
+		this.value = value;
+		this.added = added;
+		this.added_t = added_t;
+		this.removed_t = removed_t;
+		this.removed = removed;
+	}
+
+	public boolean isRemove() {
+		return removed_t != Element.NOT_REMOVED;
+	}
+
+	/**
+	 * Get the ordinal of the store which produced the delta.
+	 */
+	public int getReplica() {
+		return isRemove() ? removed : added[0];
+	}
+
+	/**
+	 * Get the timestamp of the delta in the store which produced it.
+	 */
+	public long getTimestamp() {
+		return isRemove() ? removed_t : added_t[0];
+	}
+
+
+	/**
+	 * Decompose tuples into deltas, in the order of the tuples. Removed tuples of the same remove operation become one delta.
+	 */
+	public static List<Delta> fromElements(List<Element> elements) {
+		LinkedHashMap<String, ArrayList<Element>> groups = new LinkedHashMap<String, ArrayList<Element>>();
+		for (int i = 0; i < elements.size(); ++i) {
+			final Element e = elements.get(i);
+			final String key = e.isRemoved() ? String.format("%d:%d:%s", e.removed, e.removed_t, e.value) : String.valueOf(i);
+			ArrayList<Element> tags = groups.get(key);
+			if (tags == null) {
+				tags = new ArrayList<Element>(1);
+				groups.put(key, tags);
+			}
+			tags.add(e);
+		}
+		ArrayList<Delta> deltas = new ArrayList<Delta>(groups.size());
+		for (ArrayList<Element> tags : groups.values()) {
+			int[] added = new int[tags.size()];
+			long[] added_t = new long[tags.size()];
+			for (int i = 0; i < added.length; ++i) {
+				added[i] = tags.get(i).added;
+				added_t[i] = tags.get(i).added_t;
+			}
+			final Element e = tags.get(0);
+			deltas.add(new Delta(e.value, added, added_t, e.removed_t, e.removed));
+		}
+		return deltas;
+	}
+
+
+	/**
+	 * Expand deltas into tuples, one per tag. Deltas carry no TTL, so the tuples get the current one.
+	 */
+	public static List<Element> toElements(List<Delta> deltas) {
+		ArrayList<Element> elements = new ArrayList<Element>(deltas.size());
+		for (Delta d : deltas) {
+			for (int i = 0; i < d.added.length; ++i) {
+				Element e = new Element(d.value, d.added_t[i], d.added[i], d.removed_t, d.removed);
+				e.gc_ttl = Element.getTTL();
+				e.gc_time = System.currentTimeMillis();
+				elements.add(e);
+			}
+		}
+		return elements;
+	}
+}
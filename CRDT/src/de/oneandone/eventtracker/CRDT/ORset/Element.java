@@ -1,27 +1,31 @@
 package de.oneandone.eventtracker.CRDT.ORset;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /**
  * Representation of a tuple.
+ * Stores are referred to by their ordinal in Replicas and timestamps are primitive,
+ * with removed_t == NOT_REMOVED and removed == -1 for a tuple which is not removed.
  * @author adeftu
  *
  */
 public class Element implements Serializable {
-	private static final long serialVersionUID = 6845807975082331940L;
+	private static final long serialVersionUID = 6845807975082331941L;
 	private static int TTL = -1;	// TTL of an element in seconds. -1 to disable.
+	public static final long NOT_REMOVED = 0;	// Timestamps start at 1.
 
 	public String value;
 	public String id;
 
-	public Long added_t;
-	public String added_rc;
-	public String added_rs;
+	public long added_t;
+	public transient int added;		// Ordinal of (added_rc, added_rs).
+
+	public long removed_t = NOT_REMOVED;
+	public transient int removed = -1;	// Ordinal of (removed_rc, removed_rs).
 
-	public Long removed_t;
-	public String removed_rc;
-	public String removed_rs;
-	
 	public long gc_time;		// Start time for TTL (heap store).
 	public int gc_ttl;			// Remaining TTL (redis store).
 
@@ -31,35 +35,83 @@ public class Element implements Serializable {
 	public static void setTTL(int ttl) {
 		TTL = ttl;
 	}
-	
+
 	public static int getTTL() {
 		return TTL;
 	}
-	
-	public Element(String value, 
-				   Long added_t, String added_rc, String added_rs, 
-				   Long removed_t, String removed_rc, String removed_rs) {
-		this.value = value;
 
+	public Element(String value, long added_t, int added, long removed_t, int removed) {
+		this.value = value;
 		this.added_t = added_t;
-		this.added_rc = added_rc;
-		this.added_rs = added_rs;
-
+		this.added = added;
 		this.removed_t = removed_t;
-		this.removed_rc = removed_rc;
-		this.removed_rs = removed_rs;
+		this.removed = removed;
+	}
+
+	public Element(String value, long added_t, int added) {
+		this(value, added_t, added, NOT_REMOVED, -1);
 	}
-	
-	public Element(String value, 
-				   Long added_t, String added_rc, String added_rs, 
+
+	public Element(String value,
+				   Long added_t, String added_rc, String added_rs,
+				   Long removed_t, String removed_rc, String removed_rs) {
+		this(value, added_t, Replicas.ordinal(added_rc, added_rs),
+				removed_t == null ? NOT_REMOVED : removed_t, Replicas.ordinal(removed_rc, removed_rs));
+	}
+
+	public Element(String value,
+				   Long added_t, String added_rc, String added_rs,
 				   Long removed_t, String removed_rc, String removed_rs, int ttl, String id) {
 		this(value, added_t, added_rc, added_rs, removed_t, removed_rc, removed_rs);
 		this.gc_ttl = ttl;
 		this.id = id;
 	}
-	
+
+	public boolean isRemoved() {
+		return removed_t != NOT_REMOVED;
+	}
+
+	/**
+	 * Check whether both elements have the same add tag, i.e. (value, added_t, added_rc, added_rs).
+	 */
+	public boolean sameTag(Element other) {
+		return added_t == other.added_t && added == other.added && value.equals(other.value);
+	}
+
+	public String getAddedRC() {
+		return Replicas.getClusterID(added);
+	}
+
+	public String getAddedRS() {
+		return Replicas.getStoreID(added);
+	}
+
+	public String getRemovedRC() {
+		return Replicas.getClusterID(removed);
+	}
+
+	public String getRemovedRS() {
+		return Replicas.getStoreID(removed);
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(getAddedRC());
+		out.writeObject(getAddedRS());
+		out.writeObject(getRemovedRC());
+		out.writeObject(getRemovedRS());
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		added = Replicas.ordinal((String) in.readObject(), (String) in.readObject());
+		removed = Replicas.ordinal((String) in.readObject(), (String) in.readObject());
+	}
+
 	@Override
 	public String toString() {
-		return String.format("(%s, %d, %s, %s, %d, %s, %s)", value, added_t, added_rc, added_rs, removed_t, removed_rc, removed_rs);
+		if (!isRemoved())
+			return String.format("(%s, %d, %s, %s, null, null, null)", value, added_t, getAddedRC(), getAddedRS());
+		return String.format("(%s, %d, %s, %s, %d, %s, %s)", value, added_t, getAddedRC(), getAddedRS(), removed_t, getRemovedRC(), getRemovedRS());
 	}
 }
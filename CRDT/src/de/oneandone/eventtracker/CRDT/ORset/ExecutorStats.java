@@ -0,0 +1,18 @@
+package de.oneandone.eventtracker.CRDT.ORset;
+
+/**
+ * Snapshot of the state of the sync executor of a client.
+ * Counters which the executor type does not provide are -1.
+ */
+public class ExecutorStats {
+	public Client.SyncExecutor type;
+	public int poolSize = 0;			// Threads currently in the pool.
+	public int activeThreads = 0;		// Threads currently running tasks.
+	public long queuedTasks = 0;		// Tasks waiting for a thread.
+	public long completedTasks = 0;		// Tasks completed since the executor was created.
+
+	@Override
+	public String toString() {
+		return String.format("%s: pool=%d active=%d queued=%d completed=%d", type, poolSize, activeThreads, queuedTasks, completedTasks);
+	}
+}
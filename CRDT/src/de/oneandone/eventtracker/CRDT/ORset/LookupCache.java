@@ -0,0 +1,157 @@
+package de.oneandone.eventtracker.CRDT.ORset;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of lookup results, evicting the least recently used results and the results older than a TTL.
+ * The cache is split in segments, each one locked on its own. Every invalidation advances the generation of the
+ * segment of the value: a lookup takes the generation before reading the stores (see stamp()), and its result is 
+ * only cached if no value of the segment was invalidated meanwhile, so that a result older than an update is never cached.
+ * @author adeftu
+ *
+ */
+public class LookupCache {
+	private static final int NUM_SEGMENTS = 16;
+	private final Segment[] segments = new Segment[NUM_SEGMENTS];
+	private final long ttl;		// In nanoseconds.
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	
+	private static class Entry {
+		final boolean found;
+		final long expireTime;
+		
+		Entry(boolean found, long expireTime) {
+			this.found = found;
+			this.expireTime = expireTime;
+		}
+	}
+	
+	private class Segment extends LinkedHashMap<String, Entry> {
+		private static final long serialVersionUID = 1L;
+		final int capacity;
+		long generation = 0;
+		
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			if (size() <= capacity)
+				return false;
+			evictions.incrementAndGet();
+			return true;
+		}
+	}
+	
+	/**
+	 * @param capacity	Maximum number of cached results.
+	 * @param ttl		Time after which a result is evicted, in milliseconds.
+	 */
+	public LookupCache(int capacity, long ttl) {
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+		for (int i = 0; i < NUM_SEGMENTS; ++i)
+			segments[i] = new Segment(Math.max(1, (capacity + NUM_SEGMENTS - 1) / NUM_SEGMENTS));
+	}
+	
+	private Segment segment(String value) {
+		final int h = value.hashCode();
+		return segments[(h ^ (h >>> 16)) & (NUM_SEGMENTS - 1)];
+	}
+	
+	
+	/**
+	 * Get the cached result of a lookup.
+	 * @return	The result or null if it is not cached.
+	 */
+	public Boolean get(String value) {
+		final Segment segment = segment(value);
+		synchronized (segment) {
+			final Entry entry = segment.get(value);
+			if (entry != null) {
+				if (entry.expireTime - System.nanoTime() > 0) {
+					hits.incrementAndGet();
+					return entry.found;
+				}
+				segment.remove(value);
+				expirations.incrementAndGet();
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+	
+	
+	/**
+	 * Get the generation of the segment of a value, to be taken before reading the stores.
+	 */
+	public long stamp(String value) {
+		final Segment segment = segment(value);
+		synchronized (segment) {
+			return segment.generation;
+		}
+	}
+	
+	
+	/**
+	 * Cache the result of a lookup, unless the value may have been updated since the stores were read.
+	 * @param stamp	Generation of the segment of the value before reading the stores.
+	 */
+	public void put(String value, boolean found, long stamp) {
+		final Segment segment = segment(value);
+		synchronized (segment) {
+			if (segment.generation == stamp)
+				segment.put(value, new Entry(found, System.nanoTime() + ttl));
+		}
+	}
+	
+	
+	/**
+	 * Drop the result of a lookup, to be called after the value was updated in the stores.
+	 */
+	public void invalidate(String value) {
+		final Segment segment = segment(value);
+		synchronized (segment) {
+			++segment.generation;
+			if (segment.remove(value) != null)
+				invalidations.incrementAndGet();
+		}
+	}
+	
+	
+	/**
+	 * Drop all results.
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				++segment.generation;
+				segment.clear();
+			}
+		}
+	}
+	
+	
+	public CacheStats getStats() {
+		CacheStats stats = new CacheStats();
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				stats.size += segment.size();
+			}
+		}
+		stats.hits = hits.get();
+		stats.misses = misses.get();
+		stats.evictions = evictions.get();
+		stats.expirations = expirations.get();
+		stats.invalidations = invalidations.get();
+		return stats;
+	}
+}
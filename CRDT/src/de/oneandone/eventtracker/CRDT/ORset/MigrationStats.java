@@ -0,0 +1,28 @@
+package de.oneandone.eventtracker.CRDT.ORset;
+
+/**
+ * Snapshot of the progress of a migration of tuples to their new stores, after a change of topology.
+ */
+public class MigrationStats {
+	public boolean running = false;
+	public int passes = 0;				// Passes completed over the old stores. Later passes copy the updates done meanwhile.
+	public long scanned = 0;			// Tuples read from the old stores.
+	public long moved = 0;				// Tuples copied to their new store.
+	public long deleted = 0;			// Copied tuples deleted from their old store.
+	public int failures = 0;			// Failed reads or copies, which were retried.
+	public long startTime = 0;			// Time when the migration started, in milliseconds.
+	public long elapsedTime = 0;		// Duration of the migration so far, in milliseconds.
+	
+	/**
+	 * Get the number of tuples copied per second.
+	 */
+	public double getThroughput() {
+		return elapsedTime > 0 ? moved * 1000.0 / elapsedTime : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: passes=%d scanned=%d moved=%d deleted=%d failures=%d elapsed=%d ms throughput=%.0f/s", 
+				running ? "running" : "done", passes, scanned, moved, deleted, failures, elapsedTime, getThroughput());
+	}
+}
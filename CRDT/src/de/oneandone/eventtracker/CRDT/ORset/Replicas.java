@@ -0,0 +1,95 @@
+package de.oneandone.eventtracker.CRDT.ORset;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of replica stores, mapping each (rc, rs) to a small ordinal.
+ * Elements and timestamps refer to stores by ordinal instead of by two strings.
+ * The registry is filled from the topology and grows when an unknown store shows up in an update.
+ * Ordinals are only valid within this process: whatever leaves the process (the wire, the disk)
+ * carries the rc/rs IDs.
+ * @author adeftu
+ *
+ */
+public class Replicas {
+	private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> ordinals = new ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>>();
+	private static volatile String[] clusterIDs = new String[0];
+	private static volatile String[] storeIDs = new String[0];
+
+	/**
+	 * Register all stores of a topology.
+	 */
+	public static void register(Topology topology) {
+		for (String rc : topology.getClusterIDs()) {
+			for (String rs : topology.getStoreIDs(rc)) {
+				ordinal(rc, rs);
+			}
+		}
+	}
+
+
+	/**
+	 * Get the ordinal of a store, registering it if needed.
+	 * @param rc	Replica cluster ID.
+	 * @param rs	Replica store ID.
+	 * @return		The ordinal or -1 if rc or rs is null.
+	 */
+	public static int ordinal(String rc, String rs) {
+		if (rc == null || rs == null)
+			return -1;
+		ConcurrentHashMap<String, Integer> cluster = ordinals.get(rc);
+		if (cluster != null) {
+			Integer ordinal = cluster.get(rs);
+			if (ordinal != null)
+				return ordinal;
+		}
+		return register(rc, rs);
+	}
+
+
+	private static synchronized int register(String rc, String rs) {
+		ConcurrentHashMap<String, Integer> cluster = ordinals.get(rc);
+		if (cluster == null) {
+			cluster = new ConcurrentHashMap<String, Integer>();
+			ordinals.put(rc, cluster);
+		}
+		Integer ordinal = cluster.get(rs);
+		if (ordinal != null)
+			return ordinal;
+		final int n = clusterIDs.length;
+		String[] newClusterIDs = new String[n + 1];
+		String[] newStoreIDs = new String[n + 1];
+		System.arraycopy(clusterIDs, 0, newClusterIDs, 0, n);
+		System.arraycopy(storeIDs, 0, newStoreIDs, 0, n);
+		newClusterIDs[n] = rc;
+		newStoreIDs[n] = rs;
+		storeIDs = newStoreIDs;
+		clusterIDs = newClusterIDs;
+		cluster.put(rs, n);
+		return n;
+	}
+
+
+	/**
+	 * Get the number of registered stores. Ordinals are in [0, size()).
+	 */
+	public static int size() {
+		return clusterIDs.length;
+	}
+
+
+	/**
+	 * Get the replica cluster ID of an ordinal.
+	 */
+	public static String getClusterID(int ordinal) {
+		return ordinal < 0 ? null : clusterIDs[ordinal];
+	}
+
+
+	/**
+	 * Get the replica store ID of an ordinal.
+	 */
+	public static String getStoreID(int ordinal) {
+		return ordinal < 0 ? null : storeIDs[ordinal];
+	}
+}
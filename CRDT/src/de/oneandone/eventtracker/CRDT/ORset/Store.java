@@ -1,6 +1,8 @@
 package de.oneandone.eventtracker.CRDT.ORset;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 
@@ -22,6 +24,20 @@ public abstract class Store {
 	
 	public UpdateStats updateStats = new UpdateStats();
 	
+	/**
+	 * Receiver of the pages of updates streamed by getUpdates().
+	 */
+	public interface UpdateHandler {
+		void handle(List<Element> updates) throws Exception;
+	}
+	
+	/**
+	 * Receiver of the pages of getDeltas().
+	 */
+	public interface DeltaHandler {
+		void handle(List<Delta> deltas) throws Exception;
+	}
+	
 
 	/**
 	 * Create a new store.
@@ -67,12 +83,48 @@ public abstract class Store {
 		this.checkIfOnline = checkIfOnline;
 	}
 	
+	/**
+	 * Name of the store, rc:rs, by which it is placed on the hash ring of its cluster.
+	 */
+	@Override
+	public String toString() {
+		return rc + ":" + rs;
+	}
+	
 	/**
 	 * Get the topology of the clusters and stores.
 	 */
 	public abstract Topology getTopology() throws Exception;
 	
 	
+	/**
+	 * Get the version of the topology kept by the store, without fetching the whole topology.
+	 * Stores should override this, the default implementation fetches the topology.
+	 */
+	public long getTopologyVersion() throws Exception {
+		return getTopology().getVersion();
+	}
+	
+	
+	/**
+	 * Replace the topology kept by the store, with its version, when stores join or leave the clusters.
+	 * Stores which refer to the other stores by their own ordinals should register the new stores
+	 * the same way on all servers. The default implementation does nothing.
+	 */
+	public void setTopology(Topology topology) throws Exception {
+	}
+	
+	
+	/**
+	 * Register the stores known to another store, with the same ordinals, before this store joins the clusters
+	 * and before anything is written to it. Stores which refer to the other stores by their own ordinals should
+	 * override this, see setTopology(). The default implementation does nothing.
+	 * @param source	A store already in the clusters, of the same type.
+	 */
+	public void copyReplicas(Store source) throws Exception {
+	}
+	
+	
 	/**
 	 * Add an element to the store.
 	 * Precondition: The element must be sharded here, i.e. the element must belong to this store according to the distribution function.
@@ -126,6 +178,66 @@ public abstract class Store {
 	public abstract boolean lookup(String value) throws Exception;
 	
 	
+	/**
+	 * Keep a filter of the values added to the store, so that lookups of values which were never added
+	 * are answered without reaching the DB server. The filter is built from the store and then maintained by
+	 * the adds of this client only, see refreshLookupFilter(). As it misses the adds of other clients since
+	 * its last build, it only answers lookups until it is older than maxAge, and the DB server answers them after.
+	 * Stores which answer lookups in-process ignore it, as the default implementation does.
+	 * @param capacity	Expected number of values, 0 to drop the filter.
+	 * @param maxAge	Time after its last build during which the filter answers lookups, in milliseconds.
+	 */
+	public void setLookupFilter(int capacity, long maxAge) throws Exception {
+	}
+	
+	
+	/**
+	 * Rebuild the lookup filter from the store, to pick up the values added by other clients and to drop 
+	 * the values which are gone. The default implementation does nothing.
+	 */
+	public void refreshLookupFilter() throws Exception {
+	}
+	
+	
+	/**
+	 * Add a batch of values to the store, as add() on each of them.
+	 * Stores should override this to send the whole batch in one round trip.
+	 * Precondition: All values must be sharded here.
+	 * @param values	The values to be added.
+	 */
+	public void addAll(Collection<String> values) throws Exception {
+		for (String value : values)
+			add(value);
+	}
+	
+	
+	/**
+	 * Remove a batch of values from the store, as remove() on each of them.
+	 * Stores should override this to send the whole batch in one round trip.
+	 * Precondition: All values must be sharded here.
+	 * @param values	The values to be removed.
+	 */
+	public void removeAll(Collection<String> values) throws Exception {
+		for (String value : values)
+			remove(value);
+	}
+	
+	
+	/**
+	 * Search a batch of values in the store, as lookup() on each of them.
+	 * Stores should override this to send the whole batch in one round trip.
+	 * @param values	The values to be searched.
+	 * @return			result[i] is 'true' if values[i] was found and 'false' otherwise.
+	 */
+	public boolean[] lookupAll(List<String> values) throws Exception {
+		boolean[] result = new boolean[values.size()];
+		int i = 0;
+		for (String value : values)
+			result[i++] = lookup(value);
+		return result;
+	}
+	
+	
 	/**
 	 * Get all current timestamps of this store.
 	 * Functionality:
@@ -161,13 +273,50 @@ public abstract class Store {
 	 * @return				Updates after the given timestamps.
 	 */
 	public abstract List<Element> getUpdates(Timestamps timestamps) throws Exception;
+	
+	
+	/**
+	 * Stream all updates occurred in the store after the given timestamps, one page at a time.
+	 * Same as getUpdates() but without holding all updates in memory. Updates of the same store 
+	 * (added_rc, added_rs or removed_rc, removed_rs) are passed in increasing timestamp order.
+	 * Stores should override this, the default implementation pages the result of getUpdates().
+	 * @param timestamps	The starting time to get updates after.
+	 * @param pageSize		Maximum number of updates per page. Stores may exceed it to keep updates with the same timestamp together.
+	 * @param handler		Receiver of the pages. The handler may block to throttle the store.
+	 */
+	public void getUpdates(Timestamps timestamps, int pageSize, UpdateHandler handler) throws Exception {
+		ArrayList<Element> updates = new ArrayList<Element>(getUpdates(timestamps));
+		for (int i = 0; i < updates.size(); i += pageSize)
+			handler.handle(updates.subList(i, Math.min(i + pageSize, updates.size())));
+	}
 
 	
+	/**
+	 * Stream all updates occurred in the store after the given timestamps as deltas, one page at a time.
+	 * Same as getUpdates() but the tags removed by the same remove operation are sent as one delta.
+	 * Stores should override this to read deltas in their compact form, the default implementation
+	 * decomposes the pages of getUpdates().
+	 * @param timestamps	The starting time to get updates after.
+	 * @param pageSize		Maximum number of tags per page. Stores may exceed it to keep updates with the same timestamp together.
+	 * @param handler		Receiver of the pages. The handler may block to throttle the store.
+	 */
+	public void getDeltas(Timestamps timestamps, int pageSize, final DeltaHandler handler) throws Exception {
+		getUpdates(timestamps, pageSize, new UpdateHandler() {
+			@Override
+			public void handle(List<Element> updates) throws Exception {
+				handler.handle(Delta.fromElements(updates));
+			}
+		});
+	}
+	
+	
 	/**
 	 * Add updates to the store.
 	 * Precondition: All elements must be sharded here, i.e. the elements must belong to this store according to the distribution function.
 	 * Functionality:
 	 * 1. Add all Element(...) to the DB. 
+	 * 2. Skip an update which is not in the DB but is covered by the local timestamps 
+	 * (i.e. timestamps[rc][rs] >= t of its last add or remove): it was already seen and purged, see purgeTombstones().
 	 * Requirements:
 	 * - Local timestamps must not be updated.
 	 * - updateMaxTimestamps() should be called at the end but only if all updates were successfully added.
@@ -176,6 +325,72 @@ public abstract class Store {
 	public abstract void addUpdates(List<Element> updates) throws Exception;
 	
 	
+	/**
+	 * Add tuples migrated from another store of this cluster, see Client.updateTopology().
+	 * Functionality:
+	 * 1. Add all Element(...) to the DB, as addUpdates(), but without skipping the updates covered by the local timestamps:
+	 * the timestamps of this store cover the tuples it was sent while they were sharded elsewhere.
+	 * Requirements:
+	 * - Local timestamps must not be updated.
+	 * @param updates	Updates to be added.
+	 */
+	public abstract void addMigratedUpdates(List<Element> updates) throws Exception;
+	
+	
+	/**
+	 * Delete tuples which were migrated to another store of this cluster, once it added them, see Client.updateTopology().
+	 * Functionality:
+	 * 1. Delete each tuple of the DB which is in the same state as the given one, i.e. which was not removed 
+	 * since it was read: a remove which reached this store only is copied by the next pass of the migration.
+	 * Requirements:
+	 * - Local timestamps must not be updated.
+	 * @param updates	Tuples read from this store and added to their new store.
+	 * @return			Number of deleted tuples.
+	 */
+	public abstract int deleteMigratedUpdates(List<Element> updates) throws Exception;
+	
+	
+	/**
+	 * Add updates to the store and then update the timestamps, as addUpdates() followed by updateMaxTimestamps().
+	 * Stores should override this to commit both in one round trip.
+	 * Requirements:
+	 * - The timestamps must not be updated if adding the updates failed.
+	 * @param updates		Updates to be added.
+	 * @param timestamps	The other timestamps to update the current ones with.
+	 */
+	public void addUpdates(List<Element> updates, Timestamps timestamps) throws Exception {
+		addUpdates(updates);
+		updateMaxTimestamps(timestamps);
+	}
+	
+	
+	/**
+	 * Add deltas to the store and then update the timestamps, same as addUpdates() with the expanded deltas.
+	 * Stores should override this to send deltas in their compact form.
+	 * @param deltas		Deltas to be added.
+	 * @param timestamps	The other timestamps to update the current ones with, or null to keep the current ones.
+	 */
+	public void addDeltas(List<Delta> deltas, Timestamps timestamps) throws Exception {
+		if (timestamps == null)
+			addUpdates(Delta.toElements(deltas));
+		else
+			addUpdates(Delta.toElements(deltas), timestamps);
+	}
+	
+	
+	/**
+	 * Drop removed tags whose removal was seen by every replica, i.e. removed_t <= stable[removed_rc][removed_rs].
+	 * Stores drop tags incrementally, remembering up to which timestamp of each replica they were purged.
+	 * The default implementation keeps all tags.
+	 * @param stable	Timestamps seen by all stores of all clusters.
+	 * @param limit		Maximum number of tags to drop. Stores may exceed it to keep tags with the same timestamp together.
+	 * @return			Number of dropped tags. Less than limit if there is nothing more to drop for now.
+	 */
+	public int purgeTombstones(Timestamps stable, int limit) throws Exception {
+		return 0;
+	}
+	
+	
 	/**
 	 * Clear the store database and timestamps.
 	 */
@@ -0,0 +1,704 @@
+package de.oneandone.eventtracker.CRDT.ORset.Stores;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import de.oneandone.eventtracker.CRDT.ORset.Element;
+import de.oneandone.eventtracker.CRDT.ORset.Replicas;
+import de.oneandone.eventtracker.CRDT.ORset.Store;
+import de.oneandone.eventtracker.CRDT.ORset.Timestamps;
+import de.oneandone.eventtracker.CRDT.ORset.Stores.legacy.LegacyHeapFile;
+import de.oneandone.eventtracker.CRDT.Utils.CountingBloomFilter;
+
+/**
+ * Resident state of a heap store.
+ * All HeapStore instances of the same (rc, rs) share one HeapDB, the same way all clients
+ * of a redis store share the redis server. Elements are indexed twice:
+ * - by value, holding all tags of that value, so that add/remove/lookup are O(tags);
+ * - by the (rc, rs) which last updated them (added or removed), ordered by timestamp,
+ *   so that getUpdates() only visits elements newer than the given timestamps.
+ * Every mutation is first appended to a HeapJournal; every snapshotInterval mutations the whole
+ * state is written to a snapshot and the journal segments it covers are deleted.
+ * On open, the snapshot is mapped and the remaining journal segments are replayed. Values of the
+ * snapshot are materialized lazily, on first access, or all at once for getUpdates() and snapshots.
+ * A counting Bloom filter holds all values with tags, materialized or not, so that lookups of absent values 
+ * neither probe the snapshot nor the index by value. It is built on the first lookup after open, so that opening
+ * does not visit every value of the snapshot, and rebuilt whenever it outgrows its capacity.
+ * @author adeftu
+ *
+ */
+class HeapDB {
+	private static int snapshotInterval = 10000;
+	private static final int FILTER_CAPACITY = 10000;		// Initial number of values of the filter.
+	private static final double FILTER_FPP = 0.01;
+	private static final HashMap<String, HeapDB> databases = new HashMap<String, HeapDB>();
+
+	private final String fileName;
+	private final HeapJournal journal;
+	private int refs = 0;		// Number of stores using the database. Guarded by HeapDB.class.
+	private boolean online = true;
+	private Timestamps timestamps = new Timestamps();
+	private HashMap<String, ArrayList<Element>> values = new HashMap<String, ArrayList<Element>>();
+	private ArrayList<TreeMap<Long, ArrayList<Element>>> log = new ArrayList<TreeMap<Long, ArrayList<Element>>>();	// Indexed by replica ordinal.
+	private int dirty = 0;		// Number of mutations since the last snapshot.
+	private HeapSnapshot snapshot = null;		// Snapshot with values not yet materialized.
+	private BitSet materialized = null;			// Materialized values of the snapshot.
+	private int numMaterialized = 0;
+	private long[] purged = new long[0];		// Per replica ordinal, timestamp up to which removed tags were purged.
+	private CountingBloomFilter filter = new CountingBloomFilter(FILTER_CAPACITY, FILTER_FPP);	// Null until the first lookup after open.
+
+	private HeapDB(String fileName) {
+		this.fileName = fileName;
+		this.journal = new HeapJournal(fileName + ".journal");
+	}
+
+	/**
+	 * Get the database stored in the given file, loading it on first use.
+	 * A file written before HeapSnapshot is converted and kept as <file>.legacy.
+	 * A file which cannot be read fails the open, so that the next snapshot does not overwrite it.
+	 */
+	static synchronized HeapDB open(String fileName) {
+		HeapDB db = databases.get(fileName);
+		if (db == null) {
+			db = new HeapDB(fileName);
+			try {
+				final File legacy = new File(fileName + ".legacy");
+				if (LegacyHeapFile.isLegacy(new File(fileName))) {
+					if (!new File(fileName).renameTo(legacy))
+						throw new IOException(String.format("Cannot rename %s to %s", fileName, legacy));
+					HeapSnapshot.syncDirectory(legacy);
+				}
+				if (!new File(fileName).exists() && legacy.exists()) {
+					db.journal.open(0, db.new Replayer());
+					db.convert(new LegacyHeapFile(legacy));
+				}
+				else
+					db.journal.open(db.readSnapshot(), db.new Replayer());
+			} catch (IOException e) {
+				throw new IllegalStateException(String.format("Cannot open heap store %s: %s", fileName, e.getMessage()), e);
+			}
+			databases.put(fileName, db);
+		}
+		++db.refs;
+		return db;
+	}
+
+
+	/**
+	 * Release the database for a store. Once released by all its stores, the journal is committed and closed,
+	 * and the next open() loads the database from its files again.
+	 */
+	void close() throws IOException {
+		synchronized (HeapDB.class) {
+			if (--refs > 0)
+				return;
+			databases.remove(fileName);
+		}
+		synchronized (this) {
+			journal.release();
+		}
+	}
+
+
+	/**
+	 * Set the number of mutations between two snapshots of each database.
+	 */
+	static void setSnapshotInterval(int interval) {
+		snapshotInterval = interval;
+	}
+
+
+	/**
+	 * Load the content of a legacy file and write it as a snapshot.
+	 * Elements are not checked against the timestamps, which cover all of them.
+	 */
+	private void convert(LegacyHeapFile legacy) throws IOException {
+		online = legacy.online;
+		applyUpdates(legacy.elements, false);
+		applyMaxTimestamps(legacy.timestamps);
+		writeSnapshot();
+	}
+
+
+	synchronized boolean isOnline() {
+		return online;
+	}
+
+	synchronized void setOnline(boolean online) throws IOException {
+		journal.logOnline(online);
+		this.online = online;
+		mutated();
+	}
+
+
+	/**
+	 * Apply journal records on top of the snapshot.
+	 */
+	private class Replayer implements HeapJournal.Replayer {
+		@Override
+		public void replay(byte type, DataInputStream in) throws IOException {
+			switch (type) {
+			case HeapJournal.RECORD_ADD:
+				applyAdd(HeapJournal.readString(in), in.readLong(), HeapJournal.readString(in), HeapJournal.readString(in), in.readLong());
+				break;
+			case HeapJournal.RECORD_REMOVE:
+				applyRemove(HeapJournal.readString(in), in.readLong(), HeapJournal.readString(in), HeapJournal.readString(in), in.readLong());
+				break;
+			case HeapJournal.RECORD_UPDATES:
+				applyUpdates(HeapJournal.readUpdates(in), true);
+				break;
+			case HeapJournal.RECORD_MIGRATED_UPDATES:
+				applyUpdates(HeapJournal.readUpdates(in), false);
+				break;
+			case HeapJournal.RECORD_MIGRATED_DELETES:
+				applyDeletes(HeapJournal.readUpdates(in));
+				break;
+			case HeapJournal.RECORD_MAX_TIMESTAMPS:
+				applyMaxTimestamps(HeapJournal.readTimestamps(in));
+				break;
+			case HeapJournal.RECORD_ONLINE:
+				online = in.readByte() != 0;
+				break;
+			default:
+				throw new IOException(String.format("Unknown journal record type %d", type));
+			}
+		}
+	}
+
+
+	private boolean isExpired(Element e) {
+		if (Element.getTTL() < 0)
+			return false;
+		return e.gc_time + Element.getTTL() * 1000 <= System.currentTimeMillis();
+	}
+
+
+	/**
+	 * Get the timestamp log of a replica store.
+	 */
+	private TreeMap<Long, ArrayList<Element>> log(int replica) {
+		while (log.size() <= replica)
+			log.add(null);
+		TreeMap<Long, ArrayList<Element>> entries = log.get(replica);
+		if (entries == null) {
+			entries = new TreeMap<Long, ArrayList<Element>>();
+			log.set(replica, entries);
+		}
+		return entries;
+	}
+
+
+	/**
+	 * Append an element to the timestamp log of the (rc, rs) which last updated it.
+	 */
+	private void logElement(Element e) {
+		final TreeMap<Long, ArrayList<Element>> entries = log(e.isRemoved() ? e.removed : e.added);
+		final long t = e.isRemoved() ? e.removed_t : e.added_t;
+		ArrayList<Element> elements = entries.get(t);
+		if (elements == null) {
+			elements = new ArrayList<Element>(1);
+			entries.put(t, elements);
+		}
+		elements.add(e);
+	}
+
+
+	/**
+	 * Remove an element from the timestamp log of the (rc, rs) which last updated it.
+	 */
+	private void unlogElement(Element e) {
+		final TreeMap<Long, ArrayList<Element>> entries = log(e.isRemoved() ? e.removed : e.added);
+		final long t = e.isRemoved() ? e.removed_t : e.added_t;
+		ArrayList<Element> elements = entries.get(t);
+		if (elements == null)
+			return;
+		for (Iterator<Element> it = elements.iterator(); it.hasNext(); ) {
+			if (it.next() == e) {
+				it.remove();
+				break;
+			}
+		}
+		if (elements.isEmpty())
+			entries.remove(t);
+	}
+
+
+	/**
+	 * Move the tags of a snapshot value into the resident state.
+	 */
+	private void materialize(int index) {
+		materialized.set(index);
+		++numMaterialized;
+		for (Element e : snapshot.tags(index)) {
+			ArrayList<Element> tags = values.get(e.value);
+			if (tags == null) {
+				tags = new ArrayList<Element>(1);
+				values.put(e.value, tags);
+			}
+			tags.add(e);
+			logElement(e);
+		}
+		if (numMaterialized == snapshot.getNumValues()) {
+			snapshot = null;
+			materialized = null;
+		}
+	}
+
+
+	private void materializeAll() {
+		for (int index = 0; snapshot != null; ++index) {
+			if (!materialized.get(index))
+				materialize(index);
+		}
+	}
+
+
+	/**
+	 * Get all tags of a value, dropping the expired ones.
+	 */
+	private ArrayList<Element> tags(String value, boolean create) {
+		if (snapshot != null) {
+			final int index = snapshot.find(value);
+			if (index >= 0 && !materialized.get(index))
+				materialize(index);
+		}
+		ArrayList<Element> tags = values.get(value);
+		if (tags == null) {
+			if (create) {
+				tags = new ArrayList<Element>(1);
+				values.put(value, tags);
+				filterAdd(value);
+			}
+			return tags;
+		}
+		for (Iterator<Element> it = tags.iterator(); it.hasNext(); ) {
+			Element e = it.next();
+			if (isExpired(e)) {
+				it.remove();
+				unlogElement(e);
+			}
+		}
+		if (tags.isEmpty() && !create) {
+			values.remove(value);
+			filterRemove(value);
+			return null;
+		}
+		return tags;
+	}
+
+
+	/**
+	 * Add a new value to the filter, rebuilding it with twice the values once it is full.
+	 */
+	private void filterAdd(String value) {
+		if (filter == null)
+			return;
+		filter.add(value);
+		if (filter.size() > filter.getCapacity())
+			rebuildFilter();
+	}
+
+
+	private void filterRemove(String value) {
+		if (filter != null)
+			filter.remove(value);
+	}
+
+
+	/**
+	 * Rebuild the filter from the values with tags, resident or in the snapshot.
+	 */
+	private void rebuildFilter() {
+		int numValues = values.size();
+		if (snapshot != null)
+			numValues += snapshot.getNumValues() - numMaterialized;
+		filter = new CountingBloomFilter(Math.max(FILTER_CAPACITY, 2 * numValues), FILTER_FPP);
+		for (String value : values.keySet())
+			filter.add(value);
+		if (snapshot != null) {
+			for (int index = 0; index < snapshot.getNumValues(); ++index) {
+				if (!materialized.get(index))
+					filter.add(snapshot.value(index));
+			}
+		}
+	}
+
+
+	private static Element copy(Element e) {
+		Element c = new Element(e.value, e.added_t, e.added, e.removed_t, e.removed);
+		c.gc_time = e.gc_time;
+		return c;
+	}
+
+
+	synchronized void add(String value, String rc, String rs) throws IOException {
+		final long t = timestamps.get(rc, rs) + 1;
+		final long gcTime = System.currentTimeMillis();
+		journal.logAdd(value, t, rc, rs, gcTime);
+		applyAdd(value, t, rc, rs, gcTime);
+		mutated();
+	}
+
+
+	private void applyAdd(String value, long t, String rc, String rs, long gcTime) {
+		timestamps.set(rc, rs, Math.max(timestamps.get(rc, rs), t));
+		Element e = new Element(value, t, Replicas.ordinal(rc, rs));
+		e.gc_time = gcTime;
+		tags(value, true).add(e);
+		logElement(e);
+	}
+
+
+	synchronized void remove(String value, String rc, String rs) throws IOException {
+		final long t = timestamps.get(rc, rs) + 1;
+		final long gcTime = System.currentTimeMillis();
+		journal.logRemove(value, t, rc, rs, gcTime);
+		applyRemove(value, t, rc, rs, gcTime);
+		mutated();
+	}
+
+
+	private void applyRemove(String value, long t, String rc, String rs, long gcTime) {
+		timestamps.set(rc, rs, Math.max(timestamps.get(rc, rs), t));
+		final int replica = Replicas.ordinal(rc, rs);
+		ArrayList<Element> tags = tags(value, false);
+		if (tags != null) {
+			for (Element e : tags) {
+				if (!e.isRemoved()) {
+					unlogElement(e);
+					e.removed_t = t;
+					e.removed = replica;
+					e.gc_time = gcTime;
+					logElement(e);
+				}
+			}
+		}
+	}
+
+
+	synchronized void addAll(Collection<String> values, String rc, String rs) throws IOException {
+		for (String value : values)
+			add(value, rc, rs);
+	}
+
+
+	synchronized void removeAll(Collection<String> values, String rc, String rs) throws IOException {
+		for (String value : values)
+			remove(value, rc, rs);
+	}
+
+
+	synchronized boolean[] lookupAll(List<String> values) {
+		boolean[] result = new boolean[values.size()];
+		int i = 0;
+		for (String value : values)
+			result[i++] = lookup(value);
+		return result;
+	}
+
+
+	synchronized boolean lookup(String value) {
+		if (filter == null)
+			rebuildFilter();
+		if (!filter.mightContain(value))
+			return false;
+		ArrayList<Element> tags = tags(value, false);
+		if (tags == null)
+			return false;
+		for (Element e : tags) {
+			if (!e.isRemoved())
+				return true;
+		}
+		return false;
+	}
+
+
+	synchronized Timestamps getTimestamps() {
+		return new Timestamps(timestamps);
+	}
+
+
+	synchronized void updateMaxTimestamps(Timestamps other) throws IOException {
+		journal.logMaxTimestamps(other);
+		applyMaxTimestamps(other);
+		mutated();
+	}
+
+
+	private void applyMaxTimestamps(Timestamps other) {
+		timestamps.max(other);
+	}
+
+
+	/**
+	 * Get copies of all elements last updated after the given timestamps.
+	 */
+	synchronized List<Element> getUpdates(Timestamps timestamps) {
+		materializeAll();
+		ArrayList<Element> updates = new ArrayList<Element>();
+		for (int replica = 0; replica < log.size(); ++replica) {
+			if (log.get(replica) == null)
+				continue;
+			final long t = timestamps.get(replica);
+			for (ArrayList<Element> elements : log.get(replica).tailMap(t, false).values()) {
+				for (Element e : elements) {
+					if (!isExpired(e))
+						updates.add(copy(e));
+				}
+			}
+		}
+		return updates;
+	}
+
+
+	/**
+	 * Stream copies of all elements last updated after the given timestamps, one page at a time.
+	 * The lock is only held while a page is collected, not while the handler runs.
+	 */
+	void getUpdates(Timestamps timestamps, int pageSize, Store.UpdateHandler handler) throws Exception {
+		int replica = 0;
+		long from = timestamps.get(replica);	// Position within the log of the replica.
+		while (true) {
+			ArrayList<Element> page = new ArrayList<Element>();
+			synchronized (this) {
+				materializeAll();
+				while (replica < log.size() && page.size() < pageSize) {
+					if (log.get(replica) != null) {
+						for (Map.Entry<Long, ArrayList<Element>> entry : log.get(replica).tailMap(from, false).entrySet()) {
+							for (Element e : entry.getValue()) {
+								if (!isExpired(e))
+									page.add(copy(e));
+							}
+							from = entry.getKey();
+							if (page.size() >= pageSize)
+								break;
+						}
+					}
+					if (page.size() < pageSize)
+						from = timestamps.get(++replica);
+				}
+			}
+			if (page.isEmpty())
+				return;
+			handler.handle(page);
+		}
+	}
+
+
+	/**
+	 * Add updates and then update the timestamps, both under the same lock.
+	 */
+	synchronized void addUpdates(List<Element> updates, Timestamps other) throws IOException {
+		addUpdates(updates);
+		updateMaxTimestamps(other);
+	}
+
+
+	synchronized void addUpdates(List<Element> updates) throws IOException {
+		journal.logUpdates(updates);
+		applyUpdates(updates, true);
+		mutated();
+	}
+
+
+	/**
+	 * Add tuples migrated from another store, which the timestamps may cover without them having been purged here.
+	 */
+	synchronized void addMigratedUpdates(List<Element> updates) throws IOException {
+		journal.logMigratedUpdates(updates);
+		applyUpdates(updates, false);
+		mutated();
+	}
+
+
+	/**
+	 * Delete tuples migrated to another store, unless they were removed since they were read.
+	 */
+	synchronized int deleteMigratedUpdates(List<Element> updates) throws IOException {
+		journal.logMigratedDeletes(updates);
+		final int n = applyDeletes(updates);
+		mutated();
+		return n;
+	}
+
+
+	private int applyDeletes(List<Element> updates) {
+		int n = 0;
+		for (Element u : updates) {
+			ArrayList<Element> tags = tags(u.value, false);
+			if (tags == null)
+				continue;
+			for (Iterator<Element> it = tags.iterator(); it.hasNext(); ) {
+				Element e = it.next();
+				if (e.sameTag(u) && e.isRemoved() == u.isRemoved()) {
+					it.remove();
+					unlogElement(e);
+					++n;
+					break;
+				}
+			}
+			if (tags.isEmpty()) {
+				values.remove(u.value);
+				filterRemove(u.value);
+			}
+		}
+		return n;
+	}
+
+
+	/**
+	 * Merge updates into the store. A tag is identified by (value, added_t, added_rc, added_rs);
+	 * a removed tag stays removed and, if skipCovered, a missing tag already covered by the timestamps was purged, so it is not re-added.
+	 */
+	private void applyUpdates(List<Element> updates, boolean skipCovered) {
+		for (Element u : updates) {
+			ArrayList<Element> tags = tags(u.value, true);
+			Element existing = null;
+			for (Element e : tags) {
+				if (e.sameTag(u)) {
+					existing = e;
+					break;
+				}
+			}
+			if (existing == null) {
+				if (skipCovered && (u.isRemoved() ? u.removed_t <= timestamps.get(u.removed) : u.added_t <= timestamps.get(u.added))) {
+					if (tags.isEmpty()) {
+						values.remove(u.value);
+						filterRemove(u.value);
+					}
+					continue;
+				}
+				Element e = copy(u);
+				tags.add(e);
+				logElement(e);
+			}
+			else if (!existing.isRemoved() && u.isRemoved()) {
+				unlogElement(existing);
+				existing.removed_t = u.removed_t;
+				existing.removed = u.removed;
+				existing.gc_time = u.gc_time;
+				logElement(existing);
+			}
+		}
+	}
+
+
+	/**
+	 * Drop removed tags with removed_t <= stable[removed], starting after the last purged timestamp of each replica.
+	 * Purging is not journaled: tags which come back from the journal after a restart are purged again.
+	 */
+	synchronized int purgeTombstones(Timestamps stable, int limit) {
+		materializeAll();
+		if (purged.length < log.size())
+			purged = Arrays.copyOf(purged, log.size());
+		int n = 0;
+		for (int replica = 0; replica < log.size() && n < limit; ++replica) {
+			if (log.get(replica) == null || stable.get(replica) <= purged[replica])
+				continue;
+			Iterator<Map.Entry<Long, ArrayList<Element>>> it = log.get(replica).subMap(purged[replica], false, stable.get(replica), true).entrySet().iterator();
+			while (it.hasNext() && n < limit) {
+				Map.Entry<Long, ArrayList<Element>> entry = it.next();
+				for (Iterator<Element> elements = entry.getValue().iterator(); elements.hasNext(); ) {
+					Element e = elements.next();
+					if (!e.isRemoved())
+						continue;
+					elements.remove();
+					ArrayList<Element> tags = values.get(e.value);
+					for (Iterator<Element> t = tags.iterator(); t.hasNext(); ) {
+						if (t.next() == e) {
+							t.remove();
+							break;
+						}
+					}
+					if (tags.isEmpty()) {
+						values.remove(e.value);
+						filterRemove(e.value);
+					}
+					++n;
+				}
+				if (entry.getValue().isEmpty())
+					it.remove();
+				purged[replica] = entry.getKey();
+			}
+			if (!it.hasNext())
+				purged[replica] = stable.get(replica);
+		}
+		return n;
+	}
+
+
+	synchronized void clear() throws IOException {
+		journal.clear();
+		new File(fileName).delete();
+		new File(fileName + ".legacy").delete();
+		online = true;
+		timestamps = new Timestamps();
+		values = new HashMap<String, ArrayList<Element>>();
+		log = new ArrayList<TreeMap<Long, ArrayList<Element>>>();
+		purged = new long[0];
+		snapshot = null;
+		materialized = null;
+		filter = new CountingBloomFilter(FILTER_CAPACITY, FILTER_FPP);
+		dirty = 0;
+	}
+
+
+	/**
+	 * Count a mutation and write a snapshot if due. A snapshot which fails also fails the journal:
+	 * later mutations are rejected until the database is cleared, instead of being taken by a failing disk.
+	 */
+	private void mutated() throws IOException {
+		if (++dirty >= snapshotInterval) {
+			try {
+				writeSnapshot();
+			} catch (IOException e) {
+				journal.fail(e);
+				throw new IOException(String.format("Snapshot of %s failed: %s", fileName, e.getMessage()), e);
+			}
+		}
+	}
+
+
+	/**
+	 * Map the snapshot, if any.
+	 * @return	Last journal segment covered by the snapshot.
+	 */
+	private long readSnapshot() throws IOException {
+		snapshot = HeapSnapshot.open(fileName);
+		if (snapshot == null)
+			return 0;
+		online = snapshot.isOnline();
+		timestamps = snapshot.getTimestamps();
+		final long covered = snapshot.getCovered();
+		if (snapshot.getNumValues() == 0)
+			snapshot = null;
+		else {
+			materialized = new BitSet(snapshot.getNumValues());
+			numMaterialized = 0;
+		}
+		filter = null;
+		return covered;
+	}
+
+
+	/**
+	 * Roll the journal and write a snapshot covering all complete segments, then drop them.
+	 */
+	private void writeSnapshot() throws IOException {
+		materializeAll();
+		final long covered = journal.roll();
+		HeapSnapshot.write(fileName, covered, online, timestamps, values);
+		journal.truncate(covered);
+		dirty = 0;
+	}
+}
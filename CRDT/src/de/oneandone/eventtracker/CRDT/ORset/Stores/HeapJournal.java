@@ -0,0 +1,422 @@
+package de.oneandone.eventtracker.CRDT.ORset.Stores;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import de.oneandone.eventtracker.CRDT.ORset.Element;
+import de.oneandone.eventtracker.CRDT.ORset.Replicas;
+import de.oneandone.eventtracker.CRDT.ORset.Timestamps;
+
+/**
+ * Append-only write-ahead journal of a heap store.
+ * Each mutation is appended as one record [length, crc32, type, payload] to the current segment file.
+ * Records are buffered and written out and fsync-ed in groups (group commit), either when
+ * syncBytes have been appended since the last commit or every syncInterval milliseconds,
+ * whichever comes first. A crash therefore loses at most the records of the last commit window.
+ * Segments are numbered; a snapshot covers all segments up to a given number, after which they are deleted.
+ * @author adeftu
+ *
+ */
+class HeapJournal {
+	static final byte RECORD_ADD = 1;
+	static final byte RECORD_REMOVE = 2;
+	static final byte RECORD_UPDATES = 3;
+	static final byte RECORD_MAX_TIMESTAMPS = 4;
+	static final byte RECORD_ONLINE = 5;
+	static final byte RECORD_MIGRATED_UPDATES = 6;
+	static final byte RECORD_MIGRATED_DELETES = 7;
+
+	private static long syncInterval = 100;		// Maximum time in milliseconds between two commits.
+	private static long syncBytes = 1 << 20;	// Maximum number of bytes appended between two commits.
+
+	private static final CopyOnWriteArrayList<HeapJournal> journals = new CopyOnWriteArrayList<HeapJournal>();
+	private static ScheduledExecutorService syncer = null;
+
+	/**
+	 * Callback for replaying records.
+	 */
+	interface Replayer {
+		void replay(byte type, DataInputStream in) throws IOException;
+	}
+
+	private final String prefix;
+	private long segment;
+	private FileOutputStream file = null;
+	private DataOutputStream out = null;
+	private long uncommittedBytes = 0;
+	private IOException failure = null;		// First error of a commit or of a snapshot, after which appends are rejected.
+
+	/**
+	 * Set the group commit policy.
+	 * @param interval	Maximum time in milliseconds between two commits.
+	 * @param bytes		Maximum number of bytes appended between two commits.
+	 */
+	static synchronized void setSync(long interval, long bytes) {
+		syncInterval = interval;
+		syncBytes = bytes;
+		if (syncer != null) {
+			syncer.shutdown();
+			syncer = null;
+		}
+		startSyncer();
+	}
+
+	private static synchronized void startSyncer() {
+		if (syncer != null)
+			return;
+		syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "heap-journal-sync");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		syncer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				for (HeapJournal journal : journals) {
+					try {
+						journal.commit();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+	}
+
+
+	/**
+	 * @param prefix	Path prefix of the segment files, which are named prefix.N.
+	 */
+	HeapJournal(String prefix) {
+		this.prefix = prefix;
+		startSyncer();
+		journals.add(this);
+	}
+
+
+	private File segmentFile(long segment) {
+		return new File(String.format("%s.%d", prefix, segment));
+	}
+
+
+	/**
+	 * Numbers of all segments on disk, in ascending order.
+	 */
+	private List<Long> segments() {
+		ArrayList<Long> segments = new ArrayList<Long>();
+		File dir = new File(prefix).getAbsoluteFile().getParentFile();
+		final String name = new File(prefix).getName() + ".";
+		String[] files = dir.list();
+		if (files != null) {
+			for (String f : files) {
+				if (f.startsWith(name)) {
+					try {
+						segments.add(Long.parseLong(f.substring(name.length())));
+					} catch (NumberFormatException e) {
+					}
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+
+	/**
+	 * Replay all records of the segments after the given one and open a new segment for appending.
+	 * A torn record at the end of a segment (e.g. after a crash) ends its replay.
+	 * @param covered	Last segment already covered by the snapshot.
+	 */
+	synchronized void open(long covered, Replayer replayer) throws IOException {
+		segment = covered;
+		for (long s : segments()) {
+			if (s <= covered) {
+				segmentFile(s).delete();
+				continue;
+			}
+			replaySegment(segmentFile(s), replayer);
+			segment = s;
+		}
+		roll();
+	}
+
+
+	private void replaySegment(File f, Replayer replayer) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		long valid = 0;
+		try {
+			while (true) {
+				final int length;
+				final long crc;
+				final byte[] payload;
+				try {
+					length = in.readInt();
+					if (length <= 0 || valid + 8 + length > f.length())
+						break;
+					crc = in.readInt() & 0xFFFFFFFFL;
+					payload = new byte[length];
+					in.readFully(payload);
+				} catch (EOFException e) {
+					break;
+				}
+				CRC32 checksum = new CRC32();
+				checksum.update(payload);
+				if (checksum.getValue() != crc)
+					break;
+				DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+				replayer.replay(record.readByte(), record);
+				valid += 8 + length;
+			}
+		} finally {
+			in.close();
+		}
+		if (valid < f.length()) {
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			raf.setLength(valid);
+			raf.close();
+		}
+	}
+
+
+	/**
+	 * Commit the current segment and start a new one.
+	 * @return	Number of the last complete segment.
+	 */
+	synchronized long roll() throws IOException {
+		close();
+		final long complete = segment;
+		++segment;
+		file = new FileOutputStream(segmentFile(segment), true);
+		out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+		return complete;
+	}
+
+
+	/**
+	 * Delete the segments covered by a snapshot.
+	 */
+	synchronized void truncate(long covered) {
+		for (long s : segments()) {
+			if (s <= covered)
+				segmentFile(s).delete();
+		}
+	}
+
+
+	private synchronized void append(byte[] payload) throws IOException {
+		if (failure != null)
+			throw new IOException(String.format("Journal %s failed: %s", prefix, failure.getMessage()), failure);
+		if (out == null)
+			throw new IOException(String.format("Journal %s is not open", prefix));
+		CRC32 checksum = new CRC32();
+		checksum.update(payload);
+		out.writeInt(payload.length);
+		out.writeInt((int) checksum.getValue());
+		out.write(payload);
+		uncommittedBytes += 8 + payload.length;
+		if (uncommittedBytes >= syncBytes)
+			commit();
+	}
+
+
+	/**
+	 * Write out buffered records and fsync the segment.
+	 */
+	synchronized void commit() throws IOException {
+		if (out == null || uncommittedBytes == 0)
+			return;
+		try {
+			out.flush();
+			file.getFD().sync();
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		}
+		uncommittedBytes = 0;
+	}
+
+
+	/**
+	 * Reject all later appends, the records already appended being possibly lost.
+	 */
+	synchronized void fail(IOException e) {
+		if (failure == null)
+			failure = e;
+	}
+
+
+	/**
+	 * Close the journal for good, once its store is no longer used.
+	 */
+	synchronized void release() throws IOException {
+		journals.remove(this);
+		close();
+	}
+
+
+	synchronized void close() throws IOException {
+		if (out == null)
+			return;
+		commit();
+		out.close();
+		out = null;
+		file = null;
+	}
+
+
+	/**
+	 * Delete all segments.
+	 */
+	synchronized void clear() throws IOException {
+		close();
+		for (long s : segments())
+			segmentFile(s).delete();
+		segment = 0;
+		failure = null;
+		roll();
+	}
+
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+
+	void logAdd(String value, long t, String rc, String rs, long gcTime) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(RECORD_ADD);
+		writeString(record, value);
+		record.writeLong(t);
+		writeString(record, rc);
+		writeString(record, rs);
+		record.writeLong(gcTime);
+		append(bytes.toByteArray());
+	}
+
+
+	void logRemove(String value, long t, String rc, String rs, long gcTime) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(RECORD_REMOVE);
+		writeString(record, value);
+		record.writeLong(t);
+		writeString(record, rc);
+		writeString(record, rs);
+		record.writeLong(gcTime);
+		append(bytes.toByteArray());
+	}
+
+
+	void logUpdates(List<Element> updates) throws IOException {
+		logUpdates(RECORD_UPDATES, updates);
+	}
+
+
+	void logMigratedUpdates(List<Element> updates) throws IOException {
+		logUpdates(RECORD_MIGRATED_UPDATES, updates);
+	}
+
+
+	void logMigratedDeletes(List<Element> updates) throws IOException {
+		logUpdates(RECORD_MIGRATED_DELETES, updates);
+	}
+
+
+	private void logUpdates(byte type, List<Element> updates) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(type);
+		record.writeInt(updates.size());
+		for (Element e : updates) {
+			writeString(record, e.value);
+			record.writeLong(e.added_t);
+			writeString(record, e.getAddedRC());
+			writeString(record, e.getAddedRS());
+			record.writeBoolean(e.isRemoved());
+			if (e.isRemoved()) {
+				record.writeLong(e.removed_t);
+				writeString(record, e.getRemovedRC());
+				writeString(record, e.getRemovedRS());
+			}
+			record.writeLong(e.gc_time);
+		}
+		append(bytes.toByteArray());
+	}
+
+
+	static List<Element> readUpdates(DataInputStream in) throws IOException {
+		final int n = in.readInt();
+		LinkedList<Element> updates = new LinkedList<Element>();
+		for (int i = 0; i < n; ++i) {
+			final String value = readString(in);
+			final long addedT = in.readLong();
+			final int added = Replicas.ordinal(readString(in), readString(in));
+			Element e;
+			if (in.readBoolean()) {
+				final long removedT = in.readLong();
+				e = new Element(value, addedT, added, removedT, Replicas.ordinal(readString(in), readString(in)));
+			}
+			else
+				e = new Element(value, addedT, added);
+			e.gc_time = in.readLong();
+			updates.add(e);
+		}
+		return updates;
+	}
+
+
+	void logMaxTimestamps(Timestamps other) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(bytes);
+		record.writeByte(RECORD_MAX_TIMESTAMPS);
+		byte[] encoded = other.encode();
+		record.writeInt(encoded.length);
+		record.write(encoded);
+		append(bytes.toByteArray());
+	}
+
+
+	static Timestamps readTimestamps(DataInputStream in) throws IOException {
+		byte[] encoded = new byte[in.readInt()];
+		in.readFully(encoded);
+		return Timestamps.decode(encoded);
+	}
+
+
+	void logOnline(boolean online) throws IOException {
+		append(new byte[] {RECORD_ONLINE, (byte) (online ? 1 : 0)});
+	}
+}
@@ -0,0 +1,368 @@
+package de.oneandone.eventtracker.CRDT.ORset.Stores;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.oneandone.eventtracker.CRDT.ORset.Element;
+import de.oneandone.eventtracker.CRDT.ORset.Replicas;
+import de.oneandone.eventtracker.CRDT.ORset.Timestamps;
+
+/**
+ * Binary snapshot of a heap store, read through memory mapping.
+ * Opening a snapshot only maps the file and reads the header and timestamps; the tags of a value
+ * are materialized into elements when the value is first accessed.
+ * File format (version 1, big endian):
+ * - header: magic, version, covered journal segment, online flag, section sizes;
+ * - timestamps: (rc string, rs string, t) per cell;
+ * - string directory: (offset, length) of each string in the string heap;
+ *   strings are the values and the rc/rs IDs, each stored once;
+ * - value directory: (value string, first row, number of rows), rows of a value being consecutive;
+ * - hash table: open addressing on String.hashCode() of the value, slots holding value index + 1;
+ * - rows: fixed width (added_t, removed_t, gc_time, added_rc, added_rs, removed_rc, removed_rs),
+ *   with removed_t == Element.NOT_REMOVED and removed IDs == -1 for tags which are not removed;
+ * - string heap: UTF-8 bytes.
+ * Each section is mapped separately and must not exceed 2GB.
+ * @author adeftu
+ *
+ */
+class HeapSnapshot {
+	private static final int MAGIC = 0x4F525353;	// "ORSS"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 1 + 5 * 4 + 8;
+	private static final int TIMESTAMP_SIZE = 4 + 4 + 8;
+	private static final int STRING_SIZE = 4 + 4;
+	private static final int VALUE_SIZE = 4 + 4 + 4;
+	private static final int ROW_SIZE = 3 * 8 + 4 * 4;
+
+	private final long covered;
+	private final boolean online;
+	private final Timestamps timestamps = new Timestamps();
+	private final int numValues;
+	private final int hashSlots;
+	private final ByteBuffer strings;
+	private final ByteBuffer values;
+	private final ByteBuffer hash;
+	private final ByteBuffer rows;
+	private final ByteBuffer heap;
+	private final HashMap<Integer, String> ids = new HashMap<Integer, String>();	// Decoded rc/rs IDs.
+	private final HashMap<Long, Integer> replicas = new HashMap<Long, Integer>();	// (rc, rs) string indexes to replica ordinal.
+
+	private HeapSnapshot(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_SIZE)
+				throw new IOException(String.format("%s is not a heap store snapshot", f));
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC)
+				throw new IOException(String.format("%s is not a heap store snapshot", f));
+			final int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException(String.format("Unsupported snapshot version %d in %s", version, f));
+			covered = header.getLong();
+			online = header.get() != 0;
+			final int numTimestamps = header.getInt();
+			final int numStrings = header.getInt();
+			numValues = header.getInt();
+			hashSlots = header.getInt();
+			final int numRows = header.getInt();
+			final long heapSize = header.getLong();
+
+			long offset = HEADER_SIZE;
+			MappedByteBuffer ts = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) numTimestamps * TIMESTAMP_SIZE);
+			offset += (long) numTimestamps * TIMESTAMP_SIZE;
+			strings = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) numStrings * STRING_SIZE);
+			offset += (long) numStrings * STRING_SIZE;
+			values = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) numValues * VALUE_SIZE);
+			offset += (long) numValues * VALUE_SIZE;
+			hash = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) hashSlots * 4);
+			offset += (long) hashSlots * 4;
+			rows = channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) numRows * ROW_SIZE);
+			offset += (long) numRows * ROW_SIZE;
+			heap = channel.map(FileChannel.MapMode.READ_ONLY, offset, heapSize);
+
+			for (int i = 0; i < numTimestamps; ++i)
+				timestamps.set(id(ts.getInt()), id(ts.getInt()), ts.getLong());
+		} finally {
+			raf.close();		// The mappings stay valid after the channel is closed.
+		}
+	}
+
+
+	/**
+	 * Open a snapshot file.
+	 * @return	The snapshot or null if the file does not exist.
+	 */
+	static HeapSnapshot open(String fileName) throws IOException {
+		File f = new File(fileName);
+		if (!f.exists())
+			return null;
+		return new HeapSnapshot(f);
+	}
+
+
+	long getCovered() {
+		return covered;
+	}
+
+	boolean isOnline() {
+		return online;
+	}
+
+	Timestamps getTimestamps() {
+		return timestamps;
+	}
+
+	int getNumValues() {
+		return numValues;
+	}
+
+
+	private byte[] bytes(int index) {
+		final int offset = strings.getInt(index * STRING_SIZE);
+		final int length = strings.getInt(index * STRING_SIZE + 4);
+		byte[] bytes = new byte[length];
+		ByteBuffer b = heap.duplicate();
+		b.position(offset);
+		b.get(bytes);
+		return bytes;
+	}
+
+
+	private String string(int index) {
+		try {
+			return new String(bytes(index), "UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	private synchronized String id(int index) {
+		if (index < 0)
+			return null;
+		String id = ids.get(index);
+		if (id == null) {
+			id = string(index);
+			ids.put(index, id);
+		}
+		return id;
+	}
+
+
+	private synchronized int replica(int rc, int rs) {
+		if (rc < 0)
+			return -1;
+		final long key = ((long) rc << 32) | (rs & 0xFFFFFFFFL);
+		Integer replica = replicas.get(key);
+		if (replica == null) {
+			replica = Replicas.ordinal(id(rc), id(rs));
+			replicas.put(key, replica);
+		}
+		return replica;
+	}
+
+
+	/**
+	 * Find the index of a value.
+	 * @return	The value index or -1 if the value is not in the snapshot.
+	 */
+	int find(String value) {
+		if (numValues == 0)
+			return -1;
+		final byte[] key;
+		try {
+			key = value.getBytes("UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		for (int slot = value.hashCode() & (hashSlots - 1); ; slot = (slot + 1) & (hashSlots - 1)) {
+			final int entry = hash.getInt(slot * 4);
+			if (entry == 0)
+				return -1;
+			final int index = entry - 1;
+			if (Arrays.equals(key, bytes(values.getInt(index * VALUE_SIZE))))
+				return index;
+		}
+	}
+
+
+	/**
+	 * Materialize the value with the given index.
+	 */
+	String value(int index) {
+		return string(values.getInt(index * VALUE_SIZE));
+	}
+
+
+	/**
+	 * Materialize all tags of the value with the given index.
+	 */
+	List<Element> tags(int index) {
+		final String value = value(index);
+		final int firstRow = values.getInt(index * VALUE_SIZE + 4);
+		final int numRows = values.getInt(index * VALUE_SIZE + 8);
+		ArrayList<Element> tags = new ArrayList<Element>(numRows);
+		for (int i = firstRow; i < firstRow + numRows; ++i) {
+			final int row = i * ROW_SIZE;
+			Element e = new Element(value,
+					rows.getLong(row), replica(rows.getInt(row + 24), rows.getInt(row + 28)),
+					rows.getLong(row + 8), replica(rows.getInt(row + 32), rows.getInt(row + 36)));
+			e.gc_time = rows.getLong(row + 16);
+			tags.add(e);
+		}
+		return tags;
+	}
+
+
+	/**
+	 * Write a snapshot. The file is written to a temporary file and renamed, so a crash never leaves a partial one,
+	 * and the directory is synced so that the rename itself is not lost.
+	 * @param covered	Last journal segment covered by the snapshot.
+	 */
+	static void write(String fileName, long covered, boolean online, Timestamps timestamps, Map<String, ? extends List<Element>> tags) throws IOException {
+		// Build the string table.
+		final HashMap<String, Integer> index = new HashMap<String, Integer>();
+		final ArrayList<byte[]> strings = new ArrayList<byte[]>();
+		class StringTable {
+			int intern(String s) throws IOException {
+				if (s == null)
+					return -1;
+				Integer i = index.get(s);
+				if (i == null) {
+					i = strings.size();
+					index.put(s, i);
+					strings.add(s.getBytes("UTF-8"));
+				}
+				return i;
+			}
+		}
+		StringTable table = new StringTable();
+		int numTimestamps = 0;
+		for (int replica = 0; replica < timestamps.size(); ++replica) {
+			if (timestamps.contains(replica)) {
+				table.intern(Replicas.getClusterID(replica));
+				table.intern(Replicas.getStoreID(replica));
+				++numTimestamps;
+			}
+		}
+		int numRows = 0;
+		final int numValues = tags.size();
+		int[] valueStrings = new int[numValues];
+		int[] valueHashes = new int[numValues];
+		int v = 0;
+		for (Map.Entry<String, ? extends List<Element>> entry : tags.entrySet()) {
+			valueStrings[v] = table.intern(entry.getKey());
+			valueHashes[v] = entry.getKey().hashCode();
+			for (Element e : entry.getValue()) {
+				table.intern(e.getAddedRC());
+				table.intern(e.getAddedRS());
+				table.intern(e.getRemovedRC());
+				table.intern(e.getRemovedRS());
+				++numRows;
+			}
+			++v;
+		}
+
+		// Build the hash table with a load factor of at most 0.5.
+		int hashSlots = 1;
+		while (hashSlots < 2 * numValues)
+			hashSlots <<= 1;
+		int[] slots = new int[hashSlots];
+		for (int i = 0; i < numValues; ++i) {
+			int slot = valueHashes[i] & (hashSlots - 1);
+			while (slots[slot] != 0)
+				slot = (slot + 1) & (hashSlots - 1);
+			slots[slot] = i + 1;
+		}
+		long heapSize = 0;
+		for (byte[] s : strings)
+			heapSize += s.length;
+
+		File tmp = new File(fileName + ".tmp");
+		FileOutputStream file = new FileOutputStream(tmp);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(covered);
+			out.writeByte(online ? 1 : 0);
+			out.writeInt(numTimestamps);
+			out.writeInt(strings.size());
+			out.writeInt(numValues);
+			out.writeInt(hashSlots);
+			out.writeInt(numRows);
+			out.writeLong(heapSize);
+
+			for (int replica = 0; replica < timestamps.size(); ++replica) {
+				if (timestamps.contains(replica)) {
+					out.writeInt(index.get(Replicas.getClusterID(replica)));
+					out.writeInt(index.get(Replicas.getStoreID(replica)));
+					out.writeLong(timestamps.get(replica));
+				}
+			}
+			int offset = 0;
+			for (byte[] s : strings) {
+				out.writeInt(offset);
+				out.writeInt(s.length);
+				offset += s.length;
+			}
+			int firstRow = 0;
+			v = 0;
+			for (List<Element> t : tags.values()) {
+				out.writeInt(valueStrings[v++]);
+				out.writeInt(firstRow);
+				out.writeInt(t.size());
+				firstRow += t.size();
+			}
+			for (int slot : slots)
+				out.writeInt(slot);
+			for (List<Element> t : tags.values()) {
+				for (Element e : t) {
+					out.writeLong(e.added_t);
+					out.writeLong(e.removed_t);
+					out.writeLong(e.gc_time);
+					out.writeInt(table.intern(e.getAddedRC()));
+					out.writeInt(table.intern(e.getAddedRS()));
+					out.writeInt(table.intern(e.getRemovedRC()));
+					out.writeInt(table.intern(e.getRemovedRS()));
+				}
+			}
+			for (byte[] s : strings)
+				out.write(s);
+			out.flush();
+			file.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(new File(fileName)))
+			throw new IOException(String.format("Could not rename %s", tmp));
+		syncDirectory(new File(fileName));
+	}
+
+
+	/**
+	 * Fsync the directory of a file, which makes the creation, renaming or deletion of the file durable.
+	 */
+	static void syncDirectory(File f) throws IOException {
+		FileChannel dir = FileChannel.open(f.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ);
+		try {
+			dir.force(true);
+		} finally {
+			dir.close();
+		}
+	}
+}
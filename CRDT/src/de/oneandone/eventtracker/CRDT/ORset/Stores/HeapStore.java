@@ -1,16 +1,15 @@
 package de.oneandone.eventtracker.CRDT.ORset.Stores;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 import de.oneandone.eventtracker.CRDT.ORset.Element;
+import de.oneandone.eventtracker.CRDT.ORset.Replicas;
 import de.oneandone.eventtracker.CRDT.ORset.Store;
 import de.oneandone.eventtracker.CRDT.ORset.Timestamps;
 import de.oneandone.eventtracker.CRDT.ORset.Topology;
@@ -19,64 +18,67 @@ import de.oneandone.eventtracker.CRDT.ORset.Topology;
 public class HeapStore extends Store {
 
 	private static Topology topology;
-	private String DB_FILE = "db_";
-	
-	private LinkedList<Element> elements = new LinkedList<Element>();
-	private Timestamps timestamps = new Timestamps();
+	private static String directory = ".";
+	private final HeapDB db;
+	private boolean closed = false;
 	
+	/**
+	 * Create a bootstrap store, which only serves the topology: it has no (rc, rs) and so no data.
+	 */
 	public HeapStore(InetSocketAddress address) {
 		super(address);
+		db = null;
 	}
 
 	
 	public HeapStore(String rc, String rs, InetSocketAddress address) {
 		super(rc, rs, address);
-		DB_FILE += String.format("%s:%s.bin", rc, rs);
+		db = HeapDB.open(new File(directory, String.format("db_%s:%s.bin", rc, rs)).getPath());
 	}
-
-	@SuppressWarnings("unchecked")
-	public void readDB() {
-		if (!new File(DB_FILE).exists()) {
-			timestamps = new Timestamps();
-			elements = new LinkedList<Element>();
-			return;
-		}
-		try {
-			ObjectInputStream in = new ObjectInputStream(new FileInputStream(DB_FILE));
-			online = in.readBoolean();
-			timestamps = (Timestamps) in.readObject();
-			elements = (LinkedList<Element>) in.readObject();
-			in.close();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+	
+	/**
+	 * Set the directory of the files of the heap stores created afterwards, the working directory by default.
+	 */
+	public static void setDirectory(String directory) {
+		HeapStore.directory = directory;
 	}
 	
-	public void writeDB() {
-		try {
-			ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(DB_FILE));
-			out.writeBoolean(online);
-			out.writeObject(timestamps);
-			out.writeObject(elements);
-			out.close();
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
+	private HeapDB db() {
+		if (db == null)
+			throw new IllegalStateException("A bootstrap heap store only serves the topology");
+		return db;
 	}
 
 	@Override
-	public void clear() throws TimeoutException {
-		new File(DB_FILE).delete();
-		timestamps = new Timestamps();
-		elements = new LinkedList<Element>();
+	public void clear() throws IOException {
+		db().clear();
+	}
+	
+	/**
+	 * Set the journal group commit policy of all heap stores.
+	 * @param interval	Maximum time in milliseconds between two fsyncs of the journal.
+	 * @param bytes		Maximum number of bytes appended to the journal between two fsyncs.
+	 */
+	public static void setJournalSync(long interval, long bytes) {
+		HeapJournal.setSync(interval, bytes);
+	}
+	
+	/**
+	 * Set the number of mutations of a heap store between two snapshots, 10000 by default.
+	 */
+	public static void setSnapshotInterval(int interval) {
+		HeapDB.setSnapshotInterval(interval);
 	}
 	
 	public static void clearAndSetTopology(String fileName) throws Exception {
 		topology = new Topology();
 		topology.loadFromFile(fileName);
+		Replicas.register(topology);
 		for (String rc : topology.getClusterIDs()) {
 			for (String rs : topology.getStoreIDs(rc)) {
-				new HeapStore(rc, rs, new InetSocketAddress("", 0)).clear();
+				HeapStore store = new HeapStore(rc, rs, new InetSocketAddress("", 0));
+				store.clear();
+				store.close();
 			}
 		}
 	}
@@ -84,7 +86,7 @@ public class HeapStore extends Store {
 	private boolean isOnline() {
 		if (!checkIfOnline)
 			return true;
-		return online;
+		return db().isOnline();
 	}
 	
 	/**
@@ -92,131 +94,135 @@ public class HeapStore extends Store {
 	 */
 	@Override
 	public Topology getTopology() throws Exception {
-		readDB();
 		if (!isOnline())
 			throw new TimeoutException("Timeout while fetching the topology");
 		return topology;
 	}
 
+	@Override
+	public void setTopology(Topology topology) throws Exception {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while setting the topology");
+		Replicas.register(topology);
+		HeapStore.topology = topology;
+	}
+
 	@Override
 	public void setOnline(boolean online) {
 		super.setOnline(online);
-		writeDB();
+		try {
+			db().setOnline(online);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 	
 	
 	@Override
-	public void add(String value) throws TimeoutException {
-		readDB();
+	public void add(String value) throws TimeoutException, IOException {
 		if (!isOnline())
 			throw new TimeoutException(String.format("Timeout while adding %s", value));
-		Long t = timestamps.get(rc, rs) + 1;
-		timestamps.set(rc, rs, t);
-		Element e = new Element(value, t, rc, rs, null, null, null);
-		e.gc_time = System.currentTimeMillis();
-		elements.add(e);
-		writeDB();
-	}
-
-	private boolean isExpired(Element e) {
-		if (Element.getTTL() < 0)
-			return false;
-		return e.gc_time + Element.getTTL() * 1000 <= System.currentTimeMillis();
+		db().add(value, rc, rs);
 	}
 	
 	@Override
-	public void remove(String value) throws TimeoutException {
-		readDB();
+	public void remove(String value) throws TimeoutException, IOException {
 		if (!isOnline())
 			throw new TimeoutException(String.format("Timeout while removing %s", value));
-		Long t = timestamps.get(rc, rs) + 1;
-		timestamps.set(rc, rs, t);
-		for (Element e : elements) {
-			if (!isExpired(e) && e.value.equals(value)) {
-				e.removed_t = t;
-				e.removed_rc = rc;
-				e.removed_rs = rs;
-				e.gc_time = System.currentTimeMillis();
-			}
-		}
-		writeDB();
+		db().remove(value, rc, rs);
 	}
 
 	@Override
 	public boolean lookup(String value) throws TimeoutException {
-		readDB();
 		if (!isOnline())
 			throw new TimeoutException(String.format("Timeout while looking up %s", value));
-		for (Element e : elements) {
-			if (!isExpired(e) &&
-				e.value.equals(value) && 
-				e.removed_t == null) {
-				boolean exists = true;
-				for (Element f : elements) {
-					if (!isExpired(f) &&
-						f.value.equals(value) &&
-						f.added_t.longValue() == e.added_t.longValue() &&
-						f.added_rc.equals(e.added_rc) &&
-						f.added_rs.equals(e.added_rs) &&
-						f.removed_t != null)
-						exists = false;
-				}
-				if (exists)
-					return true;
-			}
-		}
-		return false;
+		return db().lookup(value);
+	}
+
+	@Override
+	public void addAll(Collection<String> values) throws TimeoutException, IOException {
+		if (!isOnline())
+			throw new TimeoutException(String.format("Timeout while adding %d values", values.size()));
+		db().addAll(values, rc, rs);
+	}
+	
+	@Override
+	public void removeAll(Collection<String> values) throws TimeoutException, IOException {
+		if (!isOnline())
+			throw new TimeoutException(String.format("Timeout while removing %d values", values.size()));
+		db().removeAll(values, rc, rs);
+	}
+
+	@Override
+	public boolean[] lookupAll(List<String> values) throws TimeoutException {
+		if (!isOnline())
+			throw new TimeoutException(String.format("Timeout while looking up %d values", values.size()));
+		return db().lookupAll(values);
 	}
 
 	@Override
 	public Timestamps getTimestamps() throws TimeoutException {
-		readDB();
 		if (!isOnline())
 			throw new TimeoutException("Timeout while getting timestamps");
-		return timestamps;
+		return db().getTimestamps();
 	}
 
 	@Override
-	public void updateMaxTimestamps(Timestamps other) throws TimeoutException {
-		readDB();
+	public void updateMaxTimestamps(Timestamps other) throws TimeoutException, IOException {
 		if (!isOnline())
 			throw new TimeoutException("Timeout while updating timestamps");
-		for (String rc : other.getClusterIDs()) {
-			for (String rs : other.getStoreIDs(rc)) {
-				timestamps.set(rc, rs, Math.max(timestamps.get(rc, rs), other.get(rc, rs)));
-			}
-		}
-		writeDB();
+		db().updateMaxTimestamps(other);
 	}
 
 	@Override
 	public List<Element> getUpdates(Timestamps timestamps) throws TimeoutException {
-		readDB();
 		if (!isOnline())
 			throw new TimeoutException("Timeout while getting updates");
-		LinkedList<Element> updates = new LinkedList<Element>();
-		for (Element e : elements) {
-			if (!isExpired(e)) {
-				if (e.removed_t == null) {
-					if (timestamps.get(e.added_rc, e.added_rs).longValue() < e.added_t.longValue())
-						updates.add(e);
-				}
-				else if (timestamps.get(e.removed_rc, e.removed_rs).longValue() < e.removed_t.longValue())
-					updates.add(e);
-			}
-		}
-		return updates;
+		return db().getUpdates(timestamps);
+	}
+
+	@Override
+	public void getUpdates(Timestamps timestamps, int pageSize, UpdateHandler handler) throws Exception {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while getting updates");
+		db().getUpdates(timestamps, pageSize, handler);
 	}
 
 	@Override
-	public void addUpdates(List<Element> updates) throws TimeoutException {
-		readDB();
+	public void addUpdates(List<Element> updates) throws TimeoutException, IOException {
 		if (!isOnline())
 			throw new TimeoutException("Timeout while adding updates");
 		if (updates == null)
 			return;
-		elements.addAll(updates);
-		writeDB();
+		db().addUpdates(updates);
+	}
+
+	@Override
+	public void addMigratedUpdates(List<Element> updates) throws TimeoutException, IOException {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while adding updates");
+		db().addMigratedUpdates(updates);
+	}
+
+	@Override
+	public int deleteMigratedUpdates(List<Element> updates) throws TimeoutException, IOException {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while deleting updates");
+		return db().deleteMigratedUpdates(updates);
+	}
+
+	@Override
+	public void addUpdates(List<Element> updates, Timestamps timestamps) throws TimeoutException, IOException {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while adding updates");
+		db().addUpdates(updates == null ? new ArrayList<Element>() : updates, timestamps);
+	}
+
+	@Override
+	public int purgeTombstones(Timestamps stable, int limit) throws TimeoutException {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while purging tombstones");
+		return db().purgeTombstones(stable, limit);
 	}
 
 //	// For debugging only.
@@ -235,7 +241,14 @@ public class HeapStore extends Store {
 
 
 	@Override
-	public void close() {
-		
+	public synchronized void close() {
+		if (db == null || closed)
+			return;
+		closed = true;
+		try {
+			db.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 }
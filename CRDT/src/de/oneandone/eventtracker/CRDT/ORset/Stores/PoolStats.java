@@ -0,0 +1,23 @@
+package de.oneandone.eventtracker.CRDT.ORset.Stores;
+
+/**
+ * Snapshot of the counters of the connection pool of a redis store.
+ */
+public class PoolStats {
+	public int active = 0;				// Connections currently in use.
+	public long borrows = 0;			// Connections taken from the pool.
+	public long failures = 0;			// Connections which could not be taken, the pool being exhausted or the server unreachable.
+	public long broken = 0;				// Connections closed after an I/O error instead of being returned.
+	public double waitTime = 0;			// Total time spent waiting for a connection, in milliseconds.
+	public double maxWaitTime = 0;		// Longest wait for a connection, in milliseconds.
+
+	public double getAverageWaitTime() {
+		return borrows > 0 ? waitTime / borrows : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("active=%d borrows=%d failures=%d broken=%d wait avg=%.3f max=%.3f (ms)",
+				active, borrows, failures, broken, getAverageWaitTime(), maxWaitTime);
+	}
+}
@@ -0,0 +1,67 @@
+package de.oneandone.eventtracker.CRDT.ORset.Stores;
+
+import java.util.Properties;
+
+/**
+ * Connection settings of a redis store.
+ * Read from properties as redis.<key>, overridden for a single store by redis.<rc>.<rs>.<key>, e.g.
+ * redis.max_active = 16 and redis.A.alpha1.max_active = 32. Times are in milliseconds.
+ * By default connections are validated by the idle evictor instead of a PING on each borrow and return.
+ */
+public class RedisConfig {
+	public int maxActive = 8;					// max_active: connections open at the same time.
+	public int maxIdle = 8;						// max_idle: idle connections kept in the pool.
+	public int minIdle = 0;						// min_idle: idle connections the evictor keeps open.
+	public long maxWait = 0;					// max_wait: wait for a connection when all are in use, 0 to wait forever.
+	public boolean testOnBorrow = false;		// test_on_borrow: PING a connection before each use.
+	public boolean testOnReturn = false;		// test_on_return: PING a connection after each use.
+	public boolean testWhileIdle = true;		// test_while_idle: PING idle connections from the evictor.
+	public long evictionInterval = 30000;		// eviction_interval: between two runs of the evictor, 0 for no evictor.
+	public long minEvictableIdleTime = 60000;	// min_evictable_idle_time: idle time after which a connection is closed.
+	public int testsPerEvictionRun = -1;		// tests_per_eviction_run: connections visited per run, -n for 1/n of them.
+	public int timeout = 0;						// timeout: connect and read timeout of the sockets, 0 for none.
+	public boolean tcpNoDelay = true;			// tcp_no_delay: disable Nagle's algorithm on the sockets.
+	public long onlineCheckInterval = 0;		// online_check_interval: reuse of the online flag when it is checked (for testing).
+
+	public RedisConfig() {
+	}
+
+
+	/**
+	 * Read the settings of a store.
+	 * @param properties	Settings of all stores.
+	 * @param rc			ID of the replica cluster of the store, null for the defaults only.
+	 * @param rs			ID of the replica store.
+	 */
+	public RedisConfig(Properties properties, String rc, String rs) {
+		final String prefix = rc == null ? null : String.format("redis.%s.%s.", rc, rs);
+		maxActive = Integer.parseInt(get(properties, prefix, "max_active", String.valueOf(maxActive)));
+		maxIdle = Integer.parseInt(get(properties, prefix, "max_idle", String.valueOf(maxIdle)));
+		minIdle = Integer.parseInt(get(properties, prefix, "min_idle", String.valueOf(minIdle)));
+		maxWait = Long.parseLong(get(properties, prefix, "max_wait", String.valueOf(maxWait)));
+		testOnBorrow = Boolean.parseBoolean(get(properties, prefix, "test_on_borrow", String.valueOf(testOnBorrow)));
+		testOnReturn = Boolean.parseBoolean(get(properties, prefix, "test_on_return", String.valueOf(testOnReturn)));
+		testWhileIdle = Boolean.parseBoolean(get(properties, prefix, "test_while_idle", String.valueOf(testWhileIdle)));
+		evictionInterval = Long.parseLong(get(properties, prefix, "eviction_interval", String.valueOf(evictionInterval)));
+		minEvictableIdleTime = Long.parseLong(get(properties, prefix, "min_evictable_idle_time", String.valueOf(minEvictableIdleTime)));
+		testsPerEvictionRun = Integer.parseInt(get(properties, prefix, "tests_per_eviction_run", String.valueOf(testsPerEvictionRun)));
+		timeout = Integer.parseInt(get(properties, prefix, "timeout", String.valueOf(timeout)));
+		tcpNoDelay = Boolean.parseBoolean(get(properties, prefix, "tcp_no_delay", String.valueOf(tcpNoDelay)));
+		onlineCheckInterval = Long.parseLong(get(properties, prefix, "online_check_interval", String.valueOf(onlineCheckInterval)));
+	}
+
+	private static String get(Properties properties, String prefix, String key, String defaultValue) {
+		String value = prefix == null ? null : properties.getProperty(prefix + key);
+		if (value == null)
+			value = properties.getProperty("redis." + key, defaultValue);
+		return value.trim();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("max_active=%d max_idle=%d min_idle=%d max_wait=%d test_on_borrow=%b test_on_return=%b test_while_idle=%b " +
+				"eviction_interval=%d min_evictable_idle_time=%d timeout=%d tcp_no_delay=%b",
+				maxActive, maxIdle, minIdle, maxWait, testOnBorrow, testOnReturn, testWhileIdle,
+				evictionInterval, minEvictableIdleTime, timeout, tcpNoDelay);
+	}
+}
@@ -0,0 +1,268 @@
+package de.oneandone.eventtracker.CRDT.ORset.Stores;
+
+import java.net.SocketException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.pool.BasePoolableObjectFactory;
+import org.apache.commons.pool.impl.GenericObjectPool;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Protocol.Command;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.Pool;
+
+/**
+ * Pool of connections to a redis server, as JedisPool, with the settings of RedisConfig and the time spent waiting
+ * for a connection measured. A connection which failed with an I/O error or a timeout may be closed or have replies
+ * left unread, so it is closed when returned instead of being reused: this keeps the pool sane without a PING on
+ * each borrow or return.
+ */
+class RedisPool extends Pool<Jedis> {
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong borrows = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong broken = new AtomicLong();
+	private final AtomicLong waitTime = new AtomicLong();		// In nanoseconds.
+	private final AtomicLong maxWaitTime = new AtomicLong();
+
+	/**
+	 * Connection which remembers whether it failed.
+	 */
+	private static class PooledJedis extends Jedis {
+		PooledJedis(String host, int port, int timeout) {
+			super(host, port, timeout);
+			client = new TrackedClient(host, port);
+			client.setTimeout(timeout);
+		}
+
+		boolean isBroken() {
+			return ((TrackedClient) client).broken;
+		}
+	}
+
+	private static class TrackedClient extends Client {
+		volatile boolean broken = false;
+
+		TrackedClient(String host, int port) {
+			super(host, port);
+		}
+
+		private JedisConnectionException failed(JedisConnectionException e) {
+			broken = true;
+			return e;
+		}
+
+		@Override
+		protected Connection sendCommand(Command cmd, byte[]... args) {
+			try {
+				return super.sendCommand(cmd, args);
+			} catch (JedisConnectionException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		protected Connection sendCommand(Command cmd) {
+			try {
+				return super.sendCommand(cmd);
+			} catch (JedisConnectionException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		protected String getStatusCodeReply() {
+			try {
+				return super.getStatusCodeReply();
+			} catch (JedisConnectionException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		public byte[] getBinaryBulkReply() {
+			try {
+				return super.getBinaryBulkReply();
+			} catch (JedisConnectionException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		public Long getIntegerReply() {
+			try {
+				return super.getIntegerReply();
+			} catch (JedisConnectionException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		public List<byte[]> getBinaryMultiBulkReply() {
+			try {
+				return super.getBinaryMultiBulkReply();
+			} catch (JedisConnectionException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		public List<Object> getObjectMultiBulkReply() {
+			try {
+				return super.getObjectMultiBulkReply();
+			} catch (JedisConnectionException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		public List<Long> getIntegerMultiBulkReply() {
+			try {
+				return super.getIntegerMultiBulkReply();
+			} catch (JedisConnectionException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		public List<Object> getAll(int except) {
+			try {
+				return super.getAll(except);
+			} catch (JedisConnectionException e) {
+				throw failed(e);
+			}
+		}
+
+		@Override
+		public Object getOne() {
+			try {
+				return super.getOne();
+			} catch (JedisConnectionException e) {
+				throw failed(e);
+			}
+		}
+	}
+
+	private static class Factory extends BasePoolableObjectFactory<PooledJedis> {
+		private final String host;
+		private final int port;
+		private final RedisConfig config;
+
+		Factory(String host, int port, RedisConfig config) {
+			this.host = host;
+			this.port = port;
+			this.config = config;
+		}
+
+		@Override
+		public PooledJedis makeObject() throws SocketException {
+			PooledJedis jedis = new PooledJedis(host, port, config.timeout);
+			jedis.connect();
+			jedis.getClient().getSocket().setTcpNoDelay(config.tcpNoDelay);
+			return jedis;
+		}
+
+		@Override
+		public void destroyObject(PooledJedis jedis) {
+			if (!jedis.isConnected())
+				return;
+			try {
+				if (!jedis.isBroken())
+					jedis.quit();
+			} catch (Exception e) {
+			}
+			try {
+				jedis.disconnect();
+			} catch (Exception e) {
+			}
+		}
+
+		@Override
+		public boolean validateObject(PooledJedis jedis) {
+			try {
+				return jedis.isConnected() && !jedis.isBroken() && "PONG".equals(jedis.ping());
+			} catch (Exception e) {
+				return false;
+			}
+		}
+	}
+
+	private static GenericObjectPool.Config toPoolConfig(RedisConfig config) {
+		GenericObjectPool.Config pool = new GenericObjectPool.Config();
+		pool.maxActive = config.maxActive;
+		pool.maxIdle = config.maxIdle;
+		pool.minIdle = config.minIdle;
+		pool.maxWait = config.maxWait;
+		pool.whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_BLOCK;
+		pool.testOnBorrow = config.testOnBorrow;
+		pool.testOnReturn = config.testOnReturn;
+		pool.testWhileIdle = config.testWhileIdle;
+		pool.timeBetweenEvictionRunsMillis = config.evictionInterval > 0 ? config.evictionInterval : -1;
+		pool.minEvictableIdleTimeMillis = config.minEvictableIdleTime;
+		pool.numTestsPerEvictionRun = config.testsPerEvictionRun;
+		return pool;
+	}
+
+	RedisPool(RedisConfig config, String host, int port) {
+		super(toPoolConfig(config), new Factory(host, port, config));
+	}
+
+
+	@Override
+	public Jedis getResource() {
+		final long startTime = System.nanoTime();
+		final Jedis jedis;
+		try {
+			jedis = super.getResource();
+		} catch (RuntimeException e) {
+			failures.incrementAndGet();
+			throw e;
+		}
+		final long wait = System.nanoTime() - startTime;
+		borrows.incrementAndGet();
+		active.incrementAndGet();
+		waitTime.addAndGet(wait);
+		long max = maxWaitTime.get();
+		while (wait > max && !maxWaitTime.compareAndSet(max, wait))
+			max = maxWaitTime.get();
+		return jedis;
+	}
+
+
+	/**
+	 * Return a connection to the pool, or close it if it failed.
+	 */
+	@Override
+	public void returnResource(Jedis jedis) {
+		if (((PooledJedis) jedis).isBroken()) {
+			returnBrokenResource(jedis);
+			return;
+		}
+		active.decrementAndGet();
+		super.returnResource(jedis);
+	}
+
+
+	@Override
+	public void returnBrokenResource(Jedis jedis) {
+		active.decrementAndGet();
+		broken.incrementAndGet();
+		super.returnBrokenResource(jedis);
+	}
+
+
+	PoolStats getStats() {
+		PoolStats stats = new PoolStats();
+		stats.active = active.get();
+		stats.borrows = borrows.get();
+		stats.failures = failures.get();
+		stats.broken = broken.get();
+		stats.waitTime = waitTime.get() / 1000000.0;
+		stats.maxWaitTime = maxWaitTime.get() / 1000000.0;
+		return stats;
+	}
+}
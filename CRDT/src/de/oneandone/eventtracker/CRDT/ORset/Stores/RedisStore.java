@@ -1,45 +1,93 @@
 package de.oneandone.eventtracker.CRDT.ORset.Stores;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
-import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+import de.oneandone.eventtracker.CRDT.ORset.Delta;
 import de.oneandone.eventtracker.CRDT.ORset.Element;
+import de.oneandone.eventtracker.CRDT.ORset.Replicas;
 import de.oneandone.eventtracker.CRDT.ORset.Store;
 import de.oneandone.eventtracker.CRDT.ORset.Timestamps;
 import de.oneandone.eventtracker.CRDT.ORset.Topology;
+import de.oneandone.eventtracker.CRDT.ORset.UpdateStats;
+import de.oneandone.eventtracker.CRDT.Utils.CountingBloomFilter;
+import de.oneandone.eventtracker.CRDT.Utils.Varint;
 
+/**
+ * Store backed by a redis server.
+ * Each tuple is kept as one binary blob at key 'e:id':
+ * [varint added_t, varint added, varint removed_t (0 if not removed), [varint removed], value bytes]
+ * where added and removed are store ordinals from the 'replicas' hash, which is the same on all servers.
+ * Live tags of a value are in set 'live:value' and the updates of each store are in the sorted set
+ * 'index:ordinal', scored by timestamp. 'purged:ordinal' is the timestamp up to which the removed tags
+ * of a store were purged.
+ * An optional lookup filter holds the values added through this instance and the live values found 
+ * by the last refresh, so that lookups of the other values do not reach the server while the filter is
+ * recent enough (see setLookupFilter()).
+ */
 public class RedisStore extends Store {
-	private JedisPool jedisPool;
+	private static Properties config = new Properties();
+	private RedisConfig storeConfig;
+	private RedisPool jedisPool;
+	private volatile boolean cachedOnline = true;
+	private volatile long onlineCheckTime = 0;
+	private volatile int[] replicaOrdinals = new int[0];	// Redis ordinal -> Replicas ordinal, -1 if unknown.
+	private volatile int[] redisOrdinals = new int[0];		// Replicas ordinal -> redis ordinal, -1 if unknown.
+	private volatile CountingBloomFilter lookupFilter = null;
+	private volatile CountingBloomFilter nextLookupFilter = null;	// Filter being rebuilt, also fed by the adds.
+	private int lookupFilterCapacity = 0;
+	private volatile long lookupFilterMaxAge = 0;
+	private volatile long lookupFilterTime = 0;		// Start of the last build of the lookup filter.
+	private final AtomicLong filteredLookups = new AtomicLong();
 
 	private static final String KEY_TOPOLOGY = "topology";
+	private static final String KEY_REPLICAS = "replicas";
+	private static final String KEY_TOPOLOGY_VERSION = "topology:version";
+	private static final String KEY_TOPOLOGY_MIGRATING = "topology:migrating";
 	
 	private static String SCRIPT_SHA1_ADD;
 	private static String SCRIPT_SHA1_REMOVE;
 	private static String SCRIPT_SHA1_LOOKUP;
 	private static String SCRIPT_SHA1_GET_TIMESTAMPS;
-	private static String SCRIPT_SHA1_SET_MAX_TIMESTAMP;
+	private static String SCRIPT_SHA1_SET_MAX_TIMESTAMPS;
+	private static String SCRIPT_SHA1_ADD_UPDATES;
+	private static String SCRIPT_SHA1_GET_UPDATES;
+	private static String SCRIPT_SHA1_PURGE_TOMBSTONES;
+	private static String SCRIPT_SHA1_GET_DELTAS;
+	private static String SCRIPT_SHA1_ADD_DELTAS;
+	private static String SCRIPT_SHA1_DELETE_MIGRATED;
+	private static final int ADD_UPDATES_BATCH = 1000;		// Updates per call of add_updates.lua.
+	private static final int LOOKUP_FILTER_PAGE = 10000;	// Updates per call of get_updates.lua while rebuilding the lookup filter.
+	private static final double LOOKUP_FILTER_FPP = 0.01;
 
 	private void init() {
-		JedisPoolConfig config = new JedisPoolConfig();
-		config.setTestOnBorrow(true);
-		config.setTestOnReturn(true);
-		config.setMaxWait(0);
-		jedisPool = new JedisPool(config, address.getHostName(), address.getPort(), 0);
+		storeConfig = new RedisConfig(config, rc, rs);
+		jedisPool = new RedisPool(storeConfig, address.getHostName(), address.getPort());
 		loadScripts();
+		loadReplicas();
 		setOnline(true);
 	}
 	
@@ -53,6 +101,20 @@ public class RedisStore extends Store {
 		init();
 	}
 
+	/**
+	 * Set the connection settings of the redis stores created from now on, see RedisConfig.
+	 */
+	public static void setConfig(Properties properties) {
+		config = properties;
+	}
+	
+	/**
+	 * Get the counters of the connection pool of the store.
+	 */
+	public PoolStats getPoolStats() {
+		return jedisPool.getStats();
+	}
+
 	private String loadRedisScript(String fileName) throws Exception {
 		FileInputStream fis = null;
 		Jedis jedis = jedisPool.getResource();
@@ -78,7 +140,13 @@ public class RedisStore extends Store {
 			SCRIPT_SHA1_REMOVE = loadRedisScript("lua/orset/remove.lua");
 			SCRIPT_SHA1_LOOKUP = loadRedisScript("lua/orset/lookup.lua");
 			SCRIPT_SHA1_GET_TIMESTAMPS = loadRedisScript("lua/orset/get_timestamps.lua");
-			SCRIPT_SHA1_SET_MAX_TIMESTAMP = loadRedisScript("lua/orset/set_max_timestamp.lua");
+			SCRIPT_SHA1_SET_MAX_TIMESTAMPS = loadRedisScript("lua/orset/set_max_timestamps.lua");
+			SCRIPT_SHA1_ADD_UPDATES = loadRedisScript("lua/orset/add_updates.lua");
+			SCRIPT_SHA1_GET_UPDATES = loadRedisScript("lua/orset/get_updates.lua");
+			SCRIPT_SHA1_PURGE_TOMBSTONES = loadRedisScript("lua/orset/purge_tombstones.lua");
+			SCRIPT_SHA1_GET_DELTAS = loadRedisScript("lua/orset/get_deltas.lua");
+			SCRIPT_SHA1_ADD_DELTAS = loadRedisScript("lua/orset/add_deltas.lua");
+			SCRIPT_SHA1_DELETE_MIGRATED = loadRedisScript("lua/orset/delete_migrated.lua");
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -94,10 +162,12 @@ public class RedisStore extends Store {
 				Jedis jedis = new Jedis(address.getHostName(), address.getPort());
 				jedis.flushAll();
 				jedis.scriptFlush();
+				int ordinal = 0;
 				for (String rc_ : topology.getClusterIDs()) {
 					for (String rs_ : topology.getStoreIDs(rc_)) {
 						InetSocketAddress address_ = topology.get(rc_, rs_);
-						jedis.sadd(KEY_TOPOLOGY, String.format("%s:%s:%s:%s", rc_, rs_, address_.getHostName(), address_.getPort()));
+						jedis.sadd(KEY_TOPOLOGY, String.format("%s:%s:%s:%s:%d", rc_, rs_, address_.getHostName(), address_.getPort(), topology.getWeight(rc_, rs_)));
+						jedis.hset(KEY_REPLICAS, String.valueOf(ordinal++), String.format("%s:%s", rc_, rs_));
 					}
 				}
 				jedis.disconnect();
@@ -107,7 +177,8 @@ public class RedisStore extends Store {
 	
 	/**
 	 * Read the topology from redis. This is to be found at key 'topology'
-	 * containing a list of nodes, each in the format rc:rs:ip:port.
+	 * containing a list of nodes, each in the format rc:rs:ip:port[:weight],
+	 * with its version at 'topology:version' and whether it is migrating at 'topology:migrating'.
 	 */
 	@Override
 	public Topology getTopology() throws TimeoutException {
@@ -117,20 +188,244 @@ public class RedisStore extends Store {
 		Topology topology = new Topology();
 		Jedis jedis = jedisPool.getResource();
 		try {
-			Set<String> nodes = jedis.smembers(KEY_TOPOLOGY);
-			for (String node : nodes) {
+			Transaction transaction = jedis.multi();
+			Response<Set<String>> nodes = transaction.smembers(KEY_TOPOLOGY);
+			Response<String> version = transaction.get(KEY_TOPOLOGY_VERSION);
+			Response<String> migrating = transaction.get(KEY_TOPOLOGY_MIGRATING);
+			transaction.exec();
+			topology.setVersion(version.get() == null ? 0 : Long.parseLong(version.get()));
+			topology.setMigrating(Boolean.parseBoolean(migrating.get()));
+			for (String node : nodes.get()) {
 				String[] tokens = node.split(":");
 				String rc = tokens[0];
 				String rs = tokens[1];
 				String ip = tokens[2];
 				String port = tokens[3];
 				topology.set(rc, rs, new InetSocketAddress(ip, Integer.parseInt(port)));
+				if (tokens.length > 4)
+					topology.setWeight(rc, rs, Integer.parseInt(tokens[4]));
 			}
+			Replicas.register(topology);
 			return topology;
 		} finally {
 			jedisPool.returnResource(jedis);
 		}
 	}
+	
+	
+	@Override
+	public long getTopologyVersion() throws TimeoutException {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while fetching the topology version");
+		
+		Jedis jedis = jedisPool.getResource();
+		try {
+			String version = jedis.get(KEY_TOPOLOGY_VERSION);
+			return version == null ? 0 : Long.parseLong(version);
+		} finally {
+			jedisPool.returnResource(jedis);
+		}
+	}
+	
+	
+	/**
+	 * Replace the 'topology' set and its version. Stores missing from the 'replicas' hash are appended to it.
+	 * Servers which join get the hash of the others first (see copyReplicas()), so that they all keep the same ordinals.
+	 */
+	@Override
+	public void setTopology(Topology topology) throws TimeoutException {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while setting the topology");
+		
+		Jedis jedis = jedisPool.getResource();
+		try {
+			jedis.watch(KEY_REPLICAS);
+			Map<String, String> replicas = jedis.hgetAll(KEY_REPLICAS);
+			HashSet<String> known = new HashSet<String>(replicas.values());
+			int ordinal = replicas.size();
+			Transaction transaction = jedis.multi();
+			transaction.del(KEY_TOPOLOGY);
+			transaction.set(KEY_TOPOLOGY_VERSION, String.valueOf(topology.getVersion()));
+			transaction.set(KEY_TOPOLOGY_MIGRATING, String.valueOf(topology.isMigrating()));
+			for (String rc : topology.getClusterIDs()) {
+				for (String rs : topology.getStoreIDs(rc)) {
+					InetSocketAddress address = topology.get(rc, rs);
+					transaction.sadd(KEY_TOPOLOGY, String.format("%s:%s:%s:%s:%d", rc, rs, address.getHostName(), address.getPort(), topology.getWeight(rc, rs)));
+					if (!known.contains(rc + ":" + rs))
+						transaction.hset(KEY_REPLICAS, String.valueOf(ordinal++), rc + ":" + rs);
+				}
+			}
+			if (transaction.exec() == null)
+				throw new IllegalStateException(String.format("Concurrent update of the replicas of %s:%s", rc, rs));
+			Replicas.register(topology);
+		} finally {
+			jedisPool.returnResource(jedis);
+		}
+		loadReplicas();
+	}
+	
+	
+	/**
+	 * Copy the 'replicas' hash of another server. Entries already there must be the same.
+	 */
+	@Override
+	public void copyReplicas(Store source) throws TimeoutException {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while copying the replicas");
+		
+		Map<String, String> canonical;
+		Jedis jedis = ((RedisStore) source).jedisPool.getResource();
+		try {
+			canonical = jedis.hgetAll(KEY_REPLICAS);
+		} finally {
+			((RedisStore) source).jedisPool.returnResource(jedis);
+		}
+		jedis = jedisPool.getResource();
+		try {
+			jedis.watch(KEY_REPLICAS);
+			Map<String, String> replicas = jedis.hgetAll(KEY_REPLICAS);
+			HashSet<String> known = new HashSet<String>(replicas.values());
+			Transaction transaction = jedis.multi();
+			for (Map.Entry<String, String> entry : canonical.entrySet()) {
+				final String current = replicas.get(entry.getKey());
+				if (current == null && !known.contains(entry.getValue()))
+					transaction.hset(KEY_REPLICAS, entry.getKey(), entry.getValue());
+				else if (!entry.getValue().equals(current)) {
+					transaction.discard();
+					throw new IllegalStateException(String.format("Replica %s of %s:%s is %s, not %s as in %s:%s", 
+							entry.getKey(), rc, rs, current, entry.getValue(), source.getClusterID(), source.getStoreID()));
+				}
+			}
+			if (transaction.exec() == null)
+				throw new IllegalStateException(String.format("Concurrent update of the replicas of %s:%s", rc, rs));
+		} finally {
+			jedisPool.returnResource(jedis);
+		}
+		loadReplicas();
+	}
+	
+	
+	/**
+	 * Read the store ordinals used in element blobs from the 'replicas' hash,
+	 * containing ordinal -> rc:rs entries.
+	 */
+	private synchronized void loadReplicas() {
+		Jedis jedis = jedisPool.getResource();
+		try {
+			Map<String, String> replicas = jedis.hgetAll(KEY_REPLICAS);
+			int[] toReplica = new int[replicas.size()];
+			int[] toRedis = new int[0];
+			Arrays.fill(toReplica, -1);
+			for (Map.Entry<String, String> entry : replicas.entrySet()) {
+				final int ordinal = Integer.parseInt(entry.getKey());
+				final String[] tokens = entry.getValue().split(":");
+				final int replica = Replicas.ordinal(tokens[0], tokens[1]);
+				if (ordinal >= toReplica.length) {
+					final int n = toReplica.length;
+					toReplica = Arrays.copyOf(toReplica, ordinal + 1);
+					Arrays.fill(toReplica, n, toReplica.length, -1);
+				}
+				if (replica >= toRedis.length) {
+					final int n = toRedis.length;
+					toRedis = Arrays.copyOf(toRedis, replica + 1);
+					Arrays.fill(toRedis, n, toRedis.length, -1);
+				}
+				toReplica[ordinal] = replica;
+				toRedis[replica] = ordinal;
+			}
+			redisOrdinals = toRedis;
+			replicaOrdinals = toReplica;
+		} finally {
+			jedisPool.returnResource(jedis);
+		}
+	}
+	
+	
+	/**
+	 * Get the redis ordinal of a store, given its ordinal in Replicas.
+	 */
+	private int toRedis(int replica) {
+		if (replica >= redisOrdinals.length || redisOrdinals[replica] < 0)
+			loadReplicas();
+		if (replica >= redisOrdinals.length || redisOrdinals[replica] < 0)
+			throw new IllegalStateException(String.format("Store %s:%s is not in the replicas of %s:%s", Replicas.getClusterID(replica), Replicas.getStoreID(replica), rc, rs));
+		return redisOrdinals[replica];
+	}
+	
+	
+	/**
+	 * Get the ordinal in Replicas of a store, given its redis ordinal.
+	 */
+	private int toReplica(int ordinal) {
+		if (ordinal >= replicaOrdinals.length || replicaOrdinals[ordinal] < 0)
+			loadReplicas();
+		if (ordinal >= replicaOrdinals.length || replicaOrdinals[ordinal] < 0)
+			throw new IllegalStateException(String.format("Unknown replica ordinal %d in %s:%s", ordinal, rc, rs));
+		return replicaOrdinals[ordinal];
+	}
+	
+	
+	private byte[] encode(Element e) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		Varint.writeLong(out, e.added_t);
+		Varint.writeInt(out, toRedis(e.added));
+		Varint.writeLong(out, e.removed_t);
+		if (e.isRemoved())
+			Varint.writeInt(out, toRedis(e.removed));
+		out.write(SafeEncoder.encode(e.value));
+		return bytes.toByteArray();
+	}
+	
+	
+	private Element decode(String id, byte[] blob, int ttl) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(blob));
+		final long added_t = Varint.readLong(in);
+		final int added = toReplica(Varint.readInt(in));
+		final long removed_t = Varint.readLong(in);
+		final int removed = removed_t != Element.NOT_REMOVED ? toReplica(Varint.readInt(in)) : -1;
+		byte[] value = new byte[in.available()];
+		in.readFully(value);
+		Element e = new Element(SafeEncoder.encode(value), added_t, added, removed_t, removed);
+		e.gc_ttl = ttl;
+		e.id = id;
+		return e;
+	}
+	
+	
+	/**
+	 * Delta blob: [varint removed_t (0 for an add), [varint removed], varint k, k * (varint added, varint added_t), value bytes].
+	 */
+	private byte[] encode(Delta d) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		Varint.writeLong(out, d.removed_t);
+		if (d.isRemove())
+			Varint.writeInt(out, toRedis(d.removed));
+		Varint.writeInt(out, d.added.length);
+		for (int i = 0; i < d.added.length; ++i) {
+			Varint.writeInt(out, toRedis(d.added[i]));
+			Varint.writeLong(out, d.added_t[i]);
+		}
+		out.write(SafeEncoder.encode(d.value));
+		return bytes.toByteArray();
+	}
+	
+	
+	private Delta decodeDelta(byte[] blob) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(blob));
+		final long removed_t = Varint.readLong(in);
+		final int removed = removed_t != Element.NOT_REMOVED ? toReplica(Varint.readInt(in)) : -1;
+		int[] added = new int[Varint.readInt(in)];
+		long[] added_t = new long[added.length];
+		for (int i = 0; i < added.length; ++i) {
+			added[i] = toReplica(Varint.readInt(in));
+			added_t[i] = Varint.readLong(in);
+		}
+		byte[] value = new byte[in.available()];
+		in.readFully(value);
+		return new Delta(SafeEncoder.encode(value), added, added_t, removed_t, removed);
+	}
 
 	@Override
 	public void setOnline(boolean online) {
@@ -141,14 +436,24 @@ public class RedisStore extends Store {
 		} finally {
 			jedisPool.returnResource(jedis);
 		}
+		cachedOnline = online;
+		onlineCheckTime = System.currentTimeMillis();
 	}
 	
+	/**
+	 * Check the online flag of the server, reusing the last value read for online_check_interval.
+	 */
 	public boolean isOnline() {
 		if (!checkIfOnline)
 			return true;
+		final long now = System.currentTimeMillis();
+		if (now - onlineCheckTime < storeConfig.onlineCheckInterval)
+			return cachedOnline;
 		Jedis jedis = jedisPool.getResource();
 		try {
-			return Boolean.valueOf(jedis.get("online"));
+			cachedOnline = Boolean.valueOf(jedis.get("online"));
+			onlineCheckTime = now;
+			return cachedOnline;
 		} finally {
 			jedisPool.returnResource(jedis);
 		}
@@ -156,31 +461,28 @@ public class RedisStore extends Store {
 	
 	
 	@Override
-	public void add(String value) throws TimeoutException, IllegalArgumentException {
-		if (value.contains(":"))
-			throw new IllegalArgumentException("Values are not allowed to contain ':' character");
+	public void add(String value) throws TimeoutException {
 		if (!isOnline())
 			throw new TimeoutException(String.format("Timeout while adding %s", value));
 		
 		Jedis jedis = jedisPool.getResource();
 		try {
-			jedis.evalsha(SCRIPT_SHA1_ADD, 0, String.valueOf(Element.getTTL()), value, rc, rs);
+			jedis.evalsha(SCRIPT_SHA1_ADD, 0, String.valueOf(Element.getTTL()), value, rc, rs, String.valueOf(toRedis(Replicas.ordinal(rc, rs))));
 		} finally {
 			jedisPool.returnResource(jedis);
+			filterAdd(value);
 		}
 	}
 
 	
 	@Override
 	public void remove(String value) throws TimeoutException {
-		if (value.contains(":"))
-			throw new IllegalArgumentException("Values are not allowed to contain ':' character");
 		if (!isOnline())
 			throw new TimeoutException(String.format("Timeout while removing %s", value));
 		
 		Jedis jedis = jedisPool.getResource();
 		try {
-			jedis.evalsha(SCRIPT_SHA1_REMOVE, 0, String.valueOf(Element.getTTL()), value, rc, rs);
+			jedis.evalsha(SCRIPT_SHA1_REMOVE, 0, String.valueOf(Element.getTTL()), value, rc, rs, String.valueOf(toRedis(Replicas.ordinal(rc, rs))));
 		} finally {
 			jedisPool.returnResource(jedis);
 		}
@@ -189,10 +491,13 @@ public class RedisStore extends Store {
 	
 	@Override
 	public boolean lookup(String value) throws TimeoutException {
-		if (value.contains(":"))
-			throw new IllegalArgumentException("Values are not allowed to contain ':' character");
 		if (!isOnline())
 			throw new TimeoutException(String.format("Timeout while looking up %s", value));
+		final CountingBloomFilter filter = recentLookupFilter();
+		if (filter != null && !filter.mightContain(value)) {
+			filteredLookups.incrementAndGet();
+			return false;
+		}
 		
 		Jedis jedis = jedisPool.getResource();
 		try {
@@ -206,6 +511,187 @@ public class RedisStore extends Store {
 		}
 	}
 
+	/**
+	 * Read the replies of all pipelined commands, failing on the first error reply.
+	 */
+	private static List<Object> getAll(Jedis jedis) {
+		List<Object> replies = jedis.getClient().getAll();
+		for (Object reply : replies) {
+			if (reply instanceof JedisDataException)
+				throw (JedisDataException) reply;
+		}
+		return replies;
+	}
+	
+	
+	@Override
+	public void addAll(Collection<String> values) throws TimeoutException {
+		if (!isOnline())
+			throw new TimeoutException(String.format("Timeout while adding %d values", values.size()));
+		
+		// Jedis pipelines have no evalsha, so queue the calls on the connection directly.
+		final String ttl = String.valueOf(Element.getTTL());
+		final String self = String.valueOf(toRedis(Replicas.ordinal(rc, rs)));
+		Jedis jedis = jedisPool.getResource();
+		try {
+			for (String value : values)
+				jedis.getClient().evalsha(SCRIPT_SHA1_ADD, 0, ttl, value, rc, rs, self);
+			getAll(jedis);
+		} finally {
+			jedisPool.returnResource(jedis);
+			for (String value : values)
+				filterAdd(value);
+		}
+	}
+	
+	
+	@Override
+	public void removeAll(Collection<String> values) throws TimeoutException {
+		if (!isOnline())
+			throw new TimeoutException(String.format("Timeout while removing %d values", values.size()));
+		
+		final String ttl = String.valueOf(Element.getTTL());
+		final String self = String.valueOf(toRedis(Replicas.ordinal(rc, rs)));
+		Jedis jedis = jedisPool.getResource();
+		try {
+			for (String value : values)
+				jedis.getClient().evalsha(SCRIPT_SHA1_REMOVE, 0, ttl, value, rc, rs, self);
+			getAll(jedis);
+		} finally {
+			jedisPool.returnResource(jedis);
+		}
+	}
+	
+	
+	@Override
+	public boolean[] lookupAll(List<String> values) throws TimeoutException {
+		if (!isOnline())
+			throw new TimeoutException(String.format("Timeout while looking up %d values", values.size()));
+		
+		// Only the values which may be in the filter are sent.
+		final CountingBloomFilter filter = recentLookupFilter();
+		boolean[] result = new boolean[values.size()];
+		ArrayList<Integer> sent = new ArrayList<Integer>(values.size());
+		for (int i = 0; i < values.size(); ++i) {
+			if (filter == null || filter.mightContain(values.get(i)))
+				sent.add(i);
+		}
+		filteredLookups.addAndGet(values.size() - sent.size());
+		if (sent.isEmpty())
+			return result;
+		
+		Jedis jedis = jedisPool.getResource();
+		try {
+			for (int i : sent)
+				jedis.getClient().evalsha(SCRIPT_SHA1_LOOKUP, 0, values.get(i));
+			List<Object> replies = getAll(jedis);
+			for (int i = 0; i < replies.size(); ++i)
+				result[sent.get(i)] = replies.get(i) != null;
+			return result;
+		} finally {
+			jedisPool.returnResource(jedis);
+		}
+	}
+	
+	
+	/**
+	 * Keep a lookup filter of the values of the store, built right away from the live values of the server.
+	 * The filter only sees the values added through this instance: the values added by other clients or by the 
+	 * pulls of other clients are only seen after the next refreshLookupFilter(), so lookups may miss them
+	 * for up to maxAge. Once the last successful build is older than maxAge, lookups reach the server again.
+	 * @param capacity	Expected number of values, 0 to drop the filter.
+	 * @param maxAge	Time after the start of its last build during which the filter answers lookups, in milliseconds.
+	 */
+	@Override
+	public synchronized void setLookupFilter(int capacity, long maxAge) throws Exception {
+		lookupFilterCapacity = capacity;
+		lookupFilterMaxAge = maxAge;
+		if (capacity <= 0)
+			lookupFilter = null;
+		else
+			rebuildLookupFilter();
+	}
+	
+	
+	@Override
+	public synchronized void refreshLookupFilter() throws Exception {
+		if (lookupFilter != null)
+			rebuildLookupFilter();
+	}
+	
+	
+	/**
+	 * Get the lookup filter if it was built within its maximum age, null otherwise.
+	 */
+	private CountingBloomFilter recentLookupFilter() {
+		if (System.currentTimeMillis() - lookupFilterTime > lookupFilterMaxAge)
+			return null;
+		return lookupFilter;
+	}
+	
+	
+	/**
+	 * Get the number of lookups answered by the lookup filter, without reaching the server.
+	 */
+	public long getFilteredLookups() {
+		return filteredLookups.get();
+	}
+	
+	
+	/**
+	 * Build a new filter from the live tags of all stores, while the adds go to both the current and the new filter,
+	 * and swap it in. The capacity doubles when the values outgrow it.
+	 */
+	private void rebuildLookupFilter() throws Exception {
+		final CountingBloomFilter filter = new CountingBloomFilter(lookupFilterCapacity, LOOKUP_FILTER_FPP);
+		final long start = System.currentTimeMillis();
+		nextLookupFilter = filter;
+		try {
+			loadReplicas();
+			final int[] ordinals = redisOrdinals;
+			Timestamps all = new Timestamps();
+			for (int replica = 0; replica < ordinals.length; ++replica) {
+				if (ordinals[replica] >= 0)
+					all.set(replica, 0);
+			}
+			Jedis jedis = jedisPool.getResource();
+			try {
+				getUpdates(jedis, all, LOOKUP_FILTER_PAGE, new UpdateHandler() {
+					@Override
+					public void handle(List<Element> updates) {
+						for (Element e : updates) {
+							if (!e.isRemoved() && !filter.mightContain(e.value))
+								filter.add(e.value);
+						}
+					}
+				}, new UpdateStats());
+			} finally {
+				jedisPool.returnResource(jedis);
+			}
+			lookupFilter = filter;
+			lookupFilterTime = start;
+			if (filter.size() > lookupFilterCapacity / 2)
+				lookupFilterCapacity = 2 * filter.size();
+		} finally {
+			nextLookupFilter = null;
+		}
+	}
+	
+	
+	/**
+	 * Add a value to the lookup filter, and to the one being rebuilt if any.
+	 * The filter being rebuilt is read first: once it is swapped in, the value goes to it as the current filter.
+	 */
+	private void filterAdd(String value) {
+		final CountingBloomFilter next = nextLookupFilter;
+		final CountingBloomFilter filter = lookupFilter;
+		if (next != null && !next.mightContain(value))
+			next.add(value);
+		if (filter != null && filter != next && !filter.mightContain(value))
+			filter.add(value);
+	}
+	
+
 	@Override
 	public Timestamps getTimestamps() throws TimeoutException {
 		if (!isOnline())
@@ -231,15 +717,11 @@ public class RedisStore extends Store {
 		if (!isOnline())
 			throw new TimeoutException("Timeout while updating timestamps");
 		
-		// TODO
-		// Call scripts in pipeline when there is support in Jedis.
+		ArrayList<String> args = new ArrayList<String>();
+		addArguments(args, other);
 		Jedis jedis = jedisPool.getResource();
 		try {
-			for (String rc : other.getClusterIDs()) {
-				for (String rs : other.getStoreIDs(rc)) {
-					jedis.evalsha(SCRIPT_SHA1_SET_MAX_TIMESTAMP, 0, rc, rs, other.get(rc, rs).toString());
-				}
-			}
+			jedis.evalsha(SCRIPT_SHA1_SET_MAX_TIMESTAMPS, 0, args.toArray(new String[args.size()]));
 		} finally {
 			jedisPool.returnResource(jedis);
 		}
@@ -247,121 +729,299 @@ public class RedisStore extends Store {
 
 	
 	@Override
-	public List<Element> getUpdates(Timestamps timestamps) throws TimeoutException {
+	public List<Element> getUpdates(Timestamps timestamps) throws Exception {
+		final LinkedList<Element> updates = new LinkedList<Element>();
+		getUpdates(timestamps, 10000, new UpdateHandler() {
+			@Override
+			public void handle(List<Element> page) {
+				updates.addAll(page);
+			}
+		});
+		return updates;
+	}
+	
+	
+	@Override
+	public void getUpdates(Timestamps timestamps, int pageSize, UpdateHandler handler) throws Exception {
 		if (!isOnline())
 			throw new TimeoutException("Timeout while getting updates");
 		
+		// IDs and tuples are fetched by the same script call, which is accounted as getUpdateElements.
 		updateStats.getUpdateIDs = updateStats.getUpdateElements = 0;
-		long startTime;
-				
 		Jedis jedis = jedisPool.getResource();
 		try {
-			LinkedList<Element> updates = new LinkedList<Element>();
-			for (String rc : timestamps.getClusterIDs()) {
-				for (String rs : timestamps.getStoreIDs(rc)) {
-					final String key = String.format("index:%s:%s", rc, rs);
-					final long listLength = jedis.llen(key);
-					final long PAGE_SIZE = Math.min(10000, listLength); // Set the page size to the number of expected updates.
-					int timestampIndex = -1;
-					for (long crtPageStart = -listLength; crtPageStart < 0 && timestampIndex < 0; crtPageStart += PAGE_SIZE) {
-						// Get update IDs in fixed-sized pages.
-						startTime = System.nanoTime();
-						List<String> page = jedis.lrange(key, crtPageStart, crtPageStart + PAGE_SIZE - 1);
-						updateStats.getUpdateIDs += (System.nanoTime() - startTime) / 1000000.0;
-						timestampIndex = Collections.binarySearch(page, String.format("%d:", timestamps.get(rc, rs)),
-								new Comparator<String>() {
-									@Override
-									public int compare(String o1, String o2) {
-										final long t1 = Long.parseLong(o1.substring(0, o1.indexOf(':')));
-										final long t2 = Long.parseLong(o2.substring(0, o2.indexOf(':')));
-										if (t1 > t2) return -1;
-										if (t1 < t2) return 1;
-										return 0;
-									}
-								});
-						
-						// For each update ID in the page, fetch the corresponding tuple. Do this in a pipeline.
-						Pipeline p = jedis.pipelined();
-						int crtPageElementIndex = 0;
-						ArrayList<String> ids = new ArrayList<String>(page.size());
-						for (Iterator<String> it = page.iterator(); it.hasNext() && crtPageElementIndex < (timestampIndex < 0 ? page.size() : timestampIndex); ++crtPageElementIndex) {
-							final String crtPageElement = it.next();
-							final String id = crtPageElement.substring(crtPageElement.indexOf(':') + 1);
-							startTime = System.nanoTime();
-							p.hmget(String.format("element:%s", id), "value", "added.t", "added.rc", "added.rs", "removed.t", "removed.rc", "removed.rs");
-							p.ttl(String.format("element:%s", id));
-							updateStats.getUpdateElements += (System.nanoTime() - startTime) / 1000000.0;
-							ids.add(id);
-						}
-						// Flush pipeline and append tuples to the list of updates.
-						startTime = System.nanoTime();
-						ArrayList<Object> result = (ArrayList<Object>) p.syncAndReturnAll();
-						updateStats.getUpdateElements += (System.nanoTime() - startTime) / 1000000.0;
-						Iterator<String> idsIt = ids.iterator();
-						for (int i = 0; i < result.size(); ) {
-							@SuppressWarnings("unchecked")
-							final ArrayList<String> tuple = (ArrayList<String>) result.get(i++);
-							final long ttl = (Long) result.get(i++);
-							final String id = idsIt.next();
-							if (tuple.get(1) != null) {				// Key is not expired
-								updates.addFirst(new Element(tuple.get(0), 
-										Long.parseLong(tuple.get(1)), tuple.get(2), tuple.get(3), 
-										tuple.get(4) != null ? Long.parseLong(tuple.get(4)) : null, tuple.get(5), tuple.get(6), 
-										(int) ttl, id));
-							}
-						}
-					}
+			getUpdates(jedis, timestamps, pageSize, handler, updateStats);
+		} finally {
+			jedisPool.returnResource(jedis);
+		}
+	}
+	
+	
+	private void getUpdates(Jedis jedis, Timestamps timestamps, int pageSize, UpdateHandler handler, UpdateStats stats) throws Exception {
+		long startTime;
+		for (int replica = 0; replica < timestamps.size(); ++replica) {
+			if (!timestamps.contains(replica))
+				continue;
+			final byte[] ordinal = SafeEncoder.encode(String.valueOf(toRedis(replica)));
+			long t = timestamps.get(replica);
+			// Fetch the tuples oldest first, one page at a time, resuming after the last timestamp seen.
+			// Blobs are binary, so the script is called through the binary client.
+			int n;
+			do {
+				startTime = System.nanoTime();
+				jedis.getClient().evalsha(SafeEncoder.encode(SCRIPT_SHA1_GET_UPDATES), SafeEncoder.encode("0"),
+						new byte[][] { ordinal, SafeEncoder.encode(String.valueOf(t)), SafeEncoder.encode(String.valueOf(pageSize)) });
+				@SuppressWarnings("unchecked")
+				List<Object> result = (List<Object>) getAll(jedis).get(0);	// result = [id, t, blob, ttl, ...]
+				stats.getUpdateElements += (System.nanoTime() - startTime) / 1000000.0;
+				n = result.size() / 4;
+				ArrayList<Element> updates = new ArrayList<Element>(n);
+				for (int i = 0; i < result.size(); i += 4) {
+					t = Long.parseLong(SafeEncoder.encode((byte[]) result.get(i + 1)));
+					if (result.get(i + 2) != null)				// Key is not expired
+						updates.add(decode(SafeEncoder.encode((byte[]) result.get(i)), (byte[]) result.get(i + 2), ((Long) result.get(i + 3)).intValue()));
 				}
+				if (!updates.isEmpty())
+					handler.handle(updates);
+			} while (n >= pageSize);
+		}
+	}
+
+	@Override
+	public void getDeltas(Timestamps timestamps, int pageSize, DeltaHandler handler) throws Exception {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while getting deltas");
+		
+		updateStats.getUpdateIDs = updateStats.getUpdateElements = 0;
+		long startTime;
+		
+		Jedis jedis = jedisPool.getResource();
+		try {
+			for (int replica = 0; replica < timestamps.size(); ++replica) {
+				if (!timestamps.contains(replica))
+					continue;
+				final byte[] ordinal = SafeEncoder.encode(String.valueOf(toRedis(replica)));
+				long t = timestamps.get(replica);
+				// Same paging as getUpdates(), the script reports how many tuples it read and the last timestamp.
+				int n;
+				do {
+					startTime = System.nanoTime();
+					jedis.getClient().evalsha(SafeEncoder.encode(SCRIPT_SHA1_GET_DELTAS), SafeEncoder.encode("0"),
+							new byte[][] { ordinal, SafeEncoder.encode(String.valueOf(t)), SafeEncoder.encode(String.valueOf(pageSize)) });
+					@SuppressWarnings("unchecked")
+					List<Object> result = (List<Object>) getAll(jedis).get(0);	// result = [n, t, blob, ...]
+					updateStats.getUpdateElements += (System.nanoTime() - startTime) / 1000000.0;
+					n = ((Long) result.get(0)).intValue();
+					t = Long.parseLong(SafeEncoder.encode((byte[]) result.get(1)));
+					ArrayList<Delta> deltas = new ArrayList<Delta>(result.size() - 2);
+					for (int i = 2; i < result.size(); ++i)
+						deltas.add(decodeDelta((byte[]) result.get(i)));
+					if (!deltas.isEmpty())
+						handler.handle(deltas);
+				} while (n >= pageSize);
 			}
-			return updates;
 		} finally {
 			jedisPool.returnResource(jedis);
 		}
 	}
-
+	
+	
 	@Override
-	public void addUpdates(List<Element> updates) throws TimeoutException {
+	public void addUpdates(List<Element> updates) throws TimeoutException, IOException {
+		addUpdates(updates, null);
+	}
+	
+	
+	/**
+	 * Add the (rc, rs, t) arguments of each cell of the timestamps.
+	 */
+	private static void addArguments(List<String> args, Timestamps timestamps) {
+		for (int replica = 0; replica < timestamps.size(); ++replica) {
+			if (timestamps.contains(replica)) {
+				args.add(Replicas.getClusterID(replica));
+				args.add(Replicas.getStoreID(replica));
+				args.add(String.valueOf(timestamps.get(replica)));
+			}
+		}
+	}
+	
+	
+	@Override
+	public void addUpdates(List<Element> updates, Timestamps timestamps) throws TimeoutException, IOException {
+		addUpdates(updates, timestamps, false);
+	}
+	
+	
+	@Override
+	public void addMigratedUpdates(List<Element> updates) throws TimeoutException, IOException {
+		addUpdates(updates, null, true);
+	}
+	
+	
+	@Override
+	public int deleteMigratedUpdates(List<Element> updates) throws TimeoutException, IOException {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while deleting updates");
+		
+		// Batches as in addUpdates(): ARGV = [blob...].
+		ArrayList<ArrayList<byte[]>> calls = new ArrayList<ArrayList<byte[]>>();
+		Iterator<Element> it = updates.iterator();
+		while (it.hasNext()) {
+			ArrayList<byte[]> args = new ArrayList<byte[]>(ADD_UPDATES_BATCH);
+			for (int n = 0; n < ADD_UPDATES_BATCH && it.hasNext(); ++n)
+				args.add(encode(it.next()));
+			calls.add(args);
+		}
+		
+		Jedis jedis = jedisPool.getResource();
+		try {
+			for (ArrayList<byte[]> args : calls)
+				jedis.getClient().evalsha(SafeEncoder.encode(SCRIPT_SHA1_DELETE_MIGRATED), SafeEncoder.encode("0"), args.toArray(new byte[args.size()][]));
+			int deleted = 0;
+			for (Object reply : getAll(jedis))
+				deleted += ((Long) reply).intValue();
+			return deleted;
+		} finally {
+			jedisPool.returnResource(jedis);
+		}
+	}
+	
+	
+	private void addUpdates(List<Element> updates, Timestamps timestamps, boolean migrated) throws TimeoutException, IOException {
 		if (!isOnline())
 			throw new TimeoutException("Timeout while adding updates");
 		
 		updateStats.addUpdateElements = 0;
 		long startTime;
+		
+		if (updates == null)
+			updates = new ArrayList<Element>();
+		if (updates.isEmpty() && timestamps == null)
+			return;
 
+		// Split update elements in batches of one script call each: ARGV = [0, migrated, (blob, ttl)...].
+		// The script derives the id of each tuple from its blob. Blobs are binary, so the arguments are bytes.
+		final byte[] flag = SafeEncoder.encode(migrated ? "1" : "0");
+		ArrayList<ArrayList<byte[]>> calls = new ArrayList<ArrayList<byte[]>>();
+		Iterator<Element> it = updates.iterator();
+		do {
+			ArrayList<byte[]> args = new ArrayList<byte[]>(2 + 2 * ADD_UPDATES_BATCH);
+			args.add(SafeEncoder.encode("0"));
+			args.add(flag);
+			for (int n = 0; n < ADD_UPDATES_BATCH && it.hasNext(); ++n) {
+				final Element e = it.next();
+				args.add(encode(e));
+				args.add(SafeEncoder.encode(String.valueOf(e.gc_ttl >= 0 ? e.gc_ttl : -1)));
+			}
+			calls.add(args);
+		} while (it.hasNext());
+		
+		// With a single batch, the timestamps are committed by the same call, after the updates.
+		final boolean together = timestamps != null && calls.size() == 1;
+		if (together) {
+			ArrayList<String> cells = new ArrayList<String>();
+			addArguments(cells, timestamps);
+			ArrayList<byte[]> args = calls.get(0);
+			args.set(0, SafeEncoder.encode(String.valueOf(cells.size() / 3)));
+			for (int i = 0; i < cells.size(); ++i)
+				args.add(2 + i, SafeEncoder.encode(cells.get(i)));
+		}
+		
 		Jedis jedis = jedisPool.getResource();
 		try {
-			if (updates == null)
-				return;
-
-			// Add update elements to the store. Do this in a pipeline.
-			// TODO In case one update fails to be added, it should be retried and inserted s.t. index:rc:rs will be still sorted.
-			Pipeline p = jedis.pipelined();
+			// Add the batches in a pipeline.
+			startTime = System.nanoTime();
+			for (ArrayList<byte[]> args : calls)
+				jedis.getClient().evalsha(SafeEncoder.encode(SCRIPT_SHA1_ADD_UPDATES), SafeEncoder.encode("0"), args.toArray(new byte[args.size()][]));
+			getAll(jedis);
+			// Otherwise, commit them once all batches succeeded.
+			if (timestamps != null && !together) {
+				ArrayList<String> args = new ArrayList<String>();
+				addArguments(args, timestamps);
+				jedis.evalsha(SCRIPT_SHA1_SET_MAX_TIMESTAMPS, 0, args.toArray(new String[args.size()]));
+			}
+			updateStats.addUpdateElements += (System.nanoTime() - startTime) / 1000000.0;
+		} finally {
+			jedisPool.returnResource(jedis);
 			for (Element e : updates) {
-				HashMap<String, String> tuple = new HashMap<String, String>();
-				tuple.put("value", e.value);
-				tuple.put("added.t", e.added_t.toString());
-				tuple.put("added.rc", e.added_rc);
-				tuple.put("added.rs", e.added_rs);
-				if (e.removed_t != null) {
-					tuple.put("removed.t", e.removed_t.toString());
-					tuple.put("removed.rc", e.removed_rc);
-					tuple.put("removed.rs", e.removed_rs);
-				}
-				startTime = System.nanoTime();
-				p.multi();
-				p.hmset(String.format("element:%s", e.id), tuple);
-				if (e.removed_t != null)
-					p.lpush(String.format("index:%s:%s", e.removed_rc, e.removed_rs), String.format("%d:%s", e.removed_t, e.id));
-				else
-					p.lpush(String.format("index:%s:%s", e.added_rc, e.added_rs), String.format("%d:%s", e.added_t, e.id));
-				if (e.gc_ttl >= 0)
-					p.expire(String.format("element:%s", e.id), e.gc_ttl);
-				p.sadd(String.format("ids:%s", e.value), e.id);
-				p.exec();
-				updateStats.addUpdateElements += (System.nanoTime() - startTime) / 1000000.0;
+				if (!e.isRemoved())
+					filterAdd(e.value);
 			}
+		}
+	}
+
+	@Override
+	public void addDeltas(List<Delta> deltas, Timestamps timestamps) throws TimeoutException, IOException {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while adding deltas");
+		
+		updateStats.addUpdateElements = 0;
+		long startTime;
+		
+		if (deltas.isEmpty() && timestamps == null)
+			return;
+		
+		// Batches as in addUpdates(): ARGV = [0, ttl, blob...]. The tuples get the TTL of this store.
+		final byte[] ttl = SafeEncoder.encode(String.valueOf(Element.getTTL() >= 0 ? Element.getTTL() : -1));
+		ArrayList<ArrayList<byte[]>> calls = new ArrayList<ArrayList<byte[]>>();
+		Iterator<Delta> it = deltas.iterator();
+		do {
+			ArrayList<byte[]> args = new ArrayList<byte[]>(2 + ADD_UPDATES_BATCH);
+			args.add(SafeEncoder.encode("0"));
+			args.add(ttl);
+			for (int n = 0; n < ADD_UPDATES_BATCH && it.hasNext(); ++n)
+				args.add(encode(it.next()));
+			calls.add(args);
+		} while (it.hasNext());
+		
+		final boolean together = timestamps != null && calls.size() == 1;
+		if (together) {
+			ArrayList<String> cells = new ArrayList<String>();
+			addArguments(cells, timestamps);
+			ArrayList<byte[]> args = calls.get(0);
+			args.set(0, SafeEncoder.encode(String.valueOf(cells.size() / 3)));
+			for (int i = 0; i < cells.size(); ++i)
+				args.add(1 + i, SafeEncoder.encode(cells.get(i)));
+		}
+		
+		Jedis jedis = jedisPool.getResource();
+		try {
 			startTime = System.nanoTime();
-			p.sync();
+			for (ArrayList<byte[]> args : calls)
+				jedis.getClient().evalsha(SafeEncoder.encode(SCRIPT_SHA1_ADD_DELTAS), SafeEncoder.encode("0"), args.toArray(new byte[args.size()][]));
+			getAll(jedis);
+			if (timestamps != null && !together) {
+				ArrayList<String> args = new ArrayList<String>();
+				addArguments(args, timestamps);
+				jedis.evalsha(SCRIPT_SHA1_SET_MAX_TIMESTAMPS, 0, args.toArray(new String[args.size()]));
+			}
 			updateStats.addUpdateElements += (System.nanoTime() - startTime) / 1000000.0;
+		} finally {
+			jedisPool.returnResource(jedis);
+			for (Delta d : deltas) {
+				if (!d.isRemove())
+					filterAdd(d.value);
+			}
+		}
+	}
+
+	@Override
+	public int purgeTombstones(Timestamps stable, int limit) throws TimeoutException {
+		if (!isOnline())
+			throw new TimeoutException("Timeout while purging tombstones");
+		
+		// ARGV = [limit, (replica, t)...], with the redis ordinals of the stores.
+		ArrayList<String> args = new ArrayList<String>();
+		args.add(String.valueOf(limit));
+		for (int replica = 0; replica < stable.size(); ++replica) {
+			if (stable.contains(replica)) {
+				args.add(String.valueOf(toRedis(replica)));
+				args.add(String.valueOf(stable.get(replica)));
+			}
+		}
+		Jedis jedis = jedisPool.getResource();
+		try {
+			return ((Long) jedis.evalsha(SCRIPT_SHA1_PURGE_TOMBSTONES, 0, args.toArray(new String[args.size()]))).intValue();
 		} finally {
 			jedisPool.returnResource(jedis);
 		}
@@ -376,6 +1036,10 @@ public class RedisStore extends Store {
 		} finally {
 			jedisPool.returnResource(jedis);
 		}
+		synchronized (this) {
+			if (lookupFilter != null)
+				lookupFilter = new CountingBloomFilter(lookupFilterCapacity, LOOKUP_FILTER_FPP);
+		}
 	}
 
 	@Override
@@ -0,0 +1,24 @@
+package de.oneandone.eventtracker.CRDT.ORset.Stores.legacy;
+
+import java.io.Serializable;
+
+/**
+ * Element as serialized by heap stores before HeapSnapshot, only read by LegacyHeapFile.
+ */
+class Element implements Serializable {
+	private static final long serialVersionUID = 6845807975082331940L;
+
+	String value;
+	String id;
+
+	Long added_t;
+	String added_rc;
+	String added_rs;
+
+	Long removed_t;
+	String removed_rc;
+	String removed_rs;
+	
+	long gc_time;
+	int gc_ttl;
+}
@@ -0,0 +1,88 @@
+package de.oneandone.eventtracker.CRDT.ORset.Stores.legacy;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * File of a heap store written before HeapSnapshot: the online flag, the Timestamps and a LinkedList of Element,
+ * all Java-serialized, with stores named by (rc, rs) instead of replica ordinals.
+ * The classes of the file are read as the shadow classes of this package, then converted to the current ones.
+ */
+public class LegacyHeapFile {
+	private static final short STREAM_MAGIC = (short) 0xACED;
+	private static final String PACKAGE = "de.oneandone.eventtracker.CRDT.ORset.";
+
+	public final boolean online;
+	public final de.oneandone.eventtracker.CRDT.ORset.Timestamps timestamps = new de.oneandone.eventtracker.CRDT.ORset.Timestamps();
+	public final List<de.oneandone.eventtracker.CRDT.ORset.Element> elements = new ArrayList<de.oneandone.eventtracker.CRDT.ORset.Element>();
+
+	/**
+	 * Resolve the classes of the file to the shadow classes.
+	 */
+	private static class LegacyInputStream extends ObjectInputStream {
+		LegacyInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+			if (desc.getName().equals(PACKAGE + "Element"))
+				return Element.class;
+			if (desc.getName().equals(PACKAGE + "Timestamps"))
+				return Timestamps.class;
+			return super.resolveClass(desc);
+		}
+	}
+
+
+	/**
+	 * Check whether a file is a Java-serialized legacy file.
+	 */
+	public static boolean isLegacy(File file) throws IOException {
+		if (file.length() < 2)
+			return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readShort() == STREAM_MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+
+	@SuppressWarnings("unchecked")
+	public LegacyHeapFile(File file) throws IOException {
+		ObjectInputStream in = new LegacyInputStream(new FileInputStream(file));
+		try {
+			online = in.readBoolean();
+			Timestamps t = (Timestamps) in.readObject();
+			if (t.timestamps != null) {
+				for (Map.Entry<String, HashMap<String, Long>> rc : t.timestamps.entrySet()) {
+					for (Map.Entry<String, Long> rs : rc.getValue().entrySet())
+						timestamps.set(rc.getKey(), rs.getKey(), rs.getValue());
+				}
+			}
+			for (Element e : (List<Element>) in.readObject()) {
+				de.oneandone.eventtracker.CRDT.ORset.Element element = new de.oneandone.eventtracker.CRDT.ORset.Element(e.value,
+						e.added_t, e.added_rc, e.added_rs, e.removed_t, e.removed_rc, e.removed_rs);
+				element.gc_time = e.gc_time;
+				elements.add(element);
+			}
+		} catch (ClassNotFoundException e) {
+			throw new IOException(String.format("%s is not a heap store file: %s", file, e.getMessage()), e);
+		} catch (ClassCastException e) {
+			throw new IOException(String.format("%s is not a heap store file: %s", file, e.getMessage()), e);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package de.oneandone.eventtracker.CRDT.ORset.Stores.legacy;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * Timestamps as serialized by heap stores before HeapSnapshot, only read by LegacyHeapFile.
+ */
+class Timestamps implements Serializable {
+	private static final long serialVersionUID = -9160347112338408557L;
+
+	HashMap<String, HashMap<String, Long>> timestamps;
+}
@@ -1,75 +1,230 @@
 package de.oneandone.eventtracker.CRDT.ORset;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Set;
 
+import de.oneandone.eventtracker.CRDT.Utils.Varint;
+
 /**
- * A sparse matrix-like representation of timestamps.
+ * A version vector of timestamps, one cell per replica store.
+ * Cells are kept in an array indexed by the store ordinal from Replicas. Cells which were never set
+ * read as 0 but are not reported by getClusterIDs()/getStoreIDs().
  * @author adeftu
  *
  */
 public class Timestamps implements Serializable {
-	private static final long serialVersionUID = -9160347112338408557L;
-	private HashMap<String, HashMap<String, Long>> timestamps = new HashMap<String, HashMap<String, Long>>();
-	
+	private static final long serialVersionUID = -9160347112338408558L;
+	private static final long UNSET = -1;
+	private transient long[] timestamps = new long[0];
+
+	public Timestamps() {
+	}
+
+	/**
+	 * Create a copy of other timestamps.
+	 */
+	public Timestamps(Timestamps other) {
+		timestamps = other.timestamps.clone();
+	}
+
+
 	/**
 	 * Get the timestamp of a store.
 	 * @param rc	Replica cluster ID.
 	 * @param rs	Replica store ID.
 	 * @return		Timestamp value.
 	 */
-	public Long get(String rc, String rs) {
-		HashMap<String, Long> cluster = timestamps.get(rc);
-		if (cluster == null)
-			return 0L;
-		Long t = cluster.get(rs);
-		if (t == null)
-			return 0L;
-		return t;
-	}
-	
-	
+	public long get(String rc, String rs) {
+		return get(Replicas.ordinal(rc, rs));
+	}
+
+
+	/**
+	 * Get the timestamp of a store.
+	 * @param replica	Ordinal of the store.
+	 */
+	public long get(int replica) {
+		if (replica < 0 || replica >= timestamps.length || timestamps[replica] == UNSET)
+			return 0;
+		return timestamps[replica];
+	}
+
+
+	/**
+	 * Check whether the timestamp of a store was set.
+	 * @param replica	Ordinal of the store.
+	 */
+	public boolean contains(int replica) {
+		return replica >= 0 && replica < timestamps.length && timestamps[replica] != UNSET;
+	}
+
+
 	/**
 	 * Set the timestamp of a store.
 	 * @param rc	Replica cluster ID.
 	 * @param rs	Replica store ID.
 	 * @param t		Timestamp value.
 	 */
-	public void set(String rc, String rs, Long t) {
-		HashMap<String, Long> cluster = timestamps.get(rc);
-		if (cluster == null) {
-			HashMap<String, Long> newCluster = new HashMap<String, Long>();
-			timestamps.put(rc, newCluster);
-			cluster = newCluster;
+	public void set(String rc, String rs, long t) {
+		set(Replicas.ordinal(rc, rs), t);
+	}
+
+
+	/**
+	 * Set the timestamp of a store.
+	 * @param replica	Ordinal of the store.
+	 * @param t			Timestamp value.
+	 */
+	public void set(int replica, long t) {
+		if (replica >= timestamps.length) {
+			final int n = timestamps.length;
+			timestamps = Arrays.copyOf(timestamps, Math.max(replica + 1, Replicas.size()));
+			Arrays.fill(timestamps, n, timestamps.length, UNSET);
+		}
+		timestamps[replica] = t;
+	}
+
+
+	/**
+	 * Get the number of cells, i.e. an upper bound of the ordinals of the stores which were set.
+	 */
+	public int size() {
+		return timestamps.length;
+	}
+
+
+	/**
+	 * Merge other timestamps into these as T[rc][rs] := max(T[rc][rs], other[rc][rs]).
+	 */
+	public void max(Timestamps other) {
+		for (int replica = 0; replica < other.timestamps.length; ++replica) {
+			if (other.timestamps[replica] != UNSET)
+				set(replica, Math.max(get(replica), other.timestamps[replica]));
 		}
-		cluster.put(rs, t);
 	}
-	
-	
+
+
+	/**
+	 * Merge other timestamps into these as T[rc][rs] := min(T[rc][rs], other[rc][rs]).
+	 */
+	public void min(Timestamps other) {
+		for (int replica = 0; replica < other.timestamps.length; ++replica) {
+			if (other.timestamps[replica] != UNSET)
+				set(replica, Math.min(get(replica), other.timestamps[replica]));
+		}
+	}
+
+
+	/**
+	 * Check whether these timestamps are at least as recent as the other ones in every cell.
+	 */
+	public boolean dominates(Timestamps other) {
+		for (int replica = 0; replica < other.timestamps.length; ++replica) {
+			if (other.timestamps[replica] != UNSET && get(replica) < other.timestamps[replica])
+				return false;
+		}
+		return true;
+	}
+
+
 	/**
 	 * Get all cluster IDs.
 	 */
 	public Set<String> getClusterIDs() {
-		return timestamps.keySet();
+		HashSet<String> clusterIDs = new HashSet<String>();
+		for (int replica = 0; replica < timestamps.length; ++replica) {
+			if (timestamps[replica] != UNSET)
+				clusterIDs.add(Replicas.getClusterID(replica));
+		}
+		return clusterIDs;
 	}
-	
-	
+
+
 	/**
 	 * Get all store IDs from the given cluster ID.
 	 */
 	public Set<String> getStoreIDs(String rc) {
-		return timestamps.get(rc).keySet();
+		HashSet<String> storeIDs = new HashSet<String>();
+		for (int replica = 0; replica < timestamps.length; ++replica) {
+			if (timestamps[replica] != UNSET && Replicas.getClusterID(replica).equals(rc))
+				storeIDs.add(Replicas.getStoreID(replica));
+		}
+		return storeIDs;
+	}
+
+
+	/**
+	 * Encode the timestamps as [number of cells, (rc, rs, varint t)...].
+	 * Stores are written by ID, since ordinals are only valid within this process.
+	 */
+	public byte[] encode() {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			int n = 0;
+			for (long t : timestamps) {
+				if (t != UNSET)
+					++n;
+			}
+			Varint.writeInt(out, n);
+			for (int replica = 0; replica < timestamps.length; ++replica) {
+				if (timestamps[replica] != UNSET) {
+					Varint.writeString(out, Replicas.getClusterID(replica));
+					Varint.writeString(out, Replicas.getStoreID(replica));
+					Varint.writeLong(out, timestamps[replica]);
+				}
+			}
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	/**
+	 * Decode timestamps written by encode().
+	 */
+	public static Timestamps decode(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+		Timestamps timestamps = new Timestamps();
+		final int n = Varint.readInt(in);
+		for (int i = 0; i < n; ++i)
+			timestamps.set(Varint.readString(in), Varint.readString(in), Varint.readLong(in));
+		return timestamps;
+	}
+
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		byte[] bytes = encode();
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		timestamps = decode(bytes).timestamps;
 	}
-	
-	
+
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
-		for (String rc : timestamps.keySet()) {
-			for (String rs : timestamps.get(rc).keySet()) {
-				sb.append(String.format("%s:%s: %d\n", rc, rs, timestamps.get(rc).get(rs)));
-			}
+		for (int replica = 0; replica < timestamps.length; ++replica) {
+			if (timestamps[replica] != UNSET)
+				sb.append(String.format("%s:%s: %d\n", Replicas.getClusterID(replica), Replicas.getStoreID(replica), timestamps[replica]));
 		}
 		return sb.toString();
 	}
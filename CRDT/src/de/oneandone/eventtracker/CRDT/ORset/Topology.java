@@ -19,6 +19,43 @@ import org.w3c.dom.NodeList;
  */
 public class Topology {
 	private HashMap<String, HashMap<String, InetSocketAddress>> topology = new HashMap<String, HashMap<String,InetSocketAddress>>();
+	private HashMap<String, Integer> weights = new HashMap<String, Integer>();	// rc:rs -> weight, if not 1.
+	private long version = 0;			// Incremented on every change published to the stores.
+	private boolean migrating = false;	// Whether tuples are being migrated to the stores of this version.
+	
+	public Topology() {
+	}
+	
+	
+	/**
+	 * Create a copy of another topology.
+	 */
+	public Topology(Topology other) {
+		for (String rc : other.getClusterIDs()) {
+			for (String rs : other.getStoreIDs(rc))
+				set(rc, rs, other.get(rc, rs));
+		}
+		weights.putAll(other.weights);
+		version = other.version;
+		migrating = other.migrating;
+	}
+	
+	
+	public long getVersion() {
+		return version;
+	}
+	
+	public void setVersion(long version) {
+		this.version = version;
+	}
+	
+	public boolean isMigrating() {
+		return migrating;
+	}
+	
+	public void setMigrating(boolean migrating) {
+		this.migrating = migrating;
+	}
 	
 	/**
 	 * Set the address of a store.
@@ -51,6 +88,27 @@ public class Topology {
 	}
 	
 	
+	/**
+	 * Set the weight of a store, i.e. its share of the values of its cluster relative to the other stores,
+	 * for the hash functions which support weights (see Client.setHashFunction()).
+	 */
+	public void setWeight(String rc, String rs, int weight) {
+		if (weight == 1)
+			weights.remove(rc + ":" + rs);
+		else
+			weights.put(rc + ":" + rs, weight);
+	}
+	
+	
+	/**
+	 * Get the weight of a store, 1 by default.
+	 */
+	public int getWeight(String rc, String rs) {
+		Integer weight = weights.get(rc + ":" + rs);
+		return weight == null ? 1 : weight;
+	}
+	
+	
 	/**
 	 * Get all cluster IDs.
 	 */
@@ -72,13 +130,14 @@ public class Topology {
 	 * XML file format:
 	 * <topology>
 	 * 	<cluster id="A">
-	 * 		<store id="x" ip="192.168.0.1" port=1337>
+	 * 		<store id="x" ip="192.168.0.1" port=1337 weight=2>
 	 * 		<store id="y" ip="192.168.0.2" port=1337>
 	 * 	</cluster>
 	 *  <cluster id="B">
 	 * 		<store id="z" ip="192.168.1.0" port=1337>
 	 * 	</cluster>
 	 * </topology>
+	 * The weight of a store is optional, 1 by default.
 	 */
 	public void loadFromFile(String fileName) throws Exception {
 		Document dom = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(fileName));
@@ -95,6 +154,8 @@ public class Topology {
 				if (rc.contains(":") || rs.contains(":"))
 					throw new Exception("IDs are not allowed to contain ':' character");
 				set(rc, rs, new InetSocketAddress(store.getAttribute("ip"), Integer.parseInt(store.getAttribute("port"))));
+				if (store.hasAttribute("weight"))
+					setWeight(rc, rs, Integer.parseInt(store.getAttribute("weight")));
 			}
 		}
 	}
@@ -4,4 +4,7 @@ public class UpdateStats {
 	public float getUpdateIDs = 0;
 	public float getUpdateElements = 0;
 	public float addUpdateElements = 0;
+	public long numUpdates = 0;			// Number of updates fetched from the remote cluster.
+	public int retries = 0;				// Number of failed fetches from remote stores which were retried.
+	public boolean complete = false;	// Whether all local stores added all updates and advanced their timestamps.
 }
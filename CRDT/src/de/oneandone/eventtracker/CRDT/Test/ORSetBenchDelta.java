@@ -30,6 +30,8 @@ public class ORSetBenchDelta {
 	private static final String PROP_NUM_PULLS = "num_pulls";
 	private static final String PROP_VALUE_SIZE = "value_size";
 	private static final String PROP_PULL_NUM_THREADS = "pull_num_threads";
+	private static final String PROP_PULL_EXECUTOR = "pull_executor";
+	private static final String PROP_PULL_DELTAS = "pull_deltas";
 		
 	private Client<RedisStore> clientA, clientB;
 	private Properties config;
@@ -41,6 +43,7 @@ public class ORSetBenchDelta {
 		
 		config = new Properties();
 		config.load(new FileInputStream("etc/orset/bench_delta.properties"));
+		RedisStore.setConfig(config);
 		
 		RedisStore.clearAndSetTopology(config.getProperty(PROP_TOPOLOGY));
 		
@@ -49,6 +52,9 @@ public class ORSetBenchDelta {
 		
 		clientA.setCheckIfStoresOnline(false);
 		clientB.setCheckIfStoresOnline(false);
+		clientB.setSyncExecutor(Client.SyncExecutor.valueOf(config.getProperty(PROP_PULL_EXECUTOR, "FIXED")), 
+				Integer.parseInt(config.getProperty(PROP_PULL_NUM_THREADS)));
+		clientB.setDeltaSync(Boolean.parseBoolean(config.getProperty(PROP_PULL_DELTAS, "false")));
 	}
 	
 	@After
@@ -66,12 +72,9 @@ public class ORSetBenchDelta {
 			futures.add(pool.submit(new Runnable() {
 				@Override
 				public void run() {
-					String value;
-					do {
-						byte[] bytes = new byte[valueSize];
-						random.nextBytes(bytes);
-						value = new String(bytes);
-					} while (value.contains(":"));
+					byte[] bytes = new byte[valueSize];
+					random.nextBytes(bytes);
+					String value = new String(bytes);
 					client.add(value);
 				}
 			}));
@@ -100,5 +103,6 @@ public class ORSetBenchDelta {
 					endBytesStats.totalRxBytes - startBytesStats.totalRxBytes,
 					endBytesStats.totalTxBytes - startBytesStats.totalTxBytes);
 		}
+		System.err.println(clientB.getSyncExecutorStats());
 	}
 }
@@ -2,19 +2,18 @@ package de.oneandone.eventtracker.CRDT.Test;
 
 import java.io.FileInputStream;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.Properties;
 import java.util.Random;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import de.oneandone.eventtracker.CRDT.ORset.AsyncClient;
 import de.oneandone.eventtracker.CRDT.ORset.Client;
 import de.oneandone.eventtracker.CRDT.ORset.Element;
 import de.oneandone.eventtracker.CRDT.ORset.Stores.RedisStore;
@@ -22,7 +21,7 @@ import de.oneandone.eventtracker.CRDT.ORset.Stores.RedisStore;
 public class ORSetBenchOps {
 	private static final String PROP_TOPOLOGY = "topology";
 	private static final String PROP_BOOT = "boot";
-	private static final String PROP_THREADS = "threads";
+	private static final String PROP_WINDOW = "window";
 	private static final String PROP_NUM_OPS = "num_ops";
 	private static final String PROP_VALUE_SIZE = "value_size";
 	
@@ -35,6 +34,7 @@ public class ORSetBenchOps {
 		
 		config = new Properties();
 		config.load(new FileInputStream("etc/orset/bench_ops.properties"));
+		RedisStore.setConfig(config);
 		
 		RedisStore.clearAndSetTopology(config.getProperty(PROP_TOPOLOGY));
 		client.boot(config.getProperty(PROP_BOOT).split(":")[0], Integer.parseInt(config.getProperty(PROP_BOOT).split(":")[1]));
@@ -56,76 +56,63 @@ public class ORSetBenchOps {
 		final int valueSize = Integer.parseInt(config.getProperty(PROP_VALUE_SIZE));
 		ArrayList<String> values = new ArrayList<String>(numOps);
 		for (int i = 0; i < numOps; ++i) {
-			String value;
-			do {
-				byte[] bytes = new byte[valueSize];
-				new Random().nextBytes(bytes);
-				value = new String(bytes);
-			} while (value.contains(":"));
+			byte[] bytes = new byte[valueSize];
+			new Random().nextBytes(bytes);
+			String value = new String(bytes);
 			values.add(value);
 		}
 
-		ExecutorService pool;
 		LinkedList<Future<?>> futures;
 		long startTime;
-		final int numThreads = Integer.parseInt(config.getProperty(PROP_THREADS));
+		final int window = Integer.parseInt(config.getProperty(PROP_WINDOW));
+		AsyncClient<RedisStore> asyncClient = new AsyncClient<RedisStore>(client, window);
 		
 		// ADD
-		pool = Executors.newFixedThreadPool(numThreads);
 		futures = new LinkedList<Future<?>>();
 		startTime = System.nanoTime();
-		for (final String value : values) {
-			futures.add(pool.submit(new Runnable() {
-				@Override
-				public void run() {
-					client.add(value);
-				}
-			}));
+		for (String value : values) {
+			if (futures.size() >= window)		// Stay within the window of the stores.
+				futures.removeFirst().get();
+			futures.add(asyncClient.add(value));
 		}
 		for (Future<?> future : futures) {
 		    future.get();
 		}
 		System.out.printf("[ADD] Elapsed time: %.2f (ms)\n", (System.nanoTime() - startTime) / 1000000.0);
-		pool.shutdown();
-		while (!pool.awaitTermination(60, TimeUnit.SECONDS));
 		
 		
 		// LOOKUP
-		pool = Executors.newFixedThreadPool(numThreads);
 		futures = new LinkedList<Future<?>>();
 		startTime = System.nanoTime();
-		for (final String value : values) {
-			futures.add(pool.submit(new Runnable() {
-				@Override
-				public void run() {
-					client.lookup(value);
-				}
-			}));
+		for (String value : values) {
+			if (futures.size() >= window)		// Stay within the window of the stores.
+				futures.removeFirst().get();
+			futures.add(asyncClient.lookup(value));
 		}
 		for (Future<?> future : futures) {
 		    future.get();
 		}
 		System.out.printf("[LOOKUP] Elapsed time: %.2f (ms)\n", (System.nanoTime() - startTime) / 1000000.0);
-		pool.shutdown();
-		while (!pool.awaitTermination(60, TimeUnit.SECONDS));
 
 		// REMOVE
-		pool = Executors.newFixedThreadPool(numThreads);
 		futures = new LinkedList<Future<?>>();
 		startTime = System.nanoTime();
-		for (final String value : values) {
-			futures.add(pool.submit(new Runnable() {
-				@Override
-				public void run() {
-					client.remove(value);
-				}
-			}));
+		for (String value : values) {
+			if (futures.size() >= window)		// Stay within the window of the stores.
+				futures.removeFirst().get();
+			futures.add(asyncClient.remove(value));
 		}
 		for (Future<?> future : futures) {
 		    future.get();
 		}
 		System.out.printf("[REMOVE] Elapsed time: %.2f (ms)\n", (System.nanoTime() - startTime) / 1000000.0);
-		pool.shutdown();
-		while (!pool.awaitTermination(60, TimeUnit.SECONDS));
+		asyncClient.close();
+		
+		LinkedHashSet<RedisStore> stores = new LinkedHashSet<RedisStore>();
+		for (String value : values)
+			stores.add(client.getStore(value));
+		for (RedisStore store : stores)
+			System.out.printf("[POOL] %s: %s\n", store, store.getPoolStats());
+		System.out.printf("[ASYNC] %s\n", asyncClient.getStats());
 	}
 }
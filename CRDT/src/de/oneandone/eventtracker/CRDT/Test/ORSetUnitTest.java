@@ -1,11 +1,32 @@
 package de.oneandone.eventtracker.CRDT.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
@@ -14,11 +35,22 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import de.oneandone.eventtracker.CRDT.Hashing.ConsistentHashFunction;
+import de.oneandone.eventtracker.CRDT.ORset.AsyncClient;
+import de.oneandone.eventtracker.CRDT.ORset.AsyncStats;
+import de.oneandone.eventtracker.CRDT.ORset.CacheStats;
 import de.oneandone.eventtracker.CRDT.ORset.Client;
 import de.oneandone.eventtracker.CRDT.ORset.Element;
+import de.oneandone.eventtracker.CRDT.ORset.Replicas;
+import de.oneandone.eventtracker.CRDT.ORset.Store;
+import de.oneandone.eventtracker.CRDT.ORset.Timestamps;
+import de.oneandone.eventtracker.CRDT.ORset.Topology;
 import de.oneandone.eventtracker.CRDT.ORset.Stores.HeapStore;
+import de.oneandone.eventtracker.CRDT.ORset.Stores.PoolStats;
 import de.oneandone.eventtracker.CRDT.ORset.Stores.RedisStore;
 
+import redis.clients.jedis.Jedis;
+
 @RunWith(Parameterized.class)
 public class ORSetUnitTest {
 	
@@ -49,6 +81,7 @@ public class ORSetUnitTest {
 	
 	@Before
 	public void init() {
+		Element.setTTL(-1);		// Set by the gc tests.
 		switch (storeType) {
 		case HEAP:
 			clientA = new Client<HeapStore>(HeapStore.class);
@@ -86,6 +119,10 @@ public class ORSetUnitTest {
 			break;
 		}
 		
+		boot();
+	}
+	
+	private void boot() {
 		try {
 			clientA.boot("127.0.0.1", 6379); clientA.setCheckIfStoresOnline(true);
 			clientB.boot("127.0.0.1", 6380); clientB.setCheckIfStoresOnline(true);
@@ -95,6 +132,30 @@ public class ORSetUnitTest {
 		}
 	}
 	
+	/**
+	 * Close the heap clients, which releases the files of their stores.
+	 */
+	private void closeHeapClients() {
+		clientA.close();
+		clientB.close();
+		clientC.close();
+	}
+	
+	/**
+	 * Boot new heap clients, which load their stores from the files.
+	 */
+	private void bootHeapClients() {
+		clientA = new Client<HeapStore>(HeapStore.class);
+		clientB = new Client<HeapStore>(HeapStore.class);
+		clientC = new Client<HeapStore>(HeapStore.class);
+		boot();
+	}
+	
+	private void restartHeapClients() {
+		closeHeapClients();
+		bootHeapClients();
+	}
+	
 	@After
 	public void clean() {
 		clientA.clear(); clientA.close();
@@ -300,6 +361,649 @@ public class ORSetUnitTest {
 	}
 	
 	
+	/**
+	 * Batch ADD + RMV spanning all stores of the cluster.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void batchTest1() {
+		List<String> values = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h");
+		clientA.addAll(values);
+		Map<String, Boolean> found = clientA.lookupAll(values);
+		for (String value : values)
+			assertTrue(found.get(value));
+		clientA.removeAll(values.subList(0, 4));
+		found = clientA.lookupAll(values);
+		for (String value : values)
+			assertEquals(values.indexOf(value) >= 4, found.get(value));
+		pull(clientB, clientA, "h", true);
+		pull(clientB, clientA, "a", false);
+	}
+	
+	
+	/**
+	 * Asynchronous operations on one store are batched by kind and complete in submission order.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void asyncTest1() throws Exception {
+		List<String> values = sameStore(clientA, "a", 4);
+		AsyncClient async = new AsyncClient(clientA);
+		final List<Integer> completed = Collections.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(10);
+		List<CompletableFuture<?>> futures = new ArrayList<CompletableFuture<?>>();
+		for (int i = 0; i < 10; ++i) {
+			final int n = i;
+			CompletableFuture<?> future;
+			if (i < 4)
+				future = async.add(values.get(i));
+			else if (i < 6)
+				future = async.remove(values.get(i - 4));
+			else
+				future = async.lookup(values.get(i - 6));
+			// Registered before the next submission, so that the thread completing the future records it.
+			future.thenRun(new Runnable() {
+				@Override
+				public void run() {
+					completed.add(n);
+					done.countDown();
+				}
+			});
+			futures.add(future);
+		}
+		// Waiting on the futures themselves may run their callbacks in this thread, out of order.
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		for (int i = 0; i < values.size(); ++i)
+			assertEquals(i >= 2, futures.get(6 + i).get());
+		for (int i = 0; i < futures.size(); ++i)
+			assertEquals(i, (int) completed.get(i));
+		AsyncStats stats = async.getStats();
+		assertEquals(futures.size(), stats.operations);
+		assertEquals(0, stats.rejected);
+		assertTrue(stats.batches >= 3 && stats.batches <= futures.size());
+		async.close();
+		pull(clientB, clientA, values.get(3), true);
+		pull(clientB, clientA, values.get(0), false);
+	}
+	
+	
+	/**
+	 * Asynchronous operations fail while their store is down and succeed once it is back.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void asyncTest2() throws Exception {
+		AsyncClient async = new AsyncClient(clientA);
+		clientA.getStore("a").setOnline(false);
+		try {
+			async.add("a").get();
+			fail("Added a value to a failed store");
+		} catch (ExecutionException e) {
+		}
+		try {
+			async.lookup("a").get();
+			fail("Looked up a value in a failed store");
+		} catch (ExecutionException e) {
+		}
+		clientA.getStore("a").setOnline(true);
+		async.add("a").get();
+		assertTrue((Boolean) async.lookup("a").get());
+		async.close();
+	}
+	
+	
+	/**
+	 * Asynchronous operations are rejected once the window of their store is full.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void asyncTest3() throws Exception {
+		AsyncClient async = new AsyncClient(clientA, 1);
+		List<CompletableFuture<?>> futures = new ArrayList<CompletableFuture<?>>();
+		CompletableFuture<?> rejected = null;
+		for (int i = 0; i < 100000 && rejected == null; ++i) {
+			CompletableFuture<?> future = async.add("a");
+			if (future.isCompletedExceptionally())
+				rejected = future;
+			else
+				futures.add(future);
+		}
+		assertTrue(rejected != null);
+		try {
+			rejected.get();
+			fail("Queued an operation beyond the window");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RejectedExecutionException);
+		}
+		for (CompletableFuture<?> future : futures)
+			future.get();
+		assertTrue(async.getStats().rejected > 0);
+		assertTrue((Boolean) async.lookup("a").get());
+		async.close();
+	}
+	
+	
+	/**
+	 * RMV tombstone is purged once seen by all clusters and is not resurrected by later pulls.
+	 */
+	@Test
+	public void tombstoneTest1() {
+		add(clientA, "a");
+		pull(clientB, clientA, "a", true);
+		remove(clientA, "a");
+		assertEquals(0, clientA.purgeTombstones(1000));
+		pull(clientB, clientA, "a", false);
+		pull(clientC, clientA, "a", false);
+		assertEquals(1, clientA.purgeTombstones(1000));
+		assertEquals(0, clientA.purgeTombstones(1000));
+		pull(clientA, clientB, "a", false);
+		assertEquals(1, clientB.purgeTombstones(1000));
+		pull(clientB, clientC, "a", false);
+		add(clientA, "a");
+		pull(clientB, clientA, "a", true);
+	}
+	
+	
+	/**
+	 * Tombstones of several clusters are purged by the background GC only once all stores of all clusters saw them.
+	 */
+	@Test
+	public void tombstoneTest2() throws InterruptedException {
+		add(clientA, "a");
+		add(clientA, "b");
+		pull(clientB, clientA, "b", true);
+		remove(clientA, "a");
+		remove(clientB, "b");
+		pull(clientB, clientA, "a", false);
+		pull(clientC, clientA, "a", false);
+		pull(clientC, clientB, "b", false);
+		pull(clientA, clientB, "b", false);
+		clientC.getStore("a").setOnline(false);
+		assertEquals(0, clientA.purgeTombstones(1000));
+		clientC.getStore("a").setOnline(true);
+		clientA.startTombstoneGC(10, 1);
+		for (int i = 0; i < 200 && clientA.getPurgedTombstones() < 2; ++i)
+			Thread.sleep(10);
+		clientA.stopTombstoneGC();
+		assertEquals(2, clientA.getPurgedTombstones());
+		assertEquals(0, clientA.purgeTombstones(1000));
+		pull(clientA, clientC, "a", false);
+		pull(clientA, clientC, "b", false);
+		assertEquals(2, clientB.purgeTombstones(1000));
+		assertEquals(2, clientC.purgeTombstones(1000));
+	}
+	
+	
+	/**
+	 * Periodic pulls bring new updates, back off while the clusters are in sync and track the replication lag.
+	 */
+	@Test
+	public void antiEntropyTest1() throws InterruptedException {
+		final String rc = clientA.getClusterID();
+		assertEquals(-1, clientB.getReplicationLag(rc));
+		assertEquals(-1, clientB.getAntiEntropyInterval(rc));
+		clientB.startAntiEntropy(10, 160, 1);
+		assertEquals(-1, clientB.getAntiEntropyInterval(clientB.getClusterID()));
+		add(clientA, "a");
+		for (int i = 0; i < 200 && !clientB.lookup("a"); ++i)
+			Thread.sleep(10);
+		assertTrue(clientB.lookup("a"));
+		// Pulls are skipped once in sync, and the interval doubles up to the maximum.
+		for (int i = 0; i < 200 && clientB.getAntiEntropyInterval(rc) < 160; ++i)
+			Thread.sleep(10);
+		assertEquals(160, clientB.getAntiEntropyInterval(rc));
+		final long lag = clientB.getReplicationLag(rc);
+		assertTrue(lag >= 0 && lag < 1000);
+		add(clientA, "b");
+		for (int i = 0; i < 200 && !clientB.lookup("b"); ++i)
+			Thread.sleep(10);
+		assertTrue(clientB.lookup("b"));
+		clientB.stopAntiEntropy();
+		assertEquals(-1, clientB.getReplicationLag(rc));
+		assertEquals(-1, clientB.getAntiEntropyInterval(rc));
+		assertFalse(clientC.lookup("a"));
+	}
+	
+	
+	/**
+	 * Concurrent ADD + RMV propagate as deltas, the RMV of several tags being one delta.
+	 */
+	@Test
+	public void deltaTest1() {
+		clientB.setDeltaSync(true);
+		clientC.setDeltaSync(true);
+		add(clientA, "a");
+		add(clientA, "a");
+		add(clientC, "a");
+		pull(clientB, clientA, "a", true);
+		remove(clientB, "a");
+		pull(clientC, clientB, "a", true);
+		pull(clientA, clientB, "a", false);
+		pull(clientC, clientA, "a", true);
+		remove(clientC, "a");
+		pull(clientB, clientC, "a", false);
+	}
+	
+	
+	/**
+	 * Cached lookups see local ADD + RMV and pulled updates, as tuples and as deltas.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void cacheTest1() {
+		clientA.setLookupCache(100, 60000);
+		assertFalse(clientA.lookup("a"));
+		add(clientA, "a");
+		assertTrue(clientA.lookup("a"));
+		remove(clientA, "a");
+		Map<String, Boolean> found = clientA.lookupAll(Arrays.asList("a", "b"));
+		assertFalse(found.get("a") || found.get("b"));
+		add(clientB, "b");
+		pull(clientA, clientB, "b", true);
+		clientA.setDeltaSync(true);
+		remove(clientB, "b");
+		pull(clientA, clientB, "b", false);
+		CacheStats stats = clientA.getLookupCacheStats();
+		assertTrue(stats.hits > 0);
+		assertTrue(stats.invalidations > 0);
+	}
+	
+	
+	/**
+	 * Lookups through the lookup filter see local ADD + RMV, pulled updates and batches of values.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void filterTest1() {
+		clientA.setLookupFilter(100, 60000);
+		assertFalse(clientA.lookup("a"));
+		add(clientA, "a");
+		add(clientB, "b");
+		pull(clientA, clientB, "b", true);
+		remove(clientA, "a");
+		clientA.setLookupFilter(100, 60000);
+		assertFalse(clientA.lookup("a"));
+		assertTrue(clientA.lookup("b"));
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < 1000; ++i)
+			values.add("v" + i);
+		clientA.addAll(values);
+		Map<String, Boolean> found = clientA.lookupAll(values);
+		for (String value : values)
+			assertTrue(found.get(value));
+		assertFalse(clientA.lookup("v1000"));
+	}
+	
+	
+	/**
+	 * Lookups through the lookup filter see the values added by another client of the cluster once the filter
+	 * is rebuilt, and a filter without refresh is rejected.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void filterTest2() throws Exception {
+		try {
+			clientA.setLookupFilter(100, 0);
+			fail("Kept a lookup filter without refresh");
+		} catch (RuntimeException e) {
+		}
+		clientA.setLookupFilter(100, 20);
+		Client clientA2 = storeType == StoreType.HEAP ? new Client<HeapStore>(HeapStore.class) : new Client<RedisStore>(RedisStore.class);
+		clientA2.boot("127.0.0.1", 6379);
+		try {
+			assertFalse(clientA.lookup("a"));
+			add(clientA2, "a");
+			boolean found = false;
+			for (int i = 0; i < 200 && !found; ++i) {
+				found = clientA.lookup("a");
+				if (!found)
+					Thread.sleep(10);
+			}
+			assertTrue(found);
+		} finally {
+			clientA.setLookupFilter(0, 0);
+			clientA2.close();
+		}
+	}
+	
+	
+	/**
+	 * Connections which timed out are closed instead of being returned to the pool, and the lookups waiting 
+	 * for the only connection of the pool are counted in the wait time.
+	 */
+	@Test
+	public void poolTest1() throws Exception {
+		if (storeType != StoreType.REDIS) return;
+		Properties properties = new Properties();
+		properties.setProperty("redis.timeout", "200");
+		properties.setProperty("redis.max_active", "1");
+		RedisStore.setConfig(properties);
+		final RedisStore store;
+		try {
+			store = new RedisStore("A", "alpha1", new InetSocketAddress("127.0.0.1", 6379));
+		} finally {
+			RedisStore.setConfig(new Properties());
+		}
+		try {
+			assertFalse(store.lookup("a"));
+			PoolStats stats = store.getPoolStats();
+			assertEquals(0, stats.active);
+			assertEquals(0, stats.broken);
+			final long borrows = stats.borrows;
+			
+			// A script keeps the server busy for longer than the timeout of two lookups.
+			Thread busy = new Thread() {
+				@Override
+				public void run() {
+					Jedis jedis = new Jedis("127.0.0.1", 6379);
+					jedis.eval("local start = redis.call('time') local now = start " +
+							"repeat now = redis.call('time') until (now[1] - start[1]) * 1000000 + now[2] - start[2] > 800000 " +
+							"return 0", 0);
+					jedis.disconnect();
+				}
+			};
+			busy.start();
+			Thread.sleep(100);
+			final AtomicInteger failed = new AtomicInteger();
+			Thread lookup = new Thread() {
+				@Override
+				public void run() {
+					try {
+						store.lookup("a");
+					} catch (Exception e) {
+						failed.incrementAndGet();
+					}
+				}
+			};
+			lookup.start();
+			try {
+				store.lookup("a");
+			} catch (Exception e) {
+				failed.incrementAndGet();
+			}
+			lookup.join();
+			busy.join();
+			assertEquals(2, failed.get());
+			
+			assertFalse(store.lookup("a"));
+			stats = store.getPoolStats();
+			assertEquals(0, stats.active);
+			assertEquals(2, stats.broken);
+			assertEquals(borrows + 3, stats.borrows);
+			assertTrue(stats.maxWaitTime >= 100);
+			assertTrue(stats.getAverageWaitTime() > 0);
+		} finally {
+			store.close();
+		}
+	}
+	
+	
+	/**
+	 * ADD + RMV stay visible while a store joins the cluster and the tuples are migrated to it.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void reshardTest1() throws Exception {
+		List<String> values = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k", "l", "m", "n", "o", "p");
+		clientA.addAll(values);
+		clientA.removeAll(values.subList(0, 4));
+		Topology topology = new Topology();
+		topology.loadFromFile("etc/orset/topology_multi.xml");
+		topology.set("A", "alpha4", new InetSocketAddress("127.0.0.1", 6385));
+		clientA.updateTopology(topology);
+		clientA.remove("e");
+		assertTrue(clientA.awaitMigration(10000));
+		assertTrue(clientA.getMigrationStats().moved > 0);
+		Map<String, Boolean> found = clientA.lookupAll(values);
+		for (String value : values)
+			assertEquals(values.indexOf(value) >= 5, found.get(value));
+		pull(clientB, clientA, "p", true);
+		pull(clientB, clientA, "e", false);
+	}
+	
+	
+	/**
+	 * ADD propagates from a store which joined once the other clusters picked up the new topology.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void reshardTest2() throws Exception {
+		Topology topology = new Topology();
+		topology.loadFromFile("etc/orset/topology_multi.xml");
+		topology.set("A", "alpha4", new InetSocketAddress("127.0.0.1", 6385));
+		clientA.updateTopology(topology);
+		assertTrue(clientA.awaitMigration(10000));
+		assertTrue(clientB.refreshTopology());
+		assertFalse(clientB.refreshTopology());
+		List<String> values = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k", "l", "m", "n", "o", "p");
+		clientA.addAll(values);
+		clientB.pullUpdates(clientA.getClusterID());
+		Map<String, Boolean> found = clientB.lookupAll(values);
+		for (String value : values)
+			assertTrue(found.get(value));
+	}
+	
+	
+	/**
+	 * ADD stays visible when a store leaves the cluster after its tuples were pulled: the remaining stores
+	 * already cover them in their timestamps.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void reshardTest3() throws Exception {
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < 30; ++i)
+			values.add("v" + i);
+		clientB.addAll(values);
+		clientA.pullUpdates(clientB.getClusterID());
+		Topology multi = new Topology();
+		multi.loadFromFile("etc/orset/topology_multi.xml");
+		Topology topology = new Topology();
+		for (String rc : multi.getClusterIDs()) {
+			for (String rs : multi.getStoreIDs(rc)) {
+				if (!rs.equals("alpha3"))
+					topology.set(rc, rs, multi.get(rc, rs));
+			}
+		}
+		clientA.updateTopology(topology);
+		assertTrue(clientA.awaitMigration(10000));
+		assertTrue(clientA.getMigrationStats().moved > 0);
+		Map<String, Boolean> found = clientA.lookupAll(values);
+		for (String value : values)
+			assertTrue(found.get(value));
+	}
+	
+	
+	/**
+	 * With consistent hashing, only values which go to a joining store move, and they stay visible.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void reshardTest4() throws Exception {
+		clientA.setHashFunction(new ConsistentHashFunction());
+		List<String> values = new ArrayList<String>();
+		List<Object> before = new ArrayList<Object>();
+		for (int i = 0; i < 100; ++i) {
+			values.add("v" + i);
+			before.add(clientA.getStore("v" + i));
+		}
+		clientA.addAll(values);
+		Topology topology = new Topology();
+		topology.loadFromFile("etc/orset/topology_multi.xml");
+		topology.set("A", "alpha4", new InetSocketAddress("127.0.0.1", 6385));
+		clientA.updateTopology(topology);
+		assertTrue(clientA.awaitMigration(10000));
+		int moved = 0;
+		for (int i = 0; i < values.size(); ++i) {
+			Store store = clientA.getStore(values.get(i));
+			if (store != before.get(i)) {
+				assertEquals("alpha4", store.getStoreID());
+				++moved;
+			}
+		}
+		assertTrue(moved > 0 && moved < values.size() / 2);
+		Map<String, Boolean> found = clientA.lookupAll(values);
+		for (String value : values)
+			assertTrue(found.get(value));
+	}
+	
+	
+	/**
+	 * A store joins a cluster holding tags of all clusters: it takes the replicas of the other stores, and the moved
+	 * tuples, removes included, stay visible locally and to the other clusters.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void reshardTest5() throws Exception {
+		List<String> values = new ArrayList<String>();
+		for (int i = 0; i < 40; ++i)
+			values.add("v" + i);
+		clientA.addAll(values.subList(0, 20));
+		clientB.addAll(values.subList(20, 40));
+		clientC.add("v0");
+		clientA.pullUpdates(clientB.getClusterID());
+		clientA.pullUpdates(clientC.getClusterID());
+		clientA.removeAll(values.subList(10, 30));
+		Topology topology = new Topology();
+		topology.loadFromFile("etc/orset/topology_multi.xml");
+		topology.set("A", "alpha4", new InetSocketAddress("127.0.0.1", 6385));
+		clientA.updateTopology(topology);
+		assertTrue(clientA.awaitMigration(10000));
+		if (storeType == StoreType.REDIS) {
+			Jedis alpha1 = new Jedis("127.0.0.1", 6379);
+			Jedis alpha4 = new Jedis("127.0.0.1", 6385);
+			assertEquals(alpha1.hgetAll("replicas"), alpha4.hgetAll("replicas"));
+			alpha1.disconnect();
+			alpha4.disconnect();
+		}
+		assertTrue(clientB.refreshTopology());
+		assertTrue(clientC.refreshTopology());
+		clientB.pullUpdates(clientA.getClusterID());
+		clientC.pullUpdates(clientA.getClusterID());
+		for (Client client : Arrays.asList(clientA, clientB, clientC)) {
+			Map<String, Boolean> found = client.lookupAll(values);
+			for (int i = 0; i < values.size(); ++i)
+				assertEquals(i < 10 || i >= 30, found.get(values.get(i)));
+		}
+		remove(clientA, "v0");
+		pull(clientB, clientA, "v0", false);
+	}
+	
+	
+	/**
+	 * Tuples which moved, removed ones included, are deleted from their old store once copied, so that a purged
+	 * tombstone does not come back from a stale copy.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void reshardTest6() throws Exception {
+		List<String> values = new ArrayList<String>();
+		List<Store> before = new ArrayList<Store>();
+		for (int i = 0; i < 40; ++i) {
+			values.add("v" + i);
+			before.add(clientA.getStore("v" + i));
+		}
+		clientA.addAll(values);
+		clientA.removeAll(values.subList(0, 20));
+		Topology topology = new Topology();
+		topology.loadFromFile("etc/orset/topology_multi.xml");
+		topology.set("A", "alpha4", new InetSocketAddress("127.0.0.1", 6385));
+		clientA.updateTopology(topology);
+		assertTrue(clientA.awaitMigration(10000));
+		assertTrue(clientA.getMigrationStats().moved > 0);
+		assertEquals(clientA.getMigrationStats().moved, clientA.getMigrationStats().deleted);
+		
+		Timestamps all = new Timestamps();
+		for (int replica = 0; replica < Replicas.size(); ++replica)
+			all.set(replica, 0);
+		for (int i = 0; i < values.size(); ++i) {
+			if (clientA.getStore(values.get(i)) == before.get(i))
+				continue;
+			for (Element e : before.get(i).getUpdates(new Timestamps(all)))
+				assertFalse(e.value.equals(values.get(i)));
+		}
+		
+		assertTrue(clientB.refreshTopology());
+		assertTrue(clientC.refreshTopology());
+		clientB.pullUpdates(clientA.getClusterID());
+		clientC.pullUpdates(clientA.getClusterID());
+		clientA.pullUpdates(clientB.getClusterID());
+		clientA.pullUpdates(clientC.getClusterID());
+		assertEquals(20, clientA.purgeTombstones(1000));
+		clientB.pullUpdates(clientA.getClusterID());
+		Map<String, Boolean> found = clientB.lookupAll(values);
+		for (int i = 0; i < values.size(); ++i)
+			assertEquals(i >= 20, found.get(values.get(i)));
+	}
+	
+	
+	/**
+	 * A change of topology is rejected before being published if it drops the local cluster. Otherwise it is
+	 * published in the stores, picked up by the clients watching them, and by the others when they refresh.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	@Test
+	public void topologyTest1() throws Exception {
+		Client clientA2 = storeType == StoreType.HEAP ? new Client<HeapStore>(HeapStore.class) : new Client<RedisStore>(RedisStore.class);
+		clientA2.boot("127.0.0.1", 6379);
+		clientA2.setCheckIfStoresOnline(true);
+		try {
+			Topology topology = new Topology();
+			topology.loadFromFile("etc/orset/topology_multi.xml");
+			Topology other = new Topology();
+			other.set("B", "beta1", topology.get("B", "beta1"));
+			try {
+				clientA.updateTopology(other);
+				fail("Dropped the local cluster");
+			} catch (RuntimeException e) {
+			}
+			assertFalse(clientA2.refreshTopology());
+			assertFalse(clientC.refreshTopology());
+			
+			clientA2.startTopologyWatch(20);
+			clientB.startTopologyWatch(20);
+			topology.set("A", "alpha4", new InetSocketAddress("127.0.0.1", 6385));
+			clientA.updateTopology(topology);
+			assertEquals(4, clientA.getClusterSize());
+			for (int i = 0; i < 200 && clientA2.getClusterSize() < 4; ++i)
+				Thread.sleep(10);
+			assertEquals(4, clientA2.getClusterSize());
+			assertTrue(clientA.awaitMigration(10000));
+			
+			List<String> values = new ArrayList<String>();
+			for (int i = 0; i < 30; ++i) {
+				values.add("v" + i);
+				assertEquals(clientA.getStore("v" + i).getStoreID(), clientA2.getStore("v" + i).getStoreID());
+			}
+			clientA2.addAll(values);
+			Map<String, Boolean> found = clientA.lookupAll(values);
+			for (String value : values)
+				assertTrue(found.get(value));
+			// Pulls reach the joined store once the watch of the other cluster picked up the topology.
+			boolean pulled = false;
+			for (int i = 0; i < 200 && !pulled; ++i) {
+				clientB.pullUpdates(clientA.getClusterID());
+				pulled = !clientB.lookupAll(values).containsValue(false);
+				if (!pulled)
+					Thread.sleep(10);
+			}
+			assertTrue(pulled);
+			
+			// A client not watching picks up the last version at once.
+			assertTrue(clientC.refreshTopology());
+			assertFalse(clientC.refreshTopology());
+			clientC.pullUpdates(clientA.getClusterID());
+			found = clientC.lookupAll(values);
+			for (String value : values)
+				assertTrue(found.get(value));
+		} finally {
+			clientA2.stopTopologyWatch();
+			clientB.stopTopologyWatch();
+			clientA2.close();
+		}
+	}
+	
+	
 	/**
 	 * ADD propagation stops at the failed store.
 	 */
@@ -355,6 +1059,49 @@ public class ORSetUnitTest {
 	}
 	
 	
+	/**
+	 * Get values hashed to the same store as the given one, starting with it.
+	 */
+	@SuppressWarnings("rawtypes")
+	private List<String> sameStore(Client client, String value, int n) {
+		List<String> values = new ArrayList<String>();
+		values.add(value);
+		for (int i = 0; values.size() < n; ++i) {
+			if (client.getStore("v" + i) == client.getStore(value))
+				values.add("v" + i);
+		}
+		return values;
+	}
+	
+	/**
+	 * Get the journal segments of a heap store.
+	 */
+	private List<File> journalSegments(String rc, String rs) {
+		final String prefix = String.format("db_%s:%s.bin.journal.", rc, rs);
+		List<File> segments = new ArrayList<File>();
+		for (File f : new File(".").listFiles()) {
+			if (f.getName().startsWith(prefix))
+				segments.add(f);
+		}
+		return segments;
+	}
+	
+	/**
+	 * Get the last journal segment of a heap store which holds records.
+	 */
+	private File lastJournalSegment(String rc, String rs) {
+		File last = null;
+		long max = -1;
+		for (File f : journalSegments(rc, rs)) {
+			final long n = Long.parseLong(f.getName().substring(f.getName().lastIndexOf('.') + 1));
+			if (f.length() > 0 && n > max) {
+				max = n;
+				last = f;
+			}
+		}
+		return last;
+	}
+	
 	private boolean multiStoresClusters() {
 		return clientA.getClusterSize() > 1 || clientB.getClusterSize() > 1 || clientC.getClusterSize() > 1;
 	}
@@ -479,4 +1226,187 @@ public class ORSetUnitTest {
 		add(clientA, "a");
 		pullAndSleep(clientB, clientA, "a", Element.getTTL(), false);
 	}
+	
+	
+	/**
+	 * ADD + RMV and pulled updates are replayed from the journal after a restart.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void journalTest1() {
+		if (storeType != StoreType.HEAP)
+			return;
+		List<String> values = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h");
+		clientA.addAll(values);
+		clientA.removeAll(values.subList(0, 4));
+		pull(clientB, clientA, "h", true);
+		restartHeapClients();
+		Map<String, Boolean> found = clientA.lookupAll(values);
+		for (String value : values)
+			assertEquals(values.indexOf(value) >= 4, found.get(value));
+		assertTrue(clientB.lookup("h"));
+		assertFalse(clientB.lookup("a"));
+		add(clientA, "a");
+		pull(clientB, clientA, "a", true);
+	}
+	
+	
+	/**
+	 * A torn record at the end of the journal is cut off on restart, the records before it being kept.
+	 */
+	@Test
+	public void journalTest2() throws IOException {
+		if (storeType != StoreType.HEAP)
+			return;
+		List<String> values = sameStore(clientA, "a", 2);
+		add(clientA, values.get(0));
+		add(clientA, values.get(1));
+		final String rs = clientA.getStore("a").getStoreID();
+		closeHeapClients();
+		File segment = lastJournalSegment("A", rs);
+		final long length = segment.length();
+		FileOutputStream out = new FileOutputStream(segment, true);
+		out.write(new byte[] {0, 0, 0, 100, 0, 0, 0});
+		out.close();
+		bootHeapClients();
+		assertTrue(clientA.lookup(values.get(0)));
+		assertTrue(clientA.lookup(values.get(1)));
+		assertEquals(length, segment.length());
+		add(clientA, "c");
+		restartHeapClients();
+		assertTrue(clientA.lookup(values.get(1)));
+		assertTrue(clientA.lookup("c"));
+	}
+	
+	
+	/**
+	 * A record failing its CRC ends the replay of the journal: it is dropped, the records before it being kept.
+	 */
+	@Test
+	public void journalTest3() throws IOException {
+		if (storeType != StoreType.HEAP)
+			return;
+		List<String> values = sameStore(clientA, "a", 2);
+		add(clientA, values.get(0));
+		add(clientA, values.get(1));
+		final String rs = clientA.getStore("a").getStoreID();
+		closeHeapClients();
+		RandomAccessFile segment = new RandomAccessFile(lastJournalSegment("A", rs), "rw");
+		segment.seek(segment.length() - 1);
+		final int last = segment.read();
+		segment.seek(segment.length() - 1);
+		segment.write(last ^ 0xFF);
+		segment.close();
+		bootHeapClients();
+		assertTrue(clientA.lookup(values.get(0)));
+		assertFalse(clientA.lookup(values.get(1)));
+		add(clientA, values.get(1));
+	}
+	
+	
+	/**
+	 * Snapshots roll the journal and delete the segments they cover, and the store is loaded from both on restart.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void journalTest4() {
+		if (storeType != StoreType.HEAP)
+			return;
+		HeapStore.setSnapshotInterval(10);
+		try {
+			List<String> values = sameStore(clientA, "a", 25);
+			clientA.addAll(values);
+			clientA.removeAll(values.subList(0, 5));
+			final String rs = clientA.getStore("a").getStoreID();
+			assertTrue(new File(String.format("db_A:%s.bin", rs)).exists());
+			assertTrue(journalSegments("A", rs).size() <= 2);
+			restartHeapClients();
+			Map<String, Boolean> found = clientA.lookupAll(values);
+			for (String value : values)
+				assertEquals(values.indexOf(value) >= 5, found.get(value));
+		} finally {
+			HeapStore.setSnapshotInterval(10000);
+		}
+	}
+	
+	
+	/**
+	 * A snapshot which cannot be written fails the store, which then rejects writes but still answers lookups.
+	 */
+	@Test
+	public void journalTest5() {
+		if (storeType != StoreType.HEAP)
+			return;
+		List<String> values = sameStore(clientA, "a", 4);
+		File tmp = new File(String.format("db_A:%s.bin.tmp", clientA.getStore("a").getStoreID()));
+		HeapStore.setSnapshotInterval(3);
+		assertTrue(tmp.mkdir());
+		try {
+			add(clientA, values.get(0));
+			add(clientA, values.get(1));
+			try {
+				clientA.add(values.get(2));
+				fail("Snapshot did not fail");
+			} catch (RuntimeException e) {
+			}
+			try {
+				clientA.add(values.get(3));
+				fail("Write accepted after a failed snapshot");
+			} catch (RuntimeException e) {
+			}
+			assertTrue(clientA.lookup(values.get(1)));
+			assertFalse(clientA.lookup(values.get(3)));
+		} finally {
+			tmp.delete();
+			HeapStore.setSnapshotInterval(10000);
+		}
+	}
+	
+	
+	/**
+	 * A store is loaded from its snapshot on restart, the tags being read from the mapped file by lookups and pulls.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void snapshotTest1() {
+		if (storeType != StoreType.HEAP)
+			return;
+		HeapStore.setSnapshotInterval(1);	// Each mutation is followed by a snapshot, so no journal is left to replay.
+		try {
+			List<String> values = Arrays.asList("a", "b", "c", "d", "e", "f", "g", "h");
+			clientB.addAll(values);
+			pull(clientA, clientB, "a", true);
+			clientA.removeAll(values.subList(0, 4));
+			add(clientA, "a");
+			restartHeapClients();
+			Map<String, Boolean> found = clientA.lookupAll(values);
+			for (String value : values)
+				assertEquals(value.equals("a") || values.indexOf(value) >= 4, found.get(value));
+			pull(clientC, clientA, "h", true);
+			pull(clientC, clientA, "b", false);
+			pull(clientC, clientA, "a", true);
+		} finally {
+			HeapStore.setSnapshotInterval(10000);
+		}
+	}
+	
+	
+	/**
+	 * A Java-serialized heap store file, as written before snapshots, is converted on open and kept as <file>.legacy.
+	 */
+	@Test
+	public void legacyTest1() throws IOException {
+		if (storeType != StoreType.HEAP)
+			return;
+		closeHeapClients();
+		Files.copy(Paths.get("etc/orset/heap_legacy.bin"), Paths.get("db_A:alpha1.bin"), StandardCopyOption.REPLACE_EXISTING);
+		bootHeapClients();
+		assertTrue(new File("db_A:alpha1.bin.legacy").exists());
+		pull(clientB, clientA, "x", true);
+		pull(clientB, clientA, "y", false);
+		assertTrue(clientB.lookup("z"));
+		restartHeapClients();
+		pull(clientC, clientA, "w", true);
+		pull(clientC, clientA, "y", false);
+	}
 }
@@ -0,0 +1,90 @@
+package de.oneandone.eventtracker.CRDT.Utils;
+
+import java.util.Arrays;
+
+import de.oneandone.eventtracker.CRDT.Hashing.Murmur3;
+
+/**
+ * Bloom filter with a counter per position, so that values can also be removed.
+ * mightContain() never returns false for a value added and not removed; it may return true for other values,
+ * with the given probability as long as no more than the given number of values are in the filter.
+ * A counter which reaches its maximum is never decremented again. A value must only be removed if it was added.
+ * Positions are derived from one Murmur3 hash of the value by double hashing.
+ */
+public class CountingBloomFilter {
+	private static final int MAX_COUNT = 255;
+	private final byte[] counters;
+	private final int numHashes;
+	private final int capacity;
+	private int size = 0;
+
+	/**
+	 * @param capacity	Expected number of values.
+	 * @param fpp		False positive probability at that number of values.
+	 */
+	public CountingBloomFilter(int capacity, double fpp) {
+		this.capacity = Math.max(1, capacity);
+		final double ln2 = Math.log(2);
+		final long numCounters = (long) Math.ceil(-this.capacity * Math.log(fpp) / (ln2 * ln2));
+		counters = new byte[(int) Math.max(64, Math.min(numCounters, Integer.MAX_VALUE - 8))];
+		numHashes = Math.max(1, (int) Math.round((double) counters.length / this.capacity * ln2));
+	}
+
+	private int position(long hash, int i) {
+		final int h1 = (int) hash;
+		final int h2 = (int) (hash >>> 32);
+		return ((h1 + i * h2) & Integer.MAX_VALUE) % counters.length;
+	}
+
+
+	public synchronized void add(String value) {
+		final long hash = Murmur3.hash(value);
+		for (int i = 0; i < numHashes; ++i) {
+			final int p = position(hash, i);
+			if ((counters[p] & 0xFF) < MAX_COUNT)
+				++counters[p];
+		}
+		++size;
+	}
+
+
+	public synchronized void remove(String value) {
+		final long hash = Murmur3.hash(value);
+		for (int i = 0; i < numHashes; ++i) {
+			final int p = position(hash, i);
+			final int count = counters[p] & 0xFF;
+			if (count > 0 && count < MAX_COUNT)
+				--counters[p];
+		}
+		--size;
+	}
+
+
+	public synchronized boolean mightContain(String value) {
+		final long hash = Murmur3.hash(value);
+		for (int i = 0; i < numHashes; ++i) {
+			if (counters[position(hash, i)] == 0)
+				return false;
+		}
+		return true;
+	}
+
+
+	public synchronized void clear() {
+		Arrays.fill(counters, (byte) 0);
+		size = 0;
+	}
+
+
+	/**
+	 * Get the number of values in the filter.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+
+	public int getCapacity() {
+		return capacity;
+	}
+}
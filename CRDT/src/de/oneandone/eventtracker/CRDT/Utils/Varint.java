@@ -0,0 +1,52 @@
+package de.oneandone.eventtracker.CRDT.Utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Variable-length encoding of non-negative integers, 7 bits per byte, least significant group first.
+ */
+public class Varint {
+	public static void writeLong(DataOutput out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	public static long readLong(DataInput in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final byte b = in.readByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return v;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	public static void writeInt(DataOutput out, int v) throws IOException {
+		writeLong(out, v & 0xFFFFFFFFL);
+	}
+
+	public static int readInt(DataInput in) throws IOException {
+		return (int) readLong(in);
+	}
+
+	/**
+	 * Write a length-prefixed UTF-8 string.
+	 */
+	public static void writeString(DataOutput out, String s) throws IOException {
+		byte[] bytes = s.getBytes("UTF-8");
+		writeInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	public static String readString(DataInput in) throws IOException {
+		byte[] bytes = new byte[readInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}